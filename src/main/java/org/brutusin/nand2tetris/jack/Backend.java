@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.List;
+import org.brutusin.nand2tetris.jack.model.JackClass;
+
+/**
+ * Code generation backend. Backends other than the built-in VM one
+ * ({@link VmBackend}) are discovered with {@link java.util.ServiceLoader},
+ * listing their implementation classes in
+ * <code>META-INF/services/org.brutusin.nand2tetris.jack.Backend</code>, and
+ * looked up by name with {@link Backends#get(String)}.
+ * <p>
+ * Implementations have to be thread-safe: the same instance generates the
+ * classes of a directory concurrently.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public interface Backend {
+
+    /**
+     * @return the name used to select the backend
+     */
+    public String getName();
+
+    /**
+     * @return the extension of the generated files, including the leading dot
+     */
+    public String getExtension();
+
+    /**
+     * Generates the code of a class.
+     *
+     * @param clazz parsed class
+     * @param errors list where semantic errors are reported
+     * @param index signatures of the classes visible to <code>clazz</code>
+     * @return the generated code, meaningful only if no errors were reported
+     * @throws CompilerException if the generation cannot go on
+     */
+    public String generate(JackClass clazz, List<CompilerException> errors, SignatureIndex index) throws CompilerException;
+}
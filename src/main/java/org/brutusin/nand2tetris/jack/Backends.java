@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ServiceLoader;
+
+/**
+ * Lookup of the available {@link Backend backends}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public final class Backends {
+
+    private static final Backend VM = new VmBackend();
+
+    private Backends() {
+    }
+
+    /**
+     * @return the built-in VM backend
+     */
+    public static Backend getDefault() {
+        return VM;
+    }
+
+    /**
+     * Returns the backend with the given name: the built-in one or the first
+     * one registered as a service.
+     *
+     * @param name backend name
+     * @return the backend, or <code>null</code> if none is found
+     */
+    public static Backend get(String name) {
+        if (VM.getName().equals(name)) {
+            return VM;
+        }
+        for (Backend backend : ServiceLoader.load(Backend.class)) {
+            if (backend.getName().equals(name)) {
+                return backend;
+            }
+        }
+        return null;
+    }
+}
@@ -15,9 +15,16 @@ package org.brutusin.nand2tetris.jack;
  * See the License for the specific keyword governing permissions and
  * limitations under the License.
  */
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import org.brutusin.nand2tetris.jack.model.Declaration;
 import org.brutusin.nand2tetris.jack.model.DoStatement;
 import org.brutusin.nand2tetris.jack.model.Expression;
@@ -37,57 +44,261 @@ import org.brutusin.nand2tetris.jack.model.WhileStatement;
  */
 public class ClassParser {
     
+    private static final Set<String> CLASS_VAR_SYNC = new HashSet<>(Arrays.asList(";", "}", "static", "field", "constructor", "function", "method"));
+    private static final Set<String> SUBROUTINE_SYNC = new HashSet<>(Arrays.asList("}", "constructor", "function", "method"));
+    private static final Set<String> STATEMENT_SYNC = new HashSet<>(Arrays.asList(";", "}", "let", "if", "while", "do", "return"));
+    private static final int MAX_OUTLINE_STATEMENTS = 16;
+    
+    private final List<CompilerException> errors;
+    private final XmlWriter xml;
+    private final boolean outline;
+    private final Listener listener;
     private final JackClass parsedClass;
     
     public ClassParser(Tokenizer tokenizer) throws CompilerException {
-        this.parsedClass = parseClass(tokenizer.tokenIterator());
+        this(tokenizer, null);
+    }
+
+    /**
+     * @param tokenizer tokens to parse
+     * @param errors if not null, syntax errors are added to this list and
+     * parsing goes on in panic mode, resynchronizing at ';', '}' and
+     * statement or declaration keywords. Otherwise the first error is thrown
+     * @throws CompilerException
+     */
+    public ClassParser(Tokenizer tokenizer, List<CompilerException> errors) throws CompilerException {
+        this(tokenizer, errors, null, false, null);
+    }
+
+    /**
+     * @param tokenizer tokens to parse
+     * @param errors optional error list
+     * @param xml if not null, the parse tree is streamed to this writer as the
+     * class is parsed
+     * @throws CompilerException
+     */
+    public ClassParser(Tokenizer tokenizer, List<CompilerException> errors, XmlWriter xml) throws CompilerException {
+        this(tokenizer, errors, xml, false, null);
+    }
+
+    /**
+     * @param tokenizer tokens to parse
+     * @param errors optional error list
+     * @param outline if true, only the class outline is parsed: class
+     * variables and subroutine headers with their parameters. Subroutine
+     * bodies are skipped by brace matching, without being checked (at
+     * character level for lazy tokenizers, see {@link Tokenizer#lazy}),
+     * except the bodies of constructors and methods made of a few
+     * <code>let</code>, <code>do</code> and <code>return</code> statements,
+     * the accessors summarized by {@link SignatureIndex}
+     * @throws CompilerException
+     */
+    public ClassParser(Tokenizer tokenizer, List<CompilerException> errors, boolean outline) throws CompilerException {
+        this(tokenizer, errors, null, outline, null);
+    }
+
+    /**
+     * Event-driven parsing. The class (with its variables) and then each of
+     * its subroutines are handed to the listener as soon as they are parsed.
+     * Subroutines are not added to the parsed class, so that they can be
+     * discarded after being consumed. Combined with a lazy tokenizer (see
+     * {@link Tokenizer#lazy}) memory is bounded by the largest subroutine.
+     *
+     * @param tokenizer tokens to parse
+     * @param errors optional error list
+     * @param listener consumer of the parsed elements
+     * @throws CompilerException
+     */
+    public ClassParser(Tokenizer tokenizer, List<CompilerException> errors, Listener listener) throws CompilerException {
+        this(tokenizer, errors, null, false, listener);
+    }
+
+    private ClassParser(Tokenizer tokenizer, List<CompilerException> errors, XmlWriter xml, boolean outline, Listener listener) throws CompilerException {
+        this.errors = errors;
+        this.xml = xml;
+        this.outline = outline;
+        this.listener = listener;
+        Tokenizer.TokenizerIterator nextTokens = tokenizer.tokenIterator();
+        JackClass clazz = null;
+        try {
+            clazz = parseClass(nextTokens);
+        } catch (NoSuchElementException nse) {
+            if (errors == null || errors.isEmpty()) {
+                Tokenizer.Token last = nextTokens.last();
+                CompilerException ce;
+                if (last == null) {
+                    ce = new CompilerException("Unexpected end of file", 1, 1);
+                } else {
+                    ce = new CompilerException("Unexpected end of file after '" + last.getValue() + "'", last.getLineNumber(), last.getColumNumber());
+                }
+                report(ce);
+            }
+        } catch (CompilerException ce) {
+            report(ce);
+        }
+        this.parsedClass = clazz;
     }
     
+    /**
+     * @return the parsed class, or null if errors are being collected and the
+     * class header could not be parsed
+     */
     public JackClass getParsedClass() {
         return parsedClass;
     }
     
-    private static JackClass parseClass(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+    private void report(CompilerException ce) throws CompilerException {
+        if (errors == null) {
+            throw ce;
+        }
+        errors.add(ce);
+    }
+    
+    /**
+     * Reports the error and skips tokens until one of the synchronization
+     * tokens is found. Balanced blocks are skipped as a whole, and a ';' stop
+     * token is consumed.
+     */
+    private void recover(CompilerException ce, Tokenizer.TokenizerIterator nextTokens, int startPosition, Set<String> syncTokens) throws CompilerException {
+        report(ce);
+        if (nextTokens.position() == startPosition && nextTokens.hasNext()) {
+            nextTokens.poll(); // ensure progress
+        }
+        int depth = 0;
+        while (nextTokens.hasNext()) {
+            Tokenizer.Token token = nextTokens.peek();
+            if (token.getType() == Tokenizer.Token.Type.symbol && token.getValue().equals("{")) {
+                depth++;
+            } else if (depth > 0 && token.getType() == Tokenizer.Token.Type.symbol && token.getValue().equals("}")) {
+                depth--;
+            } else if (depth == 0 && token.getType() != Tokenizer.Token.Type.stringConstant && syncTokens.contains(token.getValue())) {
+                if (token.getValue().equals(";")) {
+                    nextTokens.poll();
+                }
+                return;
+            }
+            nextTokens.poll();
+        }
+    }
+    
+    private Tokenizer.Token poll(Tokenizer.TokenizerIterator nextTokens) {
         Tokenizer.Token token = nextTokens.poll();
+        if (xml != null) {
+            try {
+                token.writeXml(xml);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        return token;
+    }
+    
+    private void openXml(String name) {
+        if (xml != null) {
+            try {
+                xml.open(name);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+    
+    private void closeXml(String name) {
+        if (xml != null) {
+            try {
+                xml.close(name);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+    
+    private static boolean startsTerm(Tokenizer.Token token) {
+        switch (token.getType()) {
+            case integerConstant:
+            case stringConstant:
+            case identifier:
+                return true;
+            case keyword:
+                return token.getValue().equals("true") || token.getValue().equals("false") || token.getValue().equals("null") || token.getValue().equals("this");
+            case symbol:
+                return token.getValue().equals("-") || token.getValue().equals("~") || token.getValue().equals("(");
+            default:
+                return false;
+        }
+    }
+    
+    private static boolean isSymbol(Tokenizer.Token token, String value) {
+        return token.getType() == Tokenizer.Token.Type.symbol && token.getValue().equals(value);
+    }
+    
+    private JackClass parseClass(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+        openXml("class");
+        Tokenizer.Token token = poll(nextTokens);
         assertToken(token, "class");
-        token = nextTokens.poll(); // class name
+        token = poll(nextTokens); // class name
         assertToken(token, Tokenizer.Token.Type.identifier);
         if (!startsWithUppercase(token.getValue())) {
             throw new CompilerException("Invalid class identifier " + token.getValue() + ". Class identifiers must start with an uppercase letter", token.getLineNumber(), token.getColumNumber());
         }
         JackClass ret = new JackClass(token.getLineNumber(), token.getColumNumber(), token.getValue());
         
-        token = nextTokens.poll();  // left {
+        token = poll(nextTokens);  // left {
         assertToken(token, "{");
         
         while (true) {
-            List<Declaration> varDec = parseClassVarDec(nextTokens);
-            if (varDec == null) {
-                break;
+            int startPosition = nextTokens.position();
+            try {
+                List<Declaration> varDec = parseClassVarDec(nextTokens);
+                if (varDec == null) {
+                    break;
+                }
+                ret.getDeclarations().addAll(varDec);
+            } catch (CompilerException ce) {
+                recover(ce, nextTokens, startPosition, CLASS_VAR_SYNC);
             }
-            ret.getDeclarations().addAll(varDec);
+        }
+        if (listener != null) {
+            listener.onClass(ret);
         }
         while (true) {
-            Subroutine subroutine = parseSubrutineDec(nextTokens);
-            if (subroutine == null) {
-                break;
+            int startPosition = nextTokens.position();
+            Subroutine subroutine;
+            try {
+                subroutine = parseSubrutineDec(nextTokens);
+                if (subroutine == null) {
+                    if (errors != null && !isSymbol(nextTokens.peek(), "}")) {
+                        token = nextTokens.peek();
+                        throw new CompilerException("Expected subroutine declaration but found '" + token.getValue() + "'", token.getLineNumber(), token.getColumNumber());
+                    }
+                    break;
+                }
+            } catch (CompilerException ce) {
+                recover(ce, nextTokens, startPosition, SUBROUTINE_SYNC);
+                continue;
+            }
+            if (listener != null) {
+                listener.onSubroutine(subroutine);
+            } else {
+                ret.getSubroutines().add(subroutine);
             }
-            ret.getSubroutines().add(subroutine);
         }
-        token = nextTokens.poll(); // right }
+        token = poll(nextTokens); // right }
         assertToken(token, "}");
+        closeXml("class");
+        ret.compact();
         return ret;
     }
     
-    private static List<Declaration> parseClassVarDec(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+    private List<Declaration> parseClassVarDec(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
         return parseVarDec(nextTokens, true);
     }
     
-    private static List<Declaration> parseSubroutineVarDec(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+    private List<Declaration> parseSubroutineVarDec(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
         return parseVarDec(nextTokens, false);
     }
     
-    private static List<Declaration> parseVarDec(Tokenizer.TokenizerIterator nextTokens, boolean classLevel) throws CompilerException {
+    private List<Declaration> parseVarDec(Tokenizer.TokenizerIterator nextTokens, boolean classLevel) throws CompilerException {
         Tokenizer.Token token = nextTokens.peek();
         if (token.getType() != Tokenizer.Token.Type.keyword) {
             return null;
@@ -108,19 +319,22 @@ public class ClassParser {
                 return null;
             }
         }
-        token = nextTokens.poll(); // consume it
-        List<Declaration> ret = new LinkedList<>();
-        token = nextTokens.poll();  // type
+        String element = classLevel ? "classVarDec" : "varDec";
+        openXml(element);
+        token = poll(nextTokens); // consume it
+        List<Declaration> ret = new ArrayList<>();
+        token = poll(nextTokens);  // type
         assertTypeToken(token);
         String type = token.getValue();
         int i = 0;
         while (true) {
-            token = nextTokens.poll();
+            token = poll(nextTokens);
             if (token.getType() == Tokenizer.Token.Type.symbol && token.getValue().equals(";")) {
+                closeXml(element);
                 break;
             } else if (i > 0) {
                 assertToken(token, ",");
-                token = nextTokens.poll();
+                token = poll(nextTokens);
             }
             assertToken(token, Tokenizer.Token.Type.identifier);
             ret.add(new Declaration(token.getLineNumber(), token.getColumNumber(), type, token.getValue(), scope));
@@ -129,7 +343,7 @@ public class ClassParser {
         return ret;
     }
     
-    private static Subroutine parseSubrutineDec(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+    private Subroutine parseSubrutineDec(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
         Tokenizer.Token token = nextTokens.peek();
         if (token.getType() != Tokenizer.Token.Type.keyword) {
             return null;
@@ -144,24 +358,36 @@ public class ClassParser {
         } else {
             return null;
         }
-        token = nextTokens.poll(); // consume it
-        token = nextTokens.poll();  // return type
+        openXml("subroutineDec");
+        token = poll(nextTokens); // consume it
+        token = poll(nextTokens);  // return type
         assertReturnTypeToken(token);
         String returnType = token.getValue();
-        token = nextTokens.poll(); // routine name
+        token = poll(nextTokens); // routine name
         assertToken(token, Tokenizer.Token.Type.identifier);
         if (startsWithUppercase(token.getValue())) {
             throw new CompilerException("Invalid subroutine name " + token.getValue() + ". Subroutine names must start with a lowercase letter", token.getLineNumber(), token.getColumNumber());
         }
         String name = token.getValue();
         Subroutine ret = new Subroutine(token.getLineNumber(), token.getColumNumber(), type, returnType, name);
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, "(");
+        openXml("parameterList");
         ret.getDeclarations().addAll(parseParamList(nextTokens));
-        token = nextTokens.poll();
+        closeXml("parameterList");
+        token = poll(nextTokens);
         assertToken(token, ")");
-        token = nextTokens.poll();  // left {
+        openXml("subroutineBody");
+        token = poll(nextTokens);  // left {
         assertToken(token, "{");
+        if (outline) {
+            if (type == Subroutine.Type.function) {
+                nextTokens.skipBlock();
+            } else {
+                parseOutlineBody(ret, nextTokens);
+            }
+            return ret;
+        }
         while (true) {
             List<Declaration> varDesc = parseSubroutineVarDec(nextTokens);
             if (varDesc == null) {
@@ -171,15 +397,56 @@ public class ClassParser {
         }
         ret.getStatements().addAll(parseStatements(nextTokens));
         
-        token = nextTokens.poll(); // right }
+        token = poll(nextTokens); // right }
         assertToken(token, "}");
+        closeXml("subroutineBody");
+        closeXml("subroutineDec");
+        ret.compact();
         
         return ret;
     }
     
-    private static List<Declaration> parseParamList(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+    /**
+     * Parses the body of a constructor or method in outline mode, as long as
+     * it only has <code>let</code>, <code>do</code> and <code>return</code>
+     * statements (and not too many). Otherwise, or if it is not valid, its
+     * statements are dropped and the rest of the body is skipped.
+     */
+    private void parseOutlineBody(Subroutine subroutine, Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+        List<Statement> statements = new ArrayList<>();
+        try {
+            while (statements.size() < MAX_OUTLINE_STATEMENTS) {
+                Tokenizer.Token token = nextTokens.peek();
+                if (token.getType() == Tokenizer.Token.Type.keyword && token.getValue().equals("let")) {
+                    statements.add(parseLetStatement(nextTokens));
+                } else if (token.getType() == Tokenizer.Token.Type.keyword && token.getValue().equals("do")) {
+                    statements.add(parseDoStatement(nextTokens));
+                } else if (token.getType() == Tokenizer.Token.Type.keyword && token.getValue().equals("return")) {
+                    statements.add(parseReturnStatement(nextTokens));
+                } else if (isSymbol(token, "}")) {
+                    poll(nextTokens);
+                    subroutine.getStatements().addAll(statements);
+                    subroutine.compact();
+                    return;
+                } else {
+                    break;
+                }
+            }
+        } catch (CompilerException ce) {
+            // braces end these statements, so only the failing token can be one
+            Tokenizer.Token last = nextTokens.last();
+            if (isSymbol(last, "}")) {
+                return;
+            } else if (isSymbol(last, "{")) {
+                nextTokens.skipBlock();
+            }
+        }
+        nextTokens.skipBlock();
+    }
+
+    private List<Declaration> parseParamList(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
         
-        List<Declaration> ret = new LinkedList<>();
+        List<Declaration> ret = new ArrayList<>();
         Tokenizer.Token token;
         int i = 0;
         while (true) {
@@ -188,13 +455,13 @@ public class ClassParser {
                 break;
             } else {
                 if (i > 0) {
-                    token = nextTokens.poll();
+                    token = poll(nextTokens);
                     assertToken(token, ",");
                 }
-                token = nextTokens.poll();
+                token = poll(nextTokens);
                 assertTypeToken(token);
                 String type = token.getValue();
-                token = nextTokens.poll();
+                token = poll(nextTokens);
                 assertToken(token, Tokenizer.Token.Type.identifier);
                 String name = token.getValue();
                 ret.add(new Declaration(token.getLineNumber(), token.getColumNumber(), type, name, Declaration.Scope.argument));
@@ -204,47 +471,65 @@ public class ClassParser {
         return ret;
     }
     
-    private static List<Statement> parseStatements(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
-        List<Statement> ret = new LinkedList<>();
+    private List<Statement> parseStatements(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+        List<Statement> ret = new ArrayList<>();
+        openXml("statements");
         while (true) {
             Tokenizer.Token token = nextTokens.peek();
-            if (token.getType() == Tokenizer.Token.Type.keyword) {
-                if (token.getValue().equals("let")) {
+            int startPosition = nextTokens.position();
+            try {
+                if (token.getType() == Tokenizer.Token.Type.keyword && token.getValue().equals("let")) {
                     ret.add(parseLetStatement(nextTokens));
-                } else if (token.getValue().equals("if")) {
+                } else if (token.getType() == Tokenizer.Token.Type.keyword && token.getValue().equals("if")) {
                     ret.add(parseIfStatement(nextTokens));
-                } else if (token.getValue().equals("while")) {
+                } else if (token.getType() == Tokenizer.Token.Type.keyword && token.getValue().equals("while")) {
                     ret.add(parseWhileStatement(nextTokens));
-                } else if (token.getValue().equals("do")) {
+                } else if (token.getType() == Tokenizer.Token.Type.keyword && token.getValue().equals("do")) {
                     ret.add(parseDoStatement(nextTokens));
-                } else if (token.getValue().equals("return")) {
+                } else if (token.getType() == Tokenizer.Token.Type.keyword && token.getValue().equals("return")) {
                     ret.add(parseReturnStatement(nextTokens));
+                } else if (errors != null && !isSymbol(token, "}")) {
+                    throw new CompilerException("Expected statement but found '" + token.getValue() + "'", token.getLineNumber(), token.getColumNumber());
                 } else {
                     break;
                 }
-            } else {
-                break;
+            } catch (CompilerException ce) {
+                recover(ce, nextTokens, startPosition, STATEMENT_SYNC);
             }
         }
+        closeXml("statements");
+        return ret;
+    }
+    
+    private Term parseTerm(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+        if (xml == null) {
+            return parseTermContent(nextTokens);
+        }
+        if (!startsTerm(nextTokens.peek())) {
+            return null;
+        }
+        openXml("term");
+        Term ret = parseTermContent(nextTokens);
+        closeXml("term");
         return ret;
     }
     
-    private static Term parseTerm(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+    private Term parseTermContent(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
         Tokenizer.Token token = nextTokens.peek();
         if (token.getType() == Tokenizer.Token.Type.integerConstant) {
-            nextTokens.poll();
+            poll(nextTokens);
             return new Term.Constant(token.getLineNumber(), token.getColumNumber(), token.getValue(), Term.Constant.Type.integer);
         } else if (token.getType() == Tokenizer.Token.Type.stringConstant) {
-            nextTokens.poll();
+            poll(nextTokens);
             return new Term.Constant(token.getLineNumber(), token.getColumNumber(), token.getValue(), Term.Constant.Type.string);
         } else if (token.getType() == Tokenizer.Token.Type.keyword) {
             if (token.getValue().equals("true") || token.getValue().equals("false") || token.getValue().equals("null") || token.getValue().equals("this")) {
-                nextTokens.poll();
+                poll(nextTokens);
                 return new Term.Constant(token.getLineNumber(), token.getColumNumber(), token.getValue(), Term.Constant.Type.keyword);
             }
         } else if (token.getType() == Tokenizer.Token.Type.symbol) {
             if (token.getValue().equals("-") || token.getValue().equals("~")) {
-                nextTokens.poll();
+                poll(nextTokens);
                 List<ParserNode> children = new LinkedList<>();
                 children.add(new SimpleNode(token));
                 Term term = parseTerm(nextTokens);
@@ -253,49 +538,49 @@ public class ClassParser {
                 }
                 return new Term.UnaryTerm(token.getLineNumber(), token.getColumNumber(), token.getValue().charAt(0), term);
             } else if (token.getValue().equals("(")) {
-                nextTokens.poll();
+                poll(nextTokens);
                 Expression expression = parseExpression(nextTokens);
                 if (expression == null) {
                     throw new CompilerException("Expected expression after (", token.getLineNumber(), token.getColumNumber());
                 }
-                token = nextTokens.poll();
+                token = poll(nextTokens);
                 assertToken(token, ")");
                 return expression;
             }
         } else if (token.getType() == Tokenizer.Token.Type.identifier) {
-            nextTokens.poll();
+            poll(nextTokens);
             String name = token.getValue();
             Tokenizer.Token nextToken = nextTokens.peek();
             if (nextToken.getType() == Tokenizer.Token.Type.symbol) {
                 if (nextToken.getValue().equals(".")) {
-                    nextTokens.poll();
-                    token = nextTokens.poll();
+                    poll(nextTokens);
+                    token = poll(nextTokens);
                     assertToken(token, Tokenizer.Token.Type.identifier);
                     if (startsWithUppercase(token.getValue())) {
                         throw new CompilerException("Subroutine name must start with a lowercase letter", token.getLineNumber(), token.getColumNumber());
                     }
                     String subroutine = token.getValue();
-                    token = nextTokens.poll();
+                    token = poll(nextTokens);
                     assertToken(token, "(");
                     SubroutineCall ret = new SubroutineCall(token.getLineNumber(), token.getColumNumber(), name, subroutine);
                     ret.getArguments().addAll(parseExpressionList(nextTokens));
-                    token = nextTokens.poll();
+                    token = poll(nextTokens);
                     assertToken(token, ")");
                     return ret;
                 } else if (nextToken.getValue().equals("(")) {
-                    nextTokens.poll();
+                    poll(nextTokens);
                     SubroutineCall ret = new SubroutineCall(token.getLineNumber(), token.getColumNumber(), null, name);
                     ret.getArguments().addAll(parseExpressionList(nextTokens));
-                    token = nextTokens.poll();
+                    token = poll(nextTokens);
                     assertToken(token, ")");
                     return ret;
                 } else if (nextToken.getValue().equals("[")) {
-                    nextTokens.poll();
+                    poll(nextTokens);
                     Expression exp = parseExpression(nextTokens);
                     if (exp == null) {
                         throw new CompilerException("Expression expected after [", nextToken.getLineNumber(), nextToken.getColumNumber());
                     }
-                    token = nextTokens.poll();
+                    token = poll(nextTokens);
                     assertToken(token, "]");
                     return new Term.ArrayReference(token.getLineNumber(), token.getColumNumber(), name, exp);
                 }
@@ -305,8 +590,20 @@ public class ClassParser {
         return null;
     }
     
-    private static Expression parseExpression(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
-        
+    private Expression parseExpression(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+        if (xml == null) {
+            return parseExpressionContent(nextTokens);
+        }
+        if (!startsTerm(nextTokens.peek())) {
+            return null;
+        }
+        openXml("expression");
+        Expression ret = parseExpressionContent(nextTokens);
+        closeXml("expression");
+        return ret;
+    }
+    
+    private Expression parseExpressionContent(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
         Term term = parseTerm(nextTokens);
         if (term == null) {
             return null;
@@ -325,8 +622,8 @@ public class ClassParser {
                     || nextToken.getValue().equals(">")
                     || nextToken.getValue().equals("="))) {
                 
-                nextTokens.poll();
-                exp.getOperators().add(nextToken.getValue().charAt(0));
+                poll(nextTokens);
+                exp.addOperator(nextToken.getValue().charAt(0));
                 term = parseTerm(nextTokens);
                 if (term == null) {
                     throw new CompilerException("Expression expected after '" + nextToken.getValue() + "'", nextToken.getLineNumber(), nextToken.getColumNumber());
@@ -336,47 +633,50 @@ public class ClassParser {
                 break;
             }
         }
+        exp.compact();
         return exp;
     }
     
-    private static LetStatement parseLetStatement(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
-        Tokenizer.Token token = nextTokens.poll();
+    private LetStatement parseLetStatement(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+        openXml("letStatement");
+        Tokenizer.Token token = poll(nextTokens);
         assertToken(token, "let");
-        token = nextTokens.poll(); // local name
+        token = poll(nextTokens); // local name
         assertToken(token, Tokenizer.Token.Type.identifier);
         Term.Reference target;
         String varName = token.getValue();
         token = nextTokens.peek();
         if (token.getValue().equals("[")) {
             assertToken(token, Tokenizer.Token.Type.symbol);
-            token = nextTokens.poll();
+            token = poll(nextTokens);
             Expression expression = parseExpression(nextTokens);
             if (expression == null) {
                 throw new CompilerException("Empty expression found for array index", token.getLineNumber(), token.getColumNumber());
             }
-            token = nextTokens.poll();
+            token = poll(nextTokens);
             assertToken(token, "]");
             target = new Term.ArrayReference(token.getLineNumber(), token.getColumNumber(), varName, expression);
         } else {
             target = new Term.Reference(token.getLineNumber(), token.getColumNumber(), varName);
         }
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, "=");
         
         Expression expression = parseExpression(nextTokens);
         if (expression == null) {
             throw new CompilerException("Empty expression found after equals", token.getLineNumber(), token.getColumNumber());
         }
-        token = nextTokens.poll();
-        assertToken(token, ";");
+        token = expect(nextTokens, ";");
+        closeXml("letStatement");
         return new LetStatement(token.getLineNumber(), token.getColumNumber(), target, expression);
     }
     
-    private static IfStatement parseIfStatement(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
-        Tokenizer.Token token = nextTokens.poll();
+    private IfStatement parseIfStatement(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+        openXml("ifStatement");
+        Tokenizer.Token token = poll(nextTokens);
         assertToken(token, "if");
         
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, "(");
         
         Expression expression = parseExpression(nextTokens);
@@ -385,37 +685,38 @@ public class ClassParser {
         }
         IfStatement ret = new IfStatement(token.getLineNumber(), token.getColumNumber(), expression);
         
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, ")");
         
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, "{");
         
         ret.getIfStatements().addAll(parseStatements(nextTokens));
         
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, "}");
         
         token = nextTokens.peek();
         if (token.getValue().equals("else")) {
             assertToken(token, Tokenizer.Token.Type.keyword);
-            token = nextTokens.poll();
-            token = nextTokens.poll();
+            token = poll(nextTokens);
+            token = poll(nextTokens);
             assertToken(token, "{");
             ret.getElseStatements().addAll(parseStatements(nextTokens));
-            token = nextTokens.poll();
+            token = poll(nextTokens);
             assertToken(token, "}");
         }
+        closeXml("ifStatement");
         
         return ret;
     }
     
-    private static WhileStatement parseWhileStatement(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
-        
-        Tokenizer.Token token = nextTokens.poll();
+    private WhileStatement parseWhileStatement(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+        openXml("whileStatement");
+        Tokenizer.Token token = poll(nextTokens);
         assertToken(token, "while");
         
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, "(");
         
         Expression expression = parseExpression(nextTokens);
@@ -424,42 +725,45 @@ public class ClassParser {
         }
         WhileStatement ret = new WhileStatement(token.getLineNumber(), token.getColumNumber(), expression);
         
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, ")");
         
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, "{");
         
         ret.getStatements().addAll(parseStatements(nextTokens));
         
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, "}");
+        closeXml("whileStatement");
         
         return ret;
     }
     
-    private static ReturnStatement parseReturnStatement(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
-        Tokenizer.Token token = nextTokens.poll();
+    private ReturnStatement parseReturnStatement(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+        openXml("returnStatement");
+        Tokenizer.Token token = poll(nextTokens);
         assertToken(token, "return");
         
         ReturnStatement ret = new ReturnStatement(token.getLineNumber(), token.getColumNumber(), parseExpression(nextTokens));
         
-        token = nextTokens.poll();
-        assertToken(token, ";");
+        token = expect(nextTokens, ";");
+        closeXml("returnStatement");
         
         return ret;
     }
     
-    private static DoStatement parseDoStatement(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
-        Tokenizer.Token token = nextTokens.poll();
+    private DoStatement parseDoStatement(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+        openXml("doStatement");
+        Tokenizer.Token token = poll(nextTokens);
         assertToken(token, "do");
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         Tokenizer.Token nextToken = nextTokens.peek();
         String target;
         if (nextToken.getType() == Tokenizer.Token.Type.symbol && nextToken.getValue().equals(".")) {
-            nextTokens.poll();
+            poll(nextTokens);
             target = token.getValue();
-            token = nextTokens.poll();
+            token = poll(nextTokens);
         } else {
             target = null;
         }
@@ -468,30 +772,31 @@ public class ClassParser {
             throw new CompilerException("Subroutine name must start with a lowercase letter", token.getLineNumber(), token.getColumNumber());
         }
         String name = token.getValue();
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, "(");
         
         SubroutineCall action = new SubroutineCall(token.getLineNumber(), token.getColumNumber(), target, name);
         action.getArguments().addAll(parseExpressionList(nextTokens));
         
-        token = nextTokens.poll();
+        token = poll(nextTokens);
         assertToken(token, ")");
         
-        token = nextTokens.poll();
-        assertToken(token, ";");
+        token = expect(nextTokens, ";");
+        closeXml("doStatement");
         
         return new DoStatement(token.getLineNumber(), token.getColumNumber(), action);
     }
     
-    private static List<Expression> parseExpressionList(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
+    private List<Expression> parseExpressionList(Tokenizer.TokenizerIterator nextTokens) throws CompilerException {
         int i = 0;
         Tokenizer.Token token = null;
-        List<Expression> ret = new LinkedList<>();
+        List<Expression> ret = new ArrayList<>();
+        openXml("expressionList");
         while (true) {
             if (i > 0) {
                 token = nextTokens.peek();
                 if (token.getType() == Tokenizer.Token.Type.symbol && token.getValue().equals(",")) {
-                    nextTokens.poll();
+                    poll(nextTokens);
                 } else {
                     break;
                 }
@@ -507,6 +812,7 @@ public class ClassParser {
             ret.add(expression);
             i++;
         }
+        closeXml("expressionList");
         return ret;
     }
     
@@ -536,6 +842,16 @@ public class ClassParser {
         }
     }
     
+    /**
+     * Consumes the expected token. A different token is not consumed, so that
+     * a missing statement terminator before a '}' does not make the recovery
+     * skip the end of the block.
+     */
+    private Tokenizer.Token expect(Tokenizer.TokenizerIterator nextTokens, String value) throws CompilerException {
+        assertToken(nextTokens.peek(), value);
+        return poll(nextTokens);
+    }
+    
     private static void assertToken(Tokenizer.Token token, Tokenizer.Token.Type type) throws CompilerException {
         if (token.getType() != type) {
             throw new CompilerException("Expected token of type " + type + " but found '" + token.getValue() + "'", token.getLineNumber(), token.getColumNumber());
@@ -578,6 +894,23 @@ public class ClassParser {
         System.out.println(cp.getParsedClass());
     }
     
+    /**
+     * Consumer of the elements parsed in event-driven mode.
+     */
+    public interface Listener {
+
+        /**
+         * Called once the class header and its variables are parsed, before
+         * its subroutines.
+         */
+        void onClass(JackClass clazz) throws CompilerException;
+
+        /**
+         * Called for each subroutine once it is completely parsed.
+         */
+        void onSubroutine(Subroutine subroutine) throws CompilerException;
+    }
+
     public abstract static class ParserNode {
         
         private final String name;
@@ -599,7 +932,18 @@ public class ClassParser {
             return toXml(0);
         }
         
-        public abstract String toXml(int ident);
+        public final String toXml(int ident) {
+            StringWriter sw = new StringWriter();
+            try {
+                writeXml(new XmlWriter(sw, "\t", false, ident));
+            } catch (IOException ex) {
+                throw new AssertionError(ex);
+            }
+            sw.getBuffer().setLength(sw.getBuffer().length() - 1); // trailing new line
+            return sw.toString();
+        }
+        
+        public abstract void writeXml(XmlWriter xml) throws IOException;
     }
     
     public static class CompositeNode extends ParserNode {
@@ -637,19 +981,12 @@ public class ClassParser {
         }
         
         @Override
-        public String toXml(int ident) {
-            StringBuilder identation = new StringBuilder();
-            for (int i = 0; i < ident; i++) {
-                identation.append("\t");
-            }
-            StringBuilder sb = new StringBuilder(identation).append("<").append(getName()).append(">");
+        public void writeXml(XmlWriter xml) throws IOException {
+            xml.open(getName());
             for (ParserNode child : children) {
-                sb.append("\n");
-                sb.append(child.toXml(ident + 1));
+                child.writeXml(xml);
             }
-            sb.append("\n");
-            sb.append(identation).append("</").append(getName()).append(">");
-            return sb.toString();
+            xml.close(getName());
         }
     }
     
@@ -673,12 +1010,8 @@ public class ClassParser {
         }
         
         @Override
-        public String toXml(int ident) {
-            StringBuilder identation = new StringBuilder();
-            for (int i = 0; i < ident; i++) {
-                identation.append("\t");
-            }
-            return identation + token.toXml();
+        public void writeXml(XmlWriter xml) throws IOException {
+            token.writeXml(xml);
         }
         
         public String getValue() {
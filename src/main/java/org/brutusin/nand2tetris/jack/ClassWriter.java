@@ -17,8 +17,19 @@ package org.brutusin.nand2tetris.jack;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.brutusin.nand2tetris.jack.model.Declaration;
 import org.brutusin.nand2tetris.jack.model.DoStatement;
 import org.brutusin.nand2tetris.jack.model.Expression;
@@ -27,27 +38,229 @@ import org.brutusin.nand2tetris.jack.model.JackClass;
 import org.brutusin.nand2tetris.jack.model.LetStatement;
 import org.brutusin.nand2tetris.jack.model.ReturnStatement;
 import org.brutusin.nand2tetris.jack.model.Statement;
+import org.brutusin.nand2tetris.jack.model.StatementVisitor;
 import org.brutusin.nand2tetris.jack.model.Subroutine;
 import org.brutusin.nand2tetris.jack.model.SubroutineCall;
 import org.brutusin.nand2tetris.jack.model.Term;
+import org.brutusin.nand2tetris.jack.model.TermVisitor;
 import org.brutusin.nand2tetris.jack.model.WhileStatement;
 
 /**
+ * VM code generator.
+ * <p>
+ * Optimization levels: at level 0 every statement is translated on its own,
+ * as in the nand2tetris reference compiler. Level 1 (the default) lowers the
+ * conditions of <code>if</code> and <code>while</code> statements to branches:
+ * parentheses, comparisons with zero (<code>x = 0</code>, <code>x = null</code>,
+ * <code>x = false</code>) and <code>~</code> applied to a boolean are folded into
+ * the sense of the jump, and loops are laid out with the test at the bottom
+ * (except those whose condition is neither a boolean nor a negation, that
+ * keep the -1 test of the reference compiler). Loop-invariant sub-expressions
+ * are evaluated once before their loop into extra locals (see
+ * {@link LoopInvariants}), a subroutine returning a call to itself reuses
+ * its frame (see {@link TailCalls}), locals with disjoint live ranges share
+ * frame slots (see {@link Liveness}), array traversals keep their address
+ * in the that pointer (see {@link InductionVariables}), objects that do not
+ * escape are replaced by their fields (see {@link ScalarReplacement}), and
+ * calls to some OS functions are generated inline (see
+ * {@link IntrinsicReport}). Level 2 also unrolls
+ * the loops with a constant trip count, within a code size budget (see
+ * {@link LoopUnrolling}).
  *
  * @author Ignacio del Valle Alles idelvall@brutusin.org
  */
 public class ClassWriter {
 
+    /**
+     * Minimum number of subroutines of a class for them to be generated in
+     * parallel
+     */
+    public static final int PARALLEL_THRESHOLD = 32;
+    public static final int DEFAULT_OPTIMIZATION_LEVEL = 1;
+    /**
+     * Default maximum number of VM instructions the unrolling of a loop may
+     * add, at optimization level 2
+     */
+    public static final int DEFAULT_UNROLL_BUDGET = 64;
+    private static final String ENTRY_LABEL = "ENTRY";
+    /**
+     * OS functions without side effects, that can be moved when their class
+     * is not replaced by a project class
+     */
+    private static final List<String> PURE_OS_FUNCTIONS = Arrays.asList("Math.abs", "Math.min", "Math.max");
+    /**
+     * OS functions generated inline when their class is not replaced by a
+     * project class
+     */
+    private static final List<String> INTRINSIC_OS_FUNCTIONS = Arrays.asList("Math.abs", "Math.min", "Math.max", "Memory.peek", "Memory.poke");
+    private static final String INTRINSIC_LABEL = "INTRINSIC_";
+
     private final JackClass clazz;
     private final StringBuilder code;
-    private final SymbolTable classSymTable = new SymbolTable();
+    private final SymbolTable classSymTable;
+    private final SymbolTable subroutineSymTable;
+    private final Profiler profiler;
+    private final List<CompilerException> errors;
+    private final SignatureIndex index;
+    private final int optimizationLevel;
+    private final int unrollBudget;
+    private final int parallelThreshold;
+    private final Set<String> pureRoutines;
+    private final Set<String> intrinsicRoutines;
+    private final Generator generator = new Generator();
+    private final Map<Term, LoopInvariants.Hoist> hoisted = new IdentityHashMap<>();
+    private final FrameReport frames = new FrameReport();
+    private final IntrinsicReport intrinsics = new IntrinsicReport();
+    private final Set<String> inlinedClasses = new TreeSet<>();
 
     private int labelCounter;
+    private int intrinsicLabelCounter;
+    private Subroutine currentSubroutine;
+    private int entryCounterIndex;
+    private int loopCounterIndex;
+    private LoopInvariants invariants;
+    private int tempBase;
+    private TailCalls tailCalls;
+    private Liveness liveness;
+    private InductionVariables inductions;
+    private InductionVariables.Reduction reduction;
+    private LoopUnrolling unrollings;
+    private ScalarReplacement scalars;
+    private int scalarBase;
+    private LoopUnrolling.Unrolling unrolling;
+    private int unrolledValue;
 
     public ClassWriter(JackClass clazz) throws CompilerException {
+        this(clazz, null, null, null, null);
+    }
+
+    /**
+     * @param clazz class to compile
+     * @param profiler if not null, subroutine entries (and loop back-edges if
+     * enabled) are instrumented with counters registered in this profiler
+     * @param errors if not null, semantic errors are added to this list and
+     * code generation goes on, otherwise the first error is thrown
+     * @param index if not null, subroutine calls are validated against the
+     * signatures of this index (existence, number of arguments and kind)
+     * @param configuration context to take the optimization level and unroll
+     * budget from, or <code>null</code> for the defaults. The reports of the
+     * context are not filled, see {@link #getFrameReport()} and
+     * {@link #getIntrinsicReport()}
+     * @throws CompilerException
+     */
+    public ClassWriter(JackClass clazz, Profiler profiler, List<CompilerException> errors, SignatureIndex index, CompilationContext configuration) throws CompilerException {
+        this(clazz, profiler, errors, index, configuration, new StringBuilder(), new SymbolTable(new SymbolTable()));
+    }
+
+    /**
+     * Constructor reusing the code buffer and symbol tables, that are cleared
+     * before being used.
+     *
+     * @param subroutineSymTable table for the subroutine scopes, chained to
+     * the one for the class scope
+     */
+    ClassWriter(JackClass clazz, Profiler profiler, List<CompilerException> errors, SignatureIndex index, CompilationContext configuration, StringBuilder code, SymbolTable subroutineSymTable) throws CompilerException {
+        this(clazz, profiler, errors, index, configuration, code, subroutineSymTable, true);
+    }
+
+    /**
+     * @param process whether to generate the code of the class, otherwise
+     * nothing is processed
+     */
+    private ClassWriter(JackClass clazz, Profiler profiler, List<CompilerException> errors, SignatureIndex index, CompilationContext configuration, StringBuilder code, SymbolTable subroutineSymTable, boolean process) throws CompilerException {
         this.clazz = clazz;
+        this.code = code;
+        this.classSymTable = subroutineSymTable.getParent();
+        this.subroutineSymTable = subroutineSymTable;
+        code.setLength(0);
+        classSymTable.clear();
+        this.profiler = profiler;
+        this.errors = errors;
+        this.index = index;
+        this.optimizationLevel = configuration == null ? DEFAULT_OPTIMIZATION_LEVEL : configuration.getOptimizationLevel();
+        this.unrollBudget = configuration == null ? DEFAULT_UNROLL_BUDGET : configuration.getUnrollBudget();
+        this.parallelThreshold = configuration == null ? getDefaultParallelThreshold() : configuration.getParallelThreshold();
+        this.pureRoutines = osRoutines(index, PURE_OS_FUNCTIONS);
+        this.intrinsicRoutines = optimizationLevel > 0 ? osRoutines(index, INTRINSIC_OS_FUNCTIONS) : Collections.<String>emptySet();
+        if (process) {
+            this.processClass(clazz);
+        }
+    }
+
+    /**
+     * Creates a writer for a single subroutine of the parent class, with its
+     * own code buffer, subroutine table and error list.
+     *
+     * @param labelBase first label number of the subroutine
+     */
+    private ClassWriter(ClassWriter parent, int labelBase) {
+        this.clazz = parent.clazz;
         this.code = new StringBuilder();
-        this.processClass(clazz);
+        this.classSymTable = parent.classSymTable;
+        this.subroutineSymTable = new SymbolTable(parent.classSymTable);
+        this.profiler = parent.profiler;
+        this.errors = parent.errors == null ? null : new ArrayList<CompilerException>();
+        this.index = parent.index;
+        this.optimizationLevel = parent.optimizationLevel;
+        this.unrollBudget = parent.unrollBudget;
+        this.parallelThreshold = parent.parallelThreshold;
+        this.pureRoutines = parent.pureRoutines;
+        this.intrinsicRoutines = parent.intrinsicRoutines;
+        this.labelCounter = labelBase;
+        this.entryCounterIndex = -1;
+        this.loopCounterIndex = -1;
+    }
+
+    /**
+     * @return {@link #PARALLEL_THRESHOLD} if the common fork-join pool has
+     * more than one thread, otherwise no class is generated in parallel
+     */
+    static int getDefaultParallelThreshold() {
+        return ForkJoinPool.getCommonPoolParallelism() > 1 ? PARALLEL_THRESHOLD : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the OS functions of the list whose class is not replaced, none
+     * if there is no index telling whether the OS classes are replaced
+     */
+    private static Set<String> osRoutines(SignatureIndex index, List<String> names) {
+        if (index == null) {
+            return Collections.emptySet();
+        }
+        Set<String> ret = new HashSet<>();
+        for (String name : names) {
+            if (index.isOsClass(name.substring(0, name.indexOf('.')))) {
+                ret.add(name);
+            }
+        }
+        return ret;
+    }
+
+    public String getCode() {
+        return code.toString();
+    }
+
+    /**
+     * @return the frame sizes of the subroutines generated
+     */
+    public FrameReport getFrameReport() {
+        return frames;
+    }
+
+    /**
+     * @return the OS calls generated inline
+     */
+    public IntrinsicReport getIntrinsicReport() {
+        return intrinsics;
+    }
+
+    /**
+     * @return the classes whose constructors and methods have been generated
+     * inline (see {@link ScalarReplacement}), so that the code has to be
+     * generated again when their accessors change
+     */
+    public Set<String> getInlinedClasses() {
+        return Collections.unmodifiableSet(inlinedClasses);
     }
 
     public void writeCode(OutputStream os) {
@@ -58,23 +271,132 @@ public class ClassWriter {
         }
     }
 
+    private void report(CompilerException ce) throws CompilerException {
+        if (errors == null) {
+            throw ce;
+        }
+        errors.add(ce);
+    }
+
     private void processClass(JackClass clazz) throws CompilerException {
+        processClassDeclarations(clazz);
+        List<Subroutine> subroutines = clazz.getSubroutines();
+        if (subroutines.size() >= parallelThreshold) {
+            processSubroutinesInParallel(subroutines);
+            return;
+        }
+        for (Subroutine subroutine : subroutines) {
+            entryCounterIndex = -1;
+            loopCounterIndex = -1;
+            processSubroutine(subroutine);
+        }
+    }
+
+    private void processClassDeclarations(JackClass clazz) throws CompilerException {
         List<Declaration> declarations = clazz.getDeclarations();
         for (Declaration declaration : declarations) {
             try {
                 classSymTable.add(declaration);
             } catch (SymbolTable.AlreadyRegisteredException ex) {
-                throw new CompilerException("Invalid declaration. Identifier '" + declaration.getName() + "' is already in use", declaration.getLineNumber(), declaration.getColumnNumber());
+                report(new CompilerException("Invalid declaration. Identifier '" + declaration.getName() + "' is already in use", declaration.getLineNumber(), declaration.getColumnNumber()));
             }
         }
-        List<Subroutine> subroutines = clazz.getSubroutines();
-        for (Subroutine subroutine : subroutines) {
-            processSubroutine(subroutine);
+    }
+
+    /**
+     * Generates the subroutines in parallel, in the common fork-join pool. The
+     * label ranges and profiler counters of the subroutines are assigned up
+     * front in declaration order, and their code and errors are concatenated
+     * in that order, so the output is the same as the sequential one.
+     */
+    private void processSubroutinesInParallel(List<Subroutine> subroutines) throws CompilerException {
+        final ClassWriter[] workers = new ClassWriter[subroutines.size()];
+        final CompilerException[] failures = new CompilerException[subroutines.size()];
+        List<Callable<Void>> tasks = new ArrayList<>(subroutines.size());
+        int labelBase = labelCounter;
+        int i = 0;
+        for (final Subroutine subroutine : subroutines) {
+            final ClassWriter worker = new ClassWriter(this, labelBase);
+            if (profiler != null) {
+                worker.entryCounterIndex = profiler.register(clazz.getName() + "." + subroutine.getName());
+                if (profiler.isLoops() && containsWhile(subroutine.getStatements())) {
+                    worker.loopCounterIndex = profiler.register(clazz.getName() + "." + subroutine.getName() + "@loops");
+                }
+            }
+            labelBase += countLabels(subroutine.getStatements());
+            workers[i] = worker;
+            final int workerIndex = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        worker.processSubroutine(subroutine);
+                    } catch (CompilerException ce) {
+                        failures[workerIndex] = ce;
+                    }
+                    return null;
+                }
+            });
+            i++;
+        }
+        labelCounter = labelBase;
+        for (Future<Void> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+        for (i = 0; i < workers.length; i++) {
+            if (failures[i] != null) {
+                throw failures[i];
+            }
+            if (errors != null) {
+                errors.addAll(workers[i].errors);
+            }
+            frames.addAll(workers[i].frames);
+            intrinsics.addAll(workers[i].intrinsics);
+            inlinedClasses.addAll(workers[i].inlinedClasses);
+            code.append(workers[i].code);
         }
     }
 
+    /**
+     * @return the number of labels ids taken by the statements
+     */
+    private static int countLabels(List<Statement> statements) {
+        int ret = 0;
+        for (Statement statement : statements) {
+            if (statement instanceof IfStatement) {
+                IfStatement ifStatement = (IfStatement) statement;
+                ret += 1 + countLabels(ifStatement.getIfStatements()) + countLabels(ifStatement.getElseStatements());
+            } else if (statement instanceof WhileStatement) {
+                ret += 1 + countLabels(((WhileStatement) statement).getStatements());
+            }
+        }
+        return ret;
+    }
+
+    private static boolean containsWhile(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement instanceof WhileStatement) {
+                return true;
+            } else if (statement instanceof IfStatement) {
+                IfStatement ifStatement = (IfStatement) statement;
+                if (containsWhile(ifStatement.getIfStatements()) || containsWhile(ifStatement.getElseStatements())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private void processSubroutine(Subroutine subroutine) throws CompilerException {
-        SymbolTable st = new SymbolTable();
+        SymbolTable st = subroutineSymTable;
+        st.clear();
         if (subroutine.getType() == Subroutine.Type.method) {
             try {
                 st.add(new Declaration(subroutine.getLineNumber(), subroutine.getColumnNumber(), clazz.getName(), "this", Declaration.Scope.argument));
@@ -91,11 +413,44 @@ public class ClassWriter {
             try {
                 st.add(declaration);
             } catch (SymbolTable.AlreadyRegisteredException ex) {
-                throw new CompilerException("Invalid parameter name. Identifier '" + declaration.getName() + "' is already in use", declaration.getLineNumber(), declaration.getColumnNumber());
+                report(new CompilerException("Invalid parameter name. Identifier '" + declaration.getName() + "' is already in use", declaration.getLineNumber(), declaration.getColumnNumber()));
+            }
+        }
+        int frameSize = varCount;
+        intrinsicLabelCounter = 0;
+        invariants = null;
+        tailCalls = null;
+        liveness = null;
+        inductions = null;
+        unrollings = null;
+        scalars = null;
+        if (optimizationLevel > 0) {
+            if (index != null && profiler == null) { // inlined accessors are not profiled
+                scalars = new ScalarReplacement(subroutine, clazz.getName(), st, index);
+                inlinedClasses.addAll(scalars.getClasses());
+            }
+            liveness = new Liveness(subroutine, st, scalars);
+            invariants = new LoopInvariants(subroutine, st, pureRoutines, liveness);
+            tailCalls = new TailCalls(subroutine, clazz.getName(), st);
+            if (profiler == null || !profiler.isLoops()) { // loop counters count iterations
+                inductions = new InductionVariables(subroutine, st, liveness);
+                if (optimizationLevel > 1) {
+                    unrollings = new LoopUnrolling(subroutine, st, unrollBudget);
+                }
             }
+            tempBase = liveness.getSlotCount();
+            scalarBase = tempBase + invariants.getTempCount();
+            int scalarCount = scalars == null ? 0 : scalars.getTempCount();
+            frameSize += invariants.getTempCount() + scalarCount;
+            varCount = scalarBase + scalarCount;
         }
+        frames.add(clazz.getName() + "." + subroutine.getName(), frameSize, varCount);
         code.append("function").append(" ").append(clazz.getName()).append(".").append(subroutine.getName()).append(" ").append(varCount);
         code.append("\n");
+        if (tailCalls != null && !tailCalls.isEmpty()) {
+            code.append("label ").append(ENTRY_LABEL);
+            code.append("\n");
+        }
         if (subroutine.getType() == Subroutine.Type.constructor) {
             code.append("push constant ").append(classSymTable.count(Declaration.Scope.field));
             code.append("\n");
@@ -109,44 +464,137 @@ public class ClassWriter {
             code.append("pop pointer 0");
             code.append("\n");
         }
-        processStatements(subroutine.getStatements(), st);
+        this.currentSubroutine = subroutine;
+        if (profiler != null) {
+            if (entryCounterIndex < 0) {
+                entryCounterIndex = profiler.register(clazz.getName() + "." + subroutine.getName());
+            }
+            if (clazz.getName().equals("Main") && subroutine.getName().equals("main") && subroutine.getType() == Subroutine.Type.function) {
+                code.append("call ").append(Profiler.CLASS_NAME).append(".init 0");
+                code.append("\n");
+                code.append("pop temp 0");
+                code.append("\n");
+            }
+            processCounterIncrement(entryCounterIndex);
+        }
+        processStatements(subroutine.getStatements());
     }
 
-    private void processStatements(List<Statement> statements, SymbolTable st) throws CompilerException {
+    private void processCounterIncrement(int index) {
+        code.append("push constant ").append(index);
+        code.append("\n");
+        code.append("call ").append(Profiler.CLASS_NAME).append(".count 1");
+        code.append("\n");
+        code.append("pop temp 0");
+        code.append("\n");
+    }
+
+    private void processStatements(List<Statement> statements) throws CompilerException {
         for (Statement statement : statements) {
-            if (statement instanceof DoStatement) {
-                processDoStatement((DoStatement) statement, st);
-            } else if (statement instanceof ReturnStatement) {
-                processReturnStatement((ReturnStatement) statement, st);
-            } else if (statement instanceof LetStatement) {
-                processLetStatement((LetStatement) statement, st);
-            } else if (statement instanceof IfStatement) {
-                processIfStatement((IfStatement) statement, st);
-            } else if (statement instanceof WhileStatement) {
-                processWhileStatement((WhileStatement) statement, st);
-            }
+            statement.accept(generator);
         }
     }
 
-    private void processReturnStatement(ReturnStatement statement, SymbolTable st) throws CompilerException {
+    private void processReturnStatement(ReturnStatement statement) throws CompilerException {
+        if (tailCalls != null) {
+            SubroutineCall call = tailCalls.get(statement);
+            if (call != null) {
+                processTailCall(call);
+                return;
+            }
+        }
         Expression exp = statement.getExpression();
         if (exp == null) {
             code.append("push constant 0");
             code.append("\n");
         } else {
-            processExpression(exp, st);
+            processExpression(exp);
         }
         code.append("return");
         code.append("\n");
     }
 
-    private void processDoStatement(DoStatement statement, SymbolTable st) throws CompilerException {
-        processSubroutineCall(statement.getAction(), st);
+    /**
+     * Reuses the frame for a call of the subroutine to itself: the new
+     * arguments (and the new <code>this</code> of a method called on a
+     * variable) are evaluated, stored over the current ones, and the code
+     * jumps back to the entry. Arguments passed unchanged are not copied.
+     */
+    private void processTailCall(SubroutineCall call) throws CompilerException {
+        int offset = currentSubroutine.getType() == Subroutine.Type.method ? 1 : 0;
+        if (index != null) {
+            validateCall(call, clazz.getName(), offset == 1);
+        }
+        SymbolTable.SymEntry target = offset == 1 && call.getTarget() != null ? subroutineSymTable.getEntry(call.getTarget()) : null;
+        if (target != null) {
+            code.append("push ").append(target.getDeclaration().getScope()).append(" ").append(getSlot(target));
+            code.append("\n");
+        }
+        List<Expression> arguments = call.getArguments();
+        boolean[] unchanged = new boolean[arguments.size()];
+        for (int i = 0; i < arguments.size(); i++) {
+            unchanged[i] = isArgument(arguments.get(i), offset + i);
+            if (!unchanged[i]) {
+                processExpression(arguments.get(i));
+            }
+        }
+        for (int i = arguments.size() - 1; i >= 0; i--) {
+            if (!unchanged[i]) {
+                code.append("pop argument ").append(offset + i);
+                code.append("\n");
+            }
+        }
+        if (target != null) {
+            code.append("pop argument 0");
+            code.append("\n");
+        }
+        for (SymbolTable.SymEntry entry : tailCalls.getLocalsToReset()) {
+            if (getSlot(entry) < 0) {
+                continue;
+            }
+            code.append("push constant 0");
+            code.append("\n");
+            code.append("pop local ").append(getSlot(entry));
+            code.append("\n");
+        }
+        code.append("goto ").append(ENTRY_LABEL);
+        code.append("\n");
+    }
+
+    /**
+     * @return whether the expression is just the argument of the given index
+     */
+    private boolean isArgument(Expression exp, int argumentIndex) {
+        Term term = exp.getTerms().size() == 1 ? exp.getTerms().get(0) : null;
+        if (!(term instanceof Term.Reference) || term instanceof Term.ArrayReference) {
+            return false;
+        }
+        SymbolTable.SymEntry entry = subroutineSymTable.getEntry(((Term.Reference) term).getVarName());
+        return entry != null && entry.getDeclaration().getScope() == Declaration.Scope.argument && entry.getIndex() == argumentIndex
+                && (reduction == null || entry != reduction.getVariable());
+    }
+
+    private void processDoStatement(DoStatement statement) throws CompilerException {
+        if (scalars != null && scalars.isReplaced(statement.getAction().getTarget())) {
+            processScalarCall(statement.getAction().getTarget(), statement.getAction(), false);
+            return;
+        }
+        if (processIntrinsic(statement.getAction(), false)) {
+            return;
+        }
+        processSubroutineCall(statement.getAction());
         code.append("pop temp 0");
         code.append("\n");
     }
 
-    private void processSubroutineCall(SubroutineCall call, SymbolTable st) throws CompilerException {
+    private void processSubroutineCall(SubroutineCall call) throws CompilerException {
+        if (scalars != null && scalars.isReplaced(call.getTarget())) {
+            processScalarCall(call.getTarget(), call, true);
+            return;
+        }
+        if (processIntrinsic(call, true)) {
+            return;
+        }
         List<Expression> arguments = call.getArguments();
         String target = call.getTarget();
         int offset = 0;
@@ -156,42 +604,270 @@ public class ClassWriter {
             code.append("\n");
             offset = 1;
         } else {
-            SymbolTable.SymEntry entry = st.getEntry(target);
-            if (entry == null) {
-                entry = classSymTable.getEntry(target);
-            }
+            SymbolTable.SymEntry entry = subroutineSymTable.getEntry(target);
             if (entry != null) { // method invocation to other object
                 target = entry.getDeclaration().getType();
-                code.append("push ").append(entry.getDeclaration().getScope()).append(" ").append(entry.getIndex());
+                code.append("push ").append(entry.getDeclaration().getScope()).append(" ").append(getSlot(entry));
                 code.append("\n");
                 offset = 1;
             }
         }
+        if (index != null) {
+            validateCall(call, target, offset == 1);
+        }
         for (Expression argument : arguments) {
-            processExpression(argument, st);
+            processExpression(argument);
         }
-        //TODO validate num arguments
         code.append("call").append(" ").append(target).append(".").append(call.getName()).append(" ").append((arguments.size() + offset));
         code.append("\n");
     }
 
-    private void processLetStatement(LetStatement statement, SymbolTable st) throws CompilerException {
-        processExpression(statement.getExpression(), st);
-        String varName = statement.getTarget().getVarName();
-        SymbolTable.SymEntry entry = st.getEntry(varName);
-        if (entry == null) {
-            entry = classSymTable.getEntry(varName);
+    /**
+     * Generates inline the accessor called on (or constructing) a variable
+     * replaced by its fields: the arguments are evaluated in order and stored
+     * in the fields they end up assigned to, then the constants are stored.
+     * Fields a constructor does not assign are zeroed, since each
+     * construction stands for a new object.
+     *
+     * @param variable replaced variable
+     * @param value whether to push the value of the call
+     */
+    private void processScalarCall(String variable, SubroutineCall call, boolean value) throws CompilerException {
+        SignatureIndex.FieldAccess access = scalars.getAccess(call);
+        boolean construction = !variable.equals(call.getTarget());
+        int[] assignments = new int[scalars.getFieldCount(variable)];
+        Arrays.fill(assignments, -1);
+        for (int i = 0; i < access.getAssignmentCount(); i++) {
+            assignments[access.getField(i)] = i;
+        }
+        List<Expression> arguments = call.getArguments();
+        int[] argumentFields = new int[arguments.size()];
+        Arrays.fill(argumentFields, -1);
+        for (int field = assignments.length - 1; field >= 0; field--) {
+            if (assignments[field] >= 0 && access.getArgument(assignments[field]) >= 0) {
+                argumentFields[access.getArgument(assignments[field])] = field;
+            }
+        }
+        for (Expression argument : arguments) {
+            processExpression(argument);
+        }
+        for (int i = arguments.size() - 1; i >= 0; i--) {
+            if (argumentFields[i] < 0) {
+                code.append("pop temp 0");
+            } else {
+                code.append("pop local ").append(scalarBase + scalars.getTemp(variable, argumentFields[i]));
+            }
+            code.append("\n");
+        }
+        for (int field = 0; field < assignments.length; field++) {
+            int assignment = assignments[field];
+            if (assignment >= 0 && access.getArgument(assignment) >= 0) {
+                int source = argumentFields[access.getArgument(assignment)];
+                if (source == field) {
+                    continue;
+                }
+                code.append("push local ").append(scalarBase + scalars.getTemp(variable, source));
+                code.append("\n");
+            } else if (assignment >= 0) {
+                processIntegerValue(access.getConstant(assignment));
+            } else if (construction) {
+                processIntegerValue(0);
+            } else {
+                continue;
+            }
+            code.append("pop local ").append(scalarBase + scalars.getTemp(variable, field));
+            code.append("\n");
         }
+        if (value) {
+            if (access.getReturnedField() >= 0) {
+                code.append("push local ").append(scalarBase + scalars.getTemp(variable, access.getReturnedField()));
+            } else {
+                code.append("push constant 0");
+            }
+            code.append("\n");
+        }
+    }
+
+    /**
+     * Generates inline a call to an OS function of the intrinsics table:
+     * <code>Memory.peek</code> and <code>Memory.poke</code> access the
+     * address through the that pointer (so not in a loop that keeps an
+     * induction variable there), and <code>Math.abs</code>,
+     * <code>Math.min</code> and <code>Math.max</code> keep their arguments in
+     * the temp segment and branch on their comparison.
+     *
+     * @param value whether to push the value of the call
+     * @return false if the call is not to an intrinsic
+     */
+    private boolean processIntrinsic(SubroutineCall call, boolean value) throws CompilerException {
+        String name = call.getTarget() + "." + call.getName();
+        if (call.getTarget() == null || !intrinsicRoutines.contains(name) || subroutineSymTable.getEntry(call.getTarget()) != null
+                || call.getArguments().size() != index.getSignature(call.getTarget(), call.getName()).getParameterCount()
+                || reduction != null && call.getTarget().equals("Memory")) {
+            return false;
+        }
+        validateCall(call, call.getTarget(), false);
+        List<Expression> arguments = call.getArguments();
+        if (name.equals("Memory.poke")) {
+            processExpression(arguments.get(0));
+            if (isSimple(arguments.get(1))) {
+                code.append("pop pointer 1");
+                code.append("\n");
+                processExpression(arguments.get(1));
+            } else {
+                processExpression(arguments.get(1));
+                code.append("pop temp 0");
+                code.append("\n");
+                code.append("pop pointer 1");
+                code.append("\n");
+                code.append("push temp 0");
+                code.append("\n");
+            }
+            code.append("pop that 0");
+            code.append("\n");
+            if (value) {
+                code.append("push constant 0");
+                code.append("\n");
+            }
+            intrinsics.add(name);
+            return true;
+        }
+        if (name.equals("Memory.peek")) {
+            processExpression(arguments.get(0));
+            code.append("pop pointer 1");
+            code.append("\n");
+            code.append("push that 0");
+            code.append("\n");
+        } else if (name.equals("Math.abs")) {
+            String label = INTRINSIC_LABEL + intrinsicLabelCounter++;
+            processExpression(arguments.get(0));
+            code.append("pop temp 1");
+            code.append("\n");
+            code.append("push temp 1");
+            code.append("\n");
+            code.append("push temp 1");
+            code.append("\n");
+            code.append("push constant 0");
+            code.append("\n");
+            code.append("lt");
+            code.append("\n");
+            code.append("not");
+            code.append("\n");
+            code.append("if-goto ").append(label);
+            code.append("\n");
+            code.append("neg");
+            code.append("\n");
+            code.append("label ").append(label);
+            code.append("\n");
+        } else {
+            // the first argument, unless it is greater (min) or lower (max) than the second
+            String label = INTRINSIC_LABEL + intrinsicLabelCounter++;
+            processExpression(arguments.get(0));
+            processExpression(arguments.get(1));
+            code.append("pop temp 2");
+            code.append("\n");
+            code.append("pop temp 1");
+            code.append("\n");
+            code.append("push temp 1");
+            code.append("\n");
+            code.append("push temp 1");
+            code.append("\n");
+            code.append("push temp 2");
+            code.append("\n");
+            code.append(name.equals("Math.min") ? "gt" : "lt");
+            code.append("\n");
+            code.append("not");
+            code.append("\n");
+            code.append("if-goto ").append(label);
+            code.append("\n");
+            code.append("pop temp 0");
+            code.append("\n");
+            code.append("push temp 2");
+            code.append("\n");
+            code.append("label ").append(label);
+            code.append("\n");
+        }
+        if (!value) {
+            code.append("pop temp 0");
+            code.append("\n");
+        }
+        intrinsics.add(name);
+        return true;
+    }
+
+    /**
+     * @return whether the expression is a constant or a variable, that can be
+     * pushed without using the that pointer
+     */
+    private static boolean isSimple(Expression exp) {
+        if (exp.getTerms().size() != 1) {
+            return false;
+        }
+        Term term = exp.getTerms().get(0);
+        return term instanceof Term.Constant || term instanceof Term.Reference && !(term instanceof Term.ArrayReference);
+    }
+
+    private void validateCall(SubroutineCall call, String className, boolean methodCall) throws CompilerException {
+        String name = className + "." + call.getName();
+        if (!index.containsClass(className)) {
+            if (className.equals("int") || className.equals("char") || className.equals("boolean")) {
+                report(new CompilerException("Cannot call subroutine '" + call.getName() + "' on variable '" + call.getTarget() + "' of type " + className, call.getLineNumber(), call.getColumnNumber()));
+            } else {
+                report(new CompilerException("Class not found '" + className + "'", call.getLineNumber(), call.getColumnNumber()));
+            }
+            return;
+        }
+        SignatureIndex.Signature signature = index.getSignature(className, call.getName());
+        if (signature == null) {
+            report(new CompilerException("Subroutine not found '" + name + "'", call.getLineNumber(), call.getColumnNumber()));
+            return;
+        }
+        if (methodCall && signature.getKind() != Subroutine.Type.method) {
+            report(new CompilerException("Subroutine '" + name + "' is a " + signature.getKind() + " and cannot be called as a method", call.getLineNumber(), call.getColumnNumber()));
+        } else if (!methodCall && signature.getKind() == Subroutine.Type.method) {
+            report(new CompilerException("Method '" + name + "' cannot be called as a function", call.getLineNumber(), call.getColumnNumber()));
+        } else if (call.getTarget() == null && currentSubroutine.getType() == Subroutine.Type.function) {
+            report(new CompilerException("Method '" + name + "' cannot be called from function '" + currentSubroutine.getName() + "'", call.getLineNumber(), call.getColumnNumber()));
+        }
+        if (call.getArguments().size() != signature.getParameterCount()) {
+            report(new CompilerException("Subroutine '" + name + "' expects " + signature.getParameterCount() + " arguments but " + call.getArguments().size() + " were given", call.getLineNumber(), call.getColumnNumber()));
+        }
+    }
+
+    private void processLetStatement(LetStatement statement) throws CompilerException {
+        if (unrolling != null && statement == unrolling.getStep()) {
+            unrolledValue += unrolling.getIncrement();
+            return;
+        }
+        if (scalars != null && !(statement.getTarget() instanceof Term.ArrayReference) && scalars.isReplaced(statement.getTarget().getVarName())) {
+            processScalarCall(statement.getTarget().getVarName(), (SubroutineCall) statement.getExpression().getTerms().get(0), false);
+            return;
+        }
+        if (reduction != null && processReducedLetStatement(statement)) {
+            return;
+        }
+        if (liveness != null && liveness.isDeadStore(statement)) {
+            if (Liveness.hasEffects(statement.getExpression())) {
+                processExpression(statement.getExpression());
+                code.append("pop temp 0");
+                code.append("\n");
+            }
+            return;
+        }
+        processExpression(statement.getExpression());
+        String varName = statement.getTarget().getVarName();
+        SymbolTable.SymEntry entry = subroutineSymTable.getEntry(varName);
         if (entry == null) {
-            throw new CompilerException("Variable not declared ' " + varName + "'", statement.getTarget().getLineNumber(), statement.getTarget().getColumnNumber());
+            report(new CompilerException("Variable not declared ' " + varName + "'", statement.getTarget().getLineNumber(), statement.getTarget().getColumnNumber()));
+            return;
         }
         Term.Reference target = statement.getTarget();
         if (target instanceof Term.ArrayReference) {
             Term.ArrayReference arrayRef = (Term.ArrayReference) target;
-            code.append("push ").append(entry.getDeclaration().getScope()).append(" ").append(entry.getIndex());
+            code.append("push ").append(entry.getDeclaration().getScope()).append(" ").append(getSlot(entry));
             code.append("\n");
             Expression indexExp = arrayRef.getIndex();
-            processExpression(indexExp, st);
+            processExpression(indexExp);
             code.append("add");
             code.append("\n");
             code.append("pop pointer 1");
@@ -199,52 +875,304 @@ public class ClassWriter {
             code.append("pop that 0");
             code.append("\n");
         } else {
-            code.append("pop ").append(entry.getDeclaration().getScope()).append(" ").append(entry.getIndex());
+            code.append("pop ").append(entry.getDeclaration().getScope()).append(" ").append(getSlot(entry));
             code.append("\n");
         }
     }
 
-    private void processIfStatement(IfStatement statement, SymbolTable st) throws CompilerException {
-        int labelId = labelCounter++;
-        processExpression(statement.getCondition(), st);
-        code.append("if-goto ").append("IF_").append(labelId);
+    /**
+     * Generates the steps of the induction variable being reduced, and the
+     * stores to its array.
+     *
+     * @return false if the statement is not part of the reduction
+     */
+    private boolean processReducedLetStatement(LetStatement statement) throws CompilerException {
+        Integer step = reduction.getStep(statement);
+        if (step != null) {
+            if (step != 0) {
+                code.append("push pointer 1");
+                code.append("\n");
+                code.append("push constant ").append(Math.abs(step));
+                code.append("\n");
+                code.append(step > 0 ? "add" : "sub");
+                code.append("\n");
+                code.append("pop pointer 1");
+                code.append("\n");
+            }
+            return true;
+        }
+        Integer offset = statement.getTarget() instanceof Term.ArrayReference ? reduction.getOffset((Term.ArrayReference) statement.getTarget()) : null;
+        if (offset == null) {
+            return false;
+        }
+        processExpression(statement.getExpression());
+        code.append("pop that ").append(offset);
         code.append("\n");
-        processStatements(statement.getElseStatements(), st);
+        return true;
+    }
+
+    /**
+     * @return the index of the variable in its VM segment, that for locals is
+     * the slot assigned by the liveness analysis
+     */
+    private int getSlot(SymbolTable.SymEntry entry) {
+        if (liveness != null && entry.getDeclaration().getScope() == Declaration.Scope.local) {
+            return liveness.getSlot(entry.getIndex());
+        }
+        return entry.getIndex();
+    }
+
+    private void processIfStatement(IfStatement statement) throws CompilerException {
+        int labelId = labelCounter++;
+        Branch branch = optimizationLevel > 0 ? Branch.of(statement.getCondition()) : new Branch(statement.getCondition(), true);
+        if (!branch.whenNonZero) {
+            // then part first, jumping over it when the operand is not zero
+            processBranch(branch.operand, true, "IF_FALSE_" + labelId);
+            processStatements(statement.getIfStatements());
+            if (statement.getElseStatements().isEmpty()) {
+                code.append("label ").append("IF_FALSE_").append(labelId);
+                code.append("\n");
+                return;
+            }
+            code.append("goto ").append("ENDIF_").append(labelId);
+            code.append("\n");
+            code.append("label ").append("IF_FALSE_").append(labelId);
+            code.append("\n");
+            processStatements(statement.getElseStatements());
+            code.append("label ").append("ENDIF_").append(labelId);
+            code.append("\n");
+            return;
+        }
+        processBranch(branch.operand, true, "IF_" + labelId);
+        processStatements(statement.getElseStatements());
         code.append("goto ").append("ENDIF_").append(labelId);
         code.append("\n");
         code.append("label ").append("IF_").append(labelId);
         code.append("\n");
-        processStatements(statement.getIfStatements(), st);
+        processStatements(statement.getIfStatements());
         code.append("label ").append("ENDIF_").append(labelId);
         code.append("\n");
     }
 
-    private void processWhileStatement(WhileStatement statement, SymbolTable st) throws CompilerException {
+    private void processWhileStatement(WhileStatement statement) throws CompilerException {
+        List<LoopInvariants.Hoist> hoists = invariants == null ? Collections.<LoopInvariants.Hoist>emptyList() : invariants.getHoists(statement);
+        for (LoopInvariants.Hoist hoist : hoists) {
+            if (hoist.getPrefixLength() == 0) {
+                processTerm(hoist.getTerm());
+            } else {
+                Expression exp = (Expression) hoist.getTerm();
+                processTerm(exp.getTerms().get(0));
+                processOperations(exp, 1, hoist.getPrefixLength());
+            }
+            code.append("pop local ").append(tempBase + hoist.getSlot());
+            code.append("\n");
+            hoisted.put(hoist.getTerm(), hoist);
+        }
+        LoopUnrolling.Unrolling loopUnrolling = unrollings == null ? null : unrollings.get(statement);
+        InductionVariables.Reduction loopReduction = loopUnrolling != null || inductions == null || reduction != null ? null : inductions.get(statement);
+        if (loopUnrolling != null) {
+            processUnrolledLoop(statement, loopUnrolling);
+        } else if (loopReduction != null) {
+            processReducedLoop(statement, loopReduction);
+        } else {
+            processLoop(statement);
+        }
+        for (LoopInvariants.Hoist hoist : hoists) {
+            hoisted.remove(hoist.getTerm());
+        }
+    }
+
+    /**
+     * Generates the copies of the body of a loop with a constant trip count.
+     * In a full unrolling the induction variable is replaced by its value in
+     * each copy, and only assigned its final value if read after the loop.
+     * In a partial one the body is repeated the unroll factor times before
+     * each test, and the first test (known to pass) is skipped.
+     */
+    private void processUnrolledLoop(WhileStatement statement, LoopUnrolling.Unrolling loopUnrolling) throws CompilerException {
         int labelId = labelCounter++;
+        if (loopUnrolling.isFull()) {
+            unrolling = loopUnrolling;
+            try {
+                for (int i = 0; i < loopUnrolling.getTripCount(); i++) {
+                    unrolledValue = loopUnrolling.getInitialValue() + i * loopUnrolling.getIncrement();
+                    processStatements(statement.getStatements());
+                }
+            } finally {
+                unrolling = null;
+            }
+            SymbolTable.SymEntry variable = loopUnrolling.getVariable();
+            if (variable.getDeclaration().getScope() == Declaration.Scope.argument || liveness == null || liveness.isLiveAfter(statement, variable.getIndex())) {
+                processIntegerValue(loopUnrolling.getInitialValue() + loopUnrolling.getTripCount() * loopUnrolling.getIncrement());
+                code.append("pop ").append(variable.getDeclaration().getScope()).append(" ").append(getSlot(variable));
+                code.append("\n");
+            }
+            return;
+        }
         code.append("label ").append("WHILE_").append(labelId);
         code.append("\n");
-        processExpression(statement.getCondition(), st);
+        for (int i = 0; i < loopUnrolling.getFactor(); i++) {
+            processStatements(statement.getStatements());
+        }
+        Branch branch = Branch.ofLoop(statement.getCondition());
+        processBranch(branch.operand, branch.whenNonZero, "WHILE_" + labelId);
+    }
+
+    private void processIntegerValue(int value) {
+        code.append("push constant ").append(Math.abs(value));
+        code.append("\n");
+        if (value < 0) {
+            code.append("neg");
+            code.append("\n");
+        }
+    }
+
+    /**
+     * Generates the loop with the address of the induction variable in the
+     * that pointer.
+     */
+    private void processReducedLoop(WhileStatement statement, InductionVariables.Reduction loopReduction) throws CompilerException {
+        SymbolTable.SymEntry base = loopReduction.getBase();
+        SymbolTable.SymEntry variable = loopReduction.getVariable();
+        code.append("push ").append(base.getDeclaration().getScope()).append(" ").append(getSlot(base));
+        code.append("\n");
+        code.append("push ").append(variable.getDeclaration().getScope()).append(" ").append(getSlot(variable));
+        code.append("\n");
+        code.append("add");
+        code.append("\n");
+        code.append("pop pointer 1");
+        code.append("\n");
+        reduction = loopReduction;
+        try {
+            processLoop(statement);
+        } finally {
+            reduction = null;
+        }
+        if (loopReduction.isMaterialized()) {
+            processReducedVariable(base);
+            code.append("pop ").append(variable.getDeclaration().getScope()).append(" ").append(getSlot(variable));
+            code.append("\n");
+        }
+    }
+
+    /**
+     * Pushes the value of a reduced induction variable, the difference
+     * between the that pointer and the array.
+     */
+    private void processReducedVariable(SymbolTable.SymEntry base) {
+        code.append("push pointer 1");
+        code.append("\n");
+        code.append("push ").append(base.getDeclaration().getScope()).append(" ").append(getSlot(base));
+        code.append("\n");
+        code.append("sub");
+        code.append("\n");
+    }
+
+    private void processLoop(WhileStatement statement) throws CompilerException {
+        int labelId = labelCounter++;
+        Branch branch = optimizationLevel > 0 ? Branch.ofLoop(statement.getCondition()) : null;
+        if (branch != null) {
+            processRotatedWhileStatement(statement, branch, labelId);
+            return;
+        }
+        code.append("label ").append("WHILE_").append(labelId);
+        code.append("\n");
+        processExpression(statement.getCondition());
         code.append("not");
         code.append("\n");
         code.append("if-goto ").append("END_WHILE_").append(labelId);
         code.append("\n");
-        processStatements(statement.getStatements(), st);
+        processStatements(statement.getStatements());
+        if (profiler != null && profiler.isLoops()) {
+            if (loopCounterIndex < 0) {
+                loopCounterIndex = profiler.register(clazz.getName() + "." + currentSubroutine.getName() + "@loops");
+            }
+            processCounterIncrement(loopCounterIndex);
+        }
         code.append("goto ").append("WHILE_").append(labelId);
         code.append("\n");
         code.append("label ").append("END_WHILE_").append(labelId);
         code.append("\n");
     }
 
-    private void processExpression(Expression exp, SymbolTable st) throws CompilerException {
-        Iterator<Term> terms = exp.getTerms().iterator();
-        Iterator<Character> operators = exp.getOperators().iterator();
-        Term term = terms.next();
-        processTerm(term, st);
-        while (terms.hasNext()) {
-            term = terms.next();
-            processTerm(term, st);
-            processOperator(operators.next());
+    /**
+     * Generates the loop with the test at the bottom, so that each iteration
+     * takes a single jump.
+     */
+    private void processRotatedWhileStatement(WhileStatement statement, Branch branch, int labelId) throws CompilerException {
+        code.append("goto ").append("WHILE_EXP_").append(labelId);
+        code.append("\n");
+        code.append("label ").append("WHILE_").append(labelId);
+        code.append("\n");
+        processStatements(statement.getStatements());
+        if (profiler != null && profiler.isLoops()) {
+            if (loopCounterIndex < 0) {
+                loopCounterIndex = profiler.register(clazz.getName() + "." + currentSubroutine.getName() + "@loops");
+            }
+            processCounterIncrement(loopCounterIndex);
+        }
+        code.append("label ").append("WHILE_EXP_").append(labelId);
+        code.append("\n");
+        processBranch(branch.operand, branch.whenNonZero, "WHILE_" + labelId);
+    }
+
+    /**
+     * Generates a jump to the label, taken if the value of the term is not
+     * zero (<code>nonZero</code>) or if it is zero (otherwise). Constant
+     * terms are resolved at compile time.
+     */
+    private void processBranch(Term term, boolean nonZero, String label) throws CompilerException {
+        if (optimizationLevel > 0 && term instanceof Term.Constant && Branch.isZero((Term.Constant) term) != null) {
+            if (Branch.isZero((Term.Constant) term) != nonZero) {
+                code.append("goto ").append(label);
+                code.append("\n");
+            }
+            return;
         }
+        processTerm(term);
+        if (!nonZero) {
+            if (Branch.isBoolean(term)) {
+                code.append("not");
+                code.append("\n");
+            } else {
+                code.append("push constant 0");
+                code.append("\n");
+                code.append("eq");
+                code.append("\n");
+            }
+        }
+        code.append("if-goto ").append(label);
+        code.append("\n");
+    }
+
+    private void processExpression(Expression exp) throws CompilerException {
+        LoopInvariants.Hoist hoist = hoisted.isEmpty() ? null : hoisted.get(exp);
+        if (hoist == null) {
+            processTerm(exp.getTerms().get(0));
+            processOperations(exp, 1, exp.getTerms().size());
+            return;
+        }
+        processHoisted(hoist);
+        if (hoist.getPrefixLength() > 0) {
+            processOperations(exp, hoist.getPrefixLength(), exp.getTerms().size());
+        }
+    }
+
+    /**
+     * Applies to the value on the stack the operations of the expression with
+     * the terms in the range.
+     */
+    private void processOperations(Expression exp, int from, int to) throws CompilerException {
+        List<Term> terms = exp.getTerms();
+        for (int i = from; i < to; i++) {
+            processTerm(terms.get(i));
+            processOperator(exp.getOperator(i - 1));
+        }
+    }
+
+    private void processHoisted(LoopInvariants.Hoist hoist) {
+        code.append("push local ").append(tempBase + hoist.getSlot());
+        code.append("\n");
     }
 
     private void processOperator(char operator) throws CompilerException {
@@ -272,81 +1200,373 @@ public class ClassWriter {
         code.append("\n");
     }
 
-    private void processTerm(Term term, SymbolTable st) throws CompilerException {
-        if (term instanceof Term.Constant) {
-            Term.Constant constant = (Term.Constant) term;
-            if (constant.getType() == Term.Constant.Type.integer) {
-                code.append("push constant ").append(constant.getValue());
+    private void processTerm(Term term) throws CompilerException {
+        if (!hoisted.isEmpty()) {
+            LoopInvariants.Hoist hoist = hoisted.get(term);
+            if (hoist != null && hoist.getPrefixLength() == 0) {
+                processHoisted(hoist);
+                return;
+            }
+        }
+        term.accept(generator);
+    }
+
+    private void processConstant(Term.Constant constant) {
+        if (constant.getType() == Term.Constant.Type.integer) {
+            code.append("push constant ").append(constant.getValue());
+            code.append("\n");
+        } else if (constant.getType() == Term.Constant.Type.keyword) {
+            if (constant.getValue().equals("null")) {
+                code.append("push constant 0");
                 code.append("\n");
-            } else if (constant.getType() == Term.Constant.Type.keyword) {
-                if (constant.getValue().equals("null")) {
-                    code.append("push constant 0");
-                    code.append("\n");
-                } else if (constant.getValue().equals("false")) {
-                    code.append("push constant 0");
-                    code.append("\n");
-                } else if (constant.getValue().equals("true")) {
-                    code.append("push constant 1");
-                    code.append("\n");
-                    code.append("neg");
-                    code.append("\n");
-                } else if (constant.getValue().equals("this")) {
-                    code.append("push pointer 0");
-                    code.append("\n");
-                }
-            } else if (constant.getType() == Term.Constant.Type.string) {
-                int length = constant.getValue().length();
-                code.append("push constant ").append(length);
+            } else if (constant.getValue().equals("false")) {
+                code.append("push constant 0");
                 code.append("\n");
-                code.append("call String.new 1");
+            } else if (constant.getValue().equals("true")) {
+                code.append("push constant 1");
                 code.append("\n");
-                for (int i = 0; i < length; i++) {
-                    code.append("push constant ").append(Integer.valueOf(constant.getValue().charAt(i)));
-                    code.append("\n");
-                    code.append("call String.appendChar 2");
+                code.append("neg");
+                code.append("\n");
+            } else if (constant.getValue().equals("this")) {
+                code.append("push pointer 0");
+                code.append("\n");
+            }
+        } else if (constant.getType() == Term.Constant.Type.string) {
+            int length = constant.getValue().length();
+            code.append("push constant ").append(length);
+            code.append("\n");
+            code.append("call String.new 1");
+            code.append("\n");
+            for (int i = 0; i < length; i++) {
+                code.append("push constant ").append(Integer.valueOf(constant.getValue().charAt(i)));
+                code.append("\n");
+                code.append("call String.appendChar 2");
+                code.append("\n");
+            }
+        }
+    }
+
+    private void processUnaryTerm(Term.UnaryTerm unaryTerm) throws CompilerException {
+        char operator = unaryTerm.getOperator();
+        processTerm(unaryTerm.getTerm());
+        if (operator == '~') {
+            code.append("not");
+        } else if (operator == '-') {
+            code.append("neg");
+        }
+        code.append("\n");
+    }
+
+    private void processReference(Term.Reference ref) throws CompilerException {
+        String varName = ref.getVarName();
+        SymbolTable.SymEntry entry = subroutineSymTable.getEntry(varName);
+        if (entry == null) {
+            report(new CompilerException("Variable not declared ' " + varName + "'", ref.getLineNumber(), ref.getColumnNumber()));
+            return;
+        }
+        if (unrolling != null && entry == unrolling.getVariable() && !(ref instanceof Term.ArrayReference)) {
+            processIntegerValue(unrolledValue);
+            return;
+        }
+        if (reduction != null) {
+            if (ref instanceof Term.ArrayReference) {
+                Integer offset = reduction.getOffset((Term.ArrayReference) ref);
+                if (offset != null) {
+                    code.append("push that ").append(offset);
                     code.append("\n");
+                    return;
                 }
+            } else if (entry == reduction.getVariable()) {
+                processReducedVariable(reduction.getBase());
+                return;
             }
-        } else if (term instanceof Expression) {
-            processExpression((Expression) term, st);
-        } else if (term instanceof Term.UnaryTerm) {
-            Term.UnaryTerm unaryTerm = (Term.UnaryTerm) term;
-            Character operator = unaryTerm.getOperator();
-            processTerm(unaryTerm.getTerm(), st);
-            if (operator == '~') {
-                code.append("not");
-            } else if (operator == '-') {
-                code.append("neg");
-            }
+        }
+        if (ref instanceof Term.ArrayReference) {
+            Term.ArrayReference arrayRef = (Term.ArrayReference) ref;
+            code.append("push ").append(entry.getDeclaration().getScope()).append(" ").append(getSlot(entry));
+            code.append("\n");
+            Expression indexExp = arrayRef.getIndex();
+            processExpression(indexExp);
+            code.append("add");
+            code.append("\n");
+            code.append("pop pointer 1");
             code.append("\n");
-        } else if (term instanceof Term.Reference) {
-            Term.Reference ref = (Term.Reference) term;
-            String varName = ref.getVarName();
-            SymbolTable.SymEntry entry = st.getEntry(varName);
-            if (entry == null) {
-                entry = classSymTable.getEntry(varName);
+            code.append("push that 0");
+            code.append("\n");
+        } else {
+            code.append("push ").append(entry.getDeclaration().getScope()).append(" ").append(getSlot(entry));
+            code.append("\n");
+        }
+    }
+
+    /**
+     * Condition of a branch, reduced to a term to be compared with zero.
+     */
+    private static class Branch {
+
+        /**
+         * Term whose value decides the branch
+         */
+        private final Term operand;
+        /**
+         * Whether the condition holds when the operand is not zero, or when it
+         * is zero
+         */
+        private final boolean whenNonZero;
+
+        private Branch(Term operand, boolean whenNonZero) {
+            this.operand = operand;
+            this.whenNonZero = whenNonZero;
+        }
+
+        /**
+         * Strips parentheses, comparisons with zero and the negation of
+         * booleans from the condition, inverting the sense of the branch for
+         * each one. Jack's <code>~</code> is bitwise, so it is only stripped
+         * from operands known to be 0 or -1.
+         */
+        static Branch of(Term condition) {
+            Term term = condition;
+            boolean whenNonZero = true;
+            while (true) {
+                if (term instanceof Expression) {
+                    Expression exp = (Expression) term;
+                    List<Term> terms = exp.getTerms();
+                    if (terms.size() == 1) {
+                        term = terms.get(0);
+                        continue;
+                    }
+                    if (terms.size() == 2 && exp.getOperator(0) == '=') {
+                        if (isZero(terms.get(1))) {
+                            term = terms.get(0);
+                            whenNonZero = !whenNonZero;
+                            continue;
+                        } else if (isZero(terms.get(0))) {
+                            term = terms.get(1);
+                            whenNonZero = !whenNonZero;
+                            continue;
+                        }
+                    }
+                } else if (term instanceof Term.UnaryTerm) {
+                    Term.UnaryTerm unaryTerm = (Term.UnaryTerm) term;
+                    if (unaryTerm.getOperator() == '~' && isBoolean(unaryTerm.getTerm())) {
+                        term = unaryTerm.getTerm();
+                        whenNonZero = !whenNonZero;
+                        continue;
+                    }
+                }
+                return new Branch(term, whenNonZero);
             }
-            if (entry == null) {
-                throw new CompilerException("Variable not declared ' " + varName + "'", ref.getLineNumber(), ref.getColumnNumber());
+        }
+
+        /**
+         * Reduces the condition of a <code>while</code> loop. Loops exit when
+         * the negation of the condition is not zero, so they go on while the
+         * condition is -1: unless the condition is known to be a boolean, only
+         * a negated condition can be reduced (to its operand being zero).
+         *
+         * @return the branch that goes on with the loop, or null if the
+         * condition cannot be reduced
+         */
+        static Branch ofLoop(Term condition) {
+            Term term = condition;
+            while (term instanceof Expression && ((Expression) term).getTerms().size() == 1) {
+                term = ((Expression) term).getTerms().get(0);
             }
-            if (ref instanceof Term.ArrayReference) {
-                Term.ArrayReference arrayRef = (Term.ArrayReference) ref;
-                code.append("push ").append(entry.getDeclaration().getScope()).append(" ").append(entry.getIndex());
-                code.append("\n");
-                Expression indexExp = arrayRef.getIndex();
-                processExpression(indexExp, st);
-                code.append("add");
-                code.append("\n");
-                code.append("pop pointer 1");
-                code.append("\n");
-                code.append("push that 0");
-                code.append("\n");
-            } else {
-                code.append("push ").append(entry.getDeclaration().getScope()).append(" ").append(entry.getIndex());
-                code.append("\n");
+            if (isBoolean(term)) {
+                return of(term);
+            }
+            if (term instanceof Term.UnaryTerm && ((Term.UnaryTerm) term).getOperator() == '~') {
+                Branch branch = of(((Term.UnaryTerm) term).getTerm());
+                return new Branch(branch.operand, !branch.whenNonZero);
+            }
+            return null;
+        }
+
+        private static boolean isZero(Term term) {
+            return term instanceof Term.Constant && Boolean.TRUE.equals(isZero((Term.Constant) term));
+        }
+
+        /**
+         * @return whether the constant is zero, or null if it is not known at
+         * compile time
+         */
+        static Boolean isZero(Term.Constant constant) {
+            if (constant.getType() == Term.Constant.Type.integer) {
+                return Integer.parseInt(constant.getValue()) == 0;
+            } else if (constant.getType() == Term.Constant.Type.keyword && !constant.getValue().equals("this")) {
+                return !constant.getValue().equals("true");
             }
-        } else if (term instanceof SubroutineCall) {
-            processSubroutineCall((SubroutineCall) term, st);
+            return null;
+        }
+
+        /**
+         * @return whether the value of the term is known to be 0 or -1
+         */
+        static boolean isBoolean(Term term) {
+            if (term instanceof Expression) {
+                Expression exp = (Expression) term;
+                return isBoolean(exp, exp.getTerms().size());
+            } else if (term instanceof Term.UnaryTerm) {
+                Term.UnaryTerm unaryTerm = (Term.UnaryTerm) term;
+                return unaryTerm.getOperator() == '~' && isBoolean(unaryTerm.getTerm());
+            } else if (term instanceof Term.Constant) {
+                Term.Constant constant = (Term.Constant) term;
+                return constant.getType() == Term.Constant.Type.keyword && (constant.getValue().equals("true") || constant.getValue().equals("false"));
+            }
+            return false;
+        }
+
+        /**
+         * @return whether the value of the first terms of the expression,
+         * evaluated from left to right, is known to be 0 or -1
+         */
+        private static boolean isBoolean(Expression exp, int termCount) {
+            if (termCount == 1) {
+                return isBoolean(exp.getTerms().get(0));
+            }
+            char operator = exp.getOperator(termCount - 2);
+            if (operator == '<' || operator == '>' || operator == '=') {
+                return true;
+            } else if (operator == '&' || operator == '|') {
+                return isBoolean(exp.getTerms().get(termCount - 1)) && isBoolean(exp, termCount - 1);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Code generation visitor, dispatching each kind of statement and term to
+     * its processing method.
+     */
+    private class Generator implements StatementVisitor<CompilerException>, TermVisitor<CompilerException> {
+
+        @Override
+        public void visit(LetStatement statement) throws CompilerException {
+            processLetStatement(statement);
+        }
+
+        @Override
+        public void visit(IfStatement statement) throws CompilerException {
+            processIfStatement(statement);
+        }
+
+        @Override
+        public void visit(WhileStatement statement) throws CompilerException {
+            processWhileStatement(statement);
+        }
+
+        @Override
+        public void visit(DoStatement statement) throws CompilerException {
+            processDoStatement(statement);
+        }
+
+        @Override
+        public void visit(ReturnStatement statement) throws CompilerException {
+            processReturnStatement(statement);
+        }
+
+        @Override
+        public void visit(Term.Constant constant) {
+            processConstant(constant);
+        }
+
+        @Override
+        public void visit(Term.Reference reference) throws CompilerException {
+            processReference(reference);
+        }
+
+        @Override
+        public void visit(Term.ArrayReference reference) throws CompilerException {
+            processReference(reference);
+        }
+
+        @Override
+        public void visit(Term.UnaryTerm term) throws CompilerException {
+            processUnaryTerm(term);
+        }
+
+        @Override
+        public void visit(Expression expression) throws CompilerException {
+            processExpression(expression);
+        }
+
+        @Override
+        public void visit(SubroutineCall call) throws CompilerException {
+            processSubroutineCall(call);
+        }
+    }
+
+    /**
+     * Code generator driven by the events of a {@link ClassParser}: the code
+     * of each subroutine is generated and appended to the output as soon as
+     * the subroutine is parsed, so that neither the whole class nor its whole
+     * code are held in memory.
+     */
+    public static class Streaming implements ClassParser.Listener {
+
+        private final Profiler profiler;
+        private final List<CompilerException> errors;
+        private final SignatureIndex index;
+        private final CompilationContext configuration;
+        private final Appendable out;
+        private ClassWriter writer;
+
+        /**
+         * @param profiler optional profiler
+         * @param errors optional error list
+         * @param index optional signature index
+         * @param configuration context to take the optimization level and
+         * unroll budget from, or <code>null</code> for the defaults
+         * @param out destination of the code
+         */
+        public Streaming(Profiler profiler, List<CompilerException> errors, SignatureIndex index, CompilationContext configuration, Appendable out) {
+            this.profiler = profiler;
+            this.errors = errors;
+            this.index = index;
+            this.configuration = configuration;
+            this.out = out;
+        }
+
+        @Override
+        public void onClass(JackClass clazz) throws CompilerException {
+            writer = new ClassWriter(clazz, profiler, errors, index, configuration, new StringBuilder(), new SymbolTable(new SymbolTable()), false);
+            writer.processClassDeclarations(clazz);
+        }
+
+        @Override
+        public void onSubroutine(Subroutine subroutine) throws CompilerException {
+            writer.entryCounterIndex = -1;
+            writer.loopCounterIndex = -1;
+            writer.processSubroutine(subroutine);
+            try {
+                out.append(writer.code);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            writer.code.setLength(0);
+        }
+
+        /**
+         * @return the frame sizes of the subroutines generated so far
+         */
+        public FrameReport getFrameReport() {
+            return writer == null ? new FrameReport() : writer.frames;
+        }
+
+        /**
+         * @return the OS calls generated inline so far
+         */
+        public IntrinsicReport getIntrinsicReport() {
+            return writer == null ? new IntrinsicReport() : writer.intrinsics;
+        }
+
+        /**
+         * @return the classes whose accessors have been generated inline so
+         * far
+         */
+        public Set<String> getInlinedClasses() {
+            return writer == null ? Collections.<String>emptySet() : writer.getInlinedClasses();
         }
     }
 
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reusable in-memory compiler. A context recycles its token list, identifier
+ * map, code buffer, symbol tables and error list from one compilation to the
+ * next, so the steady-state allocation is mostly limited to the AST and the
+ * returned outputs.
+ * <p>
+ * Contexts are not thread-safe: use one per thread, or
+ * {@link JackCompiler#compile(Map)} that does so. A context only read for its
+ * configuration can be shared by threads (see
+ * {@link JackCompiler#compile(Map, CompilationContext)}).
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class CompilationContext {
+
+    private static final int MAX_RETAINED_CODE_CAPACITY = 1 << 20;
+    private static final int MAX_RETAINED_TOKENS = 1 << 16;
+    private static final int MAX_RETAINED_IDENTIFIERS = 1 << 16;
+
+    static final Comparator<CompilerException> POSITION_COMPARATOR = new Comparator<CompilerException>() {
+        @Override
+        public int compare(CompilerException e1, CompilerException e2) {
+            int ret = Integer.compare(valueOf(e1.getLineNumber()), valueOf(e2.getLineNumber()));
+            if (ret == 0) {
+                ret = Integer.compare(valueOf(e1.getColNumber()), valueOf(e2.getColNumber()));
+            }
+            return ret;
+        }
+    };
+
+    private final ArrayList<Tokenizer.Token> tokens = new ArrayList<>();
+    private final Map<String, String> identifiers = new HashMap<>();
+    private final List<CompilerException> errors = new ArrayList<>();
+    private final StringBuilder code = new StringBuilder();
+    private final SymbolTable classSymTable = new SymbolTable();
+    private final SymbolTable subroutineSymTable = new SymbolTable(classSymTable);
+    private int optimizationLevel = ClassWriter.DEFAULT_OPTIMIZATION_LEVEL;
+    private int unrollBudget = ClassWriter.DEFAULT_UNROLL_BUDGET;
+    private FrameReport frameReport;
+    private IntrinsicReport intrinsicReport;
+    private int parallelThreshold = ClassWriter.getDefaultParallelThreshold();
+
+    public int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    /**
+     * @param optimizationLevel optimization level of the generated code (see
+     * {@link ClassWriter})
+     */
+    public void setOptimizationLevel(int optimizationLevel) {
+        this.optimizationLevel = optimizationLevel;
+    }
+
+    public int getUnrollBudget() {
+        return unrollBudget;
+    }
+
+    /**
+     * @param unrollBudget maximum number of VM instructions the unrolling of
+     * a loop may add, at optimization level 2
+     */
+    public void setUnrollBudget(int unrollBudget) {
+        this.unrollBudget = unrollBudget;
+    }
+
+    int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @param parallelThreshold minimum number of subroutines of a class for
+     * them to be generated in parallel
+     */
+    void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public FrameReport getFrameReport() {
+        return frameReport;
+    }
+
+    /**
+     * @param frameReport optional report the frame sizes of the compiled
+     * classes are added to
+     */
+    public void setFrameReport(FrameReport frameReport) {
+        this.frameReport = frameReport;
+    }
+
+    public IntrinsicReport getIntrinsicReport() {
+        return intrinsicReport;
+    }
+
+    /**
+     * @param intrinsicReport optional report the OS calls generated inline in
+     * the compiled classes are added to
+     */
+    public void setIntrinsicReport(IntrinsicReport intrinsicReport) {
+        this.intrinsicReport = intrinsicReport;
+    }
+
+    /**
+     * Copies the configuration (optimization level, unroll budget and
+     * reports) of another context, or restores the default one.
+     *
+     * @param configuration context to copy the configuration from, or
+     * <code>null</code> for the defaults
+     */
+    void configure(CompilationContext configuration) {
+        if (configuration == null) {
+            optimizationLevel = ClassWriter.DEFAULT_OPTIMIZATION_LEVEL;
+            unrollBudget = ClassWriter.DEFAULT_UNROLL_BUDGET;
+            frameReport = null;
+            intrinsicReport = null;
+            parallelThreshold = ClassWriter.getDefaultParallelThreshold();
+        } else {
+            optimizationLevel = configuration.optimizationLevel;
+            unrollBudget = configuration.unrollBudget;
+            frameReport = configuration.frameReport;
+            intrinsicReport = configuration.intrinsicReport;
+            parallelThreshold = configuration.parallelThreshold;
+        }
+    }
+
+    public CompilationResult compile(Map<String, ? extends CharSequence> sources) {
+        return compile(sources, null);
+    }
+
+    public CompilationResult compile(Map<String, ? extends CharSequence> sources, Profiler profiler) {
+        return compile(sources, profiler, null);
+    }
+
+    /**
+     * Compiles the classes.
+     *
+     * @param sources Jack source code by class name
+     * @param profiler optional profiler
+     * @param index signature index to validate the subroutine calls against,
+     * containing every class called from the sources, including themselves
+     * (see {@link #index(Map, SignatureIndex)}). If <code>null</code>, an index
+     * of the sources, the OS classes and, if profiling, the
+     * <code>Profiler</code> class is built
+     * @return the result of the compilation
+     */
+    public CompilationResult compile(Map<String, ? extends CharSequence> sources, Profiler profiler, SignatureIndex index) {
+        if (index == null) {
+            index = new SignatureIndex();
+            index(sources, index);
+            if (profiler != null) {
+                index(profiler.toJack(), index, 0);
+            }
+        }
+        Map<String, String> outputs = new LinkedHashMap<>();
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Map<String, Set<String>> inlinedClasses = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, ? extends CharSequence> entry : sources.entrySet()) {
+                String className = entry.getKey();
+                String vmCode = compileClass(className, entry.getValue(), profiler, index, inlinedClasses);
+                if (vmCode != null) {
+                    outputs.put(className, vmCode);
+                }
+                Collections.sort(errors, POSITION_COMPARATOR);
+                for (CompilerException ce : errors) {
+                    diagnostics.add(new Diagnostic(className, ce));
+                }
+                errors.clear();
+            }
+        } finally {
+            reset();
+        }
+        return new CompilationResult(outputs, diagnostics, inlinedClasses);
+    }
+
+    private String compileClass(String className, CharSequence source, Profiler profiler, SignatureIndex index, Map<String, Set<String>> inlinedClasses) {
+        try {
+            if (profiler != null && className.equals(Profiler.CLASS_NAME)) {
+                errors.add(new CompilerException("Class name " + Profiler.CLASS_NAME + " is reserved when profiling", 1, 1));
+            }
+            ClassParser cp = new ClassParser(new Tokenizer(source, tokens, identifiers, errors), errors);
+            if (cp.getParsedClass() == null) {
+                return null;
+            }
+            if (!cp.getParsedClass().getName().equals(className)) {
+                errors.add(new CompilerException("Class " + cp.getParsedClass().getName() + " must be declared in a source named " + cp.getParsedClass().getName(), cp.getParsedClass().getLineNumber(), cp.getParsedClass().getColumnNumber()));
+            }
+            ClassWriter cw = new ClassWriter(cp.getParsedClass(), profiler, errors, index, this, code, subroutineSymTable);
+            if (!errors.isEmpty()) {
+                return null;
+            }
+            if (frameReport != null) {
+                frameReport.addAll(cw.getFrameReport());
+            }
+            if (intrinsicReport != null) {
+                intrinsicReport.addAll(cw.getIntrinsicReport());
+            }
+            inlinedClasses.put(className, cw.getInlinedClasses());
+            return cw.getCode();
+        } catch (CompilerException ce) {
+            throw new AssertionError(ce); // errors are collected
+        }
+    }
+
+    /**
+     * Adds the signatures of the classes to the index, with version 0.
+     */
+    public void index(Map<String, ? extends CharSequence> sources, SignatureIndex index) {
+        for (CharSequence source : sources.values()) {
+            index(source, index, 0);
+        }
+    }
+
+    /**
+     * Adds the signatures of the class to the index, from an outline parse of
+     * its source. Errors are ignored here, as they are reported when the class
+     * is compiled.
+     *
+     * @return false if the class could not be parsed
+     */
+    public boolean index(CharSequence source, SignatureIndex index, long version) {
+        try {
+            ClassParser cp = new ClassParser(Tokenizer.lazy(source, identifiers, errors), errors, true);
+            if (cp.getParsedClass() == null) {
+                return false;
+            }
+            index.add(cp.getParsedClass(), version);
+            return true;
+        } catch (CompilerException ce) {
+            throw new AssertionError(ce); // errors are collected
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Clears the state of the context, releasing oversized buffers.
+     */
+    public void reset() {
+        boolean oversizedTokens = tokens.size() > MAX_RETAINED_TOKENS;
+        tokens.clear();
+        if (oversizedTokens) {
+            tokens.trimToSize();
+        }
+        errors.clear();
+        if (identifiers.size() > MAX_RETAINED_IDENTIFIERS) {
+            identifiers.clear();
+        }
+        code.setLength(0);
+        if (code.capacity() > MAX_RETAINED_CODE_CAPACITY) {
+            code.trimToSize();
+        }
+        classSymTable.clear();
+        subroutineSymTable.clear();
+    }
+
+    private static int valueOf(Integer i) {
+        return i == null ? 0 : i;
+    }
+}
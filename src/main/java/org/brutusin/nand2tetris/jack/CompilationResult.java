@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Outcome of an in-memory compilation: the VM code of the classes compiled
+ * without errors, and the diagnostics of the rest.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class CompilationResult {
+
+    private final Map<String, String> outputs;
+    private final List<Diagnostic> diagnostics;
+    private final Map<String, Set<String>> inlinedClasses;
+
+    public CompilationResult(Map<String, String> outputs, List<Diagnostic> diagnostics) {
+        this(outputs, diagnostics, Collections.<String, Set<String>>emptyMap());
+    }
+
+    public CompilationResult(Map<String, String> outputs, List<Diagnostic> diagnostics, Map<String, Set<String>> inlinedClasses) {
+        this.outputs = Collections.unmodifiableMap(outputs);
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+        this.inlinedClasses = Collections.unmodifiableMap(inlinedClasses);
+    }
+
+    /**
+     * @return VM code by class name, in input order
+     */
+    public Map<String, String> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * @return diagnostics grouped by class and sorted by position
+     */
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * @return by class compiled without errors, the classes whose accessors
+     * have been generated inline in its code (see
+     * {@link ClassWriter#getInlinedClasses()})
+     */
+    public Map<String, Set<String>> getInlinedClasses() {
+        return inlinedClasses;
+    }
+
+    public boolean isSuccessful() {
+        return diagnostics.isEmpty();
+    }
+}
@@ -18,6 +18,9 @@ package org.brutusin.nand2tetris.jack;
 
 
 /**
+ * Compilation error. Instances do not capture stack traces, since they
+ * report problems in the compiled source and are created frequently when
+ * collecting all the diagnostics of a file.
  *
  * @author Ignacio del Valle Alles idelvall@brutusin.org
  */
@@ -31,7 +34,7 @@ package org.brutusin.nand2tetris.jack;
     }
 
     public CompilerException(String message, Integer lineNumber, Integer colNumber) {
-        super(message);
+        super(message, null, false, false);
         this.lineNumber = lineNumber;
         this.colNumber = colNumber;
     }
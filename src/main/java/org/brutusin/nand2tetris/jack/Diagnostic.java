@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+/**
+ * Compilation error reported by the in-memory API.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class Diagnostic {
+
+    private final String className;
+    private final Integer lineNumber;
+    private final Integer columnNumber;
+    private final String message;
+
+    public Diagnostic(String className, Integer lineNumber, Integer columnNumber, String message) {
+        this.className = className;
+        this.lineNumber = lineNumber;
+        this.columnNumber = columnNumber;
+        this.message = message;
+    }
+
+    public Diagnostic(String className, CompilerException ce) {
+        this(className, ce.getLineNumber(), ce.getColNumber(), ce.getMessage());
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public Integer getLineNumber() {
+        return lineNumber;
+    }
+
+    public Integer getColumnNumber() {
+        return columnNumber;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return className + ", line " + lineNumber + ", column " + columnNumber + ": " + message;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frame sizes of the generated functions: the number of locals declared
+ * (plus the temporaries of hoisted loop invariants) and the number actually
+ * allocated by the <code>function</code> command once the locals with
+ * disjoint live ranges share slots and those never read are dropped (see
+ * {@link Liveness}). Instances are thread-safe, so that one report can
+ * collect the frames of a multi-threaded compilation.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class FrameReport {
+
+    private final List<String> functions = new ArrayList<>();
+    private final List<int[]> sizes = new ArrayList<>();
+    private int declaredSize;
+    private int allocatedSize;
+
+    /**
+     * @param function qualified name of the function
+     * @param declared locals declared
+     * @param allocated locals allocated
+     */
+    public synchronized void add(String function, int declared, int allocated) {
+        functions.add(function);
+        sizes.add(new int[]{declared, allocated});
+        declaredSize += declared;
+        allocatedSize += allocated;
+    }
+
+    public void addAll(FrameReport other) {
+        List<String> otherFunctions;
+        List<int[]> otherSizes;
+        synchronized (other) {
+            otherFunctions = new ArrayList<>(other.functions);
+            otherSizes = new ArrayList<>(other.sizes);
+        }
+        for (int i = 0; i < otherFunctions.size(); i++) {
+            add(otherFunctions.get(i), otherSizes.get(i)[0], otherSizes.get(i)[1]);
+        }
+    }
+
+    public synchronized void clear() {
+        functions.clear();
+        sizes.clear();
+        declaredSize = 0;
+        allocatedSize = 0;
+    }
+
+    public synchronized int getFunctionCount() {
+        return functions.size();
+    }
+
+    public synchronized int getDeclaredSize() {
+        return declaredSize;
+    }
+
+    public synchronized int getAllocatedSize() {
+        return allocatedSize;
+    }
+
+    /**
+     * @return a line per function whose frame shrank, and a total line
+     */
+    public synchronized String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < functions.size(); i++) {
+            int[] size = sizes.get(i);
+            if (size[1] < size[0]) {
+                sb.append(String.format("frame %-40s locals=%d -> %d%n", functions.get(i), size[0], size[1]));
+            }
+        }
+        sb.append(String.format("frames     functions=%d locals=%d -> %d (%.1f%% less)%n", functions.size(), declaredSize, allocatedSize,
+                declaredSize == 0 ? 0.0 : 100.0 * (declaredSize - allocatedSize) / declaredSize));
+        return sb.toString();
+    }
+}
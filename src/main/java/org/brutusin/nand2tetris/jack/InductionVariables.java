@@ -0,0 +1,342 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.brutusin.nand2tetris.jack.model.Declaration;
+import org.brutusin.nand2tetris.jack.model.DoStatement;
+import org.brutusin.nand2tetris.jack.model.Expression;
+import org.brutusin.nand2tetris.jack.model.IfStatement;
+import org.brutusin.nand2tetris.jack.model.LetStatement;
+import org.brutusin.nand2tetris.jack.model.ReturnStatement;
+import org.brutusin.nand2tetris.jack.model.Statement;
+import org.brutusin.nand2tetris.jack.model.Subroutine;
+import org.brutusin.nand2tetris.jack.model.SubroutineCall;
+import org.brutusin.nand2tetris.jack.model.Term;
+import org.brutusin.nand2tetris.jack.model.WhileStatement;
+
+/**
+ * Induction variable strength reduction of array traversals. In a
+ * <code>while</code> loop whose array accesses all are
+ * <code>a[i]</code> or <code>a[i + k]</code> (same array <code>a</code>, not
+ * assigned in the loop, and constant <code>k</code>), where <code>i</code> is a
+ * local or argument only assigned by steps <code>let i = i + c</code> (or
+ * <code>- c</code>), the address <code>a + i</code> is kept in the
+ * <code>that</code> pointer during the loop: accesses become
+ * <code>that k</code>, steps move the pointer, and the other reads of
+ * <code>i</code> compute <code>that - a</code>, written back to
+ * <code>i</code> after the loop if it is read afterwards.
+ * <p>
+ * Call and return save and restore the pointer, so the loop may make calls,
+ * but a loop reading <code>i</code> more than twice per array access is left
+ * alone, as it would not get faster. Loops nested in a reduced loop are not
+ * reduced.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+class InductionVariables {
+
+    /**
+     * Induction variable of a loop whose address is kept in the
+     * <code>that</code> pointer.
+     */
+    static class Reduction {
+
+        private final SymbolTable.SymEntry variable;
+        private final SymbolTable.SymEntry base;
+        private final Map<Term.ArrayReference, Integer> offsets = new IdentityHashMap<>();
+        private final Map<LetStatement, Integer> steps = new IdentityHashMap<>();
+        private boolean materialized;
+
+        private Reduction(SymbolTable.SymEntry variable, SymbolTable.SymEntry base) {
+            this.variable = variable;
+            this.base = base;
+        }
+
+        /**
+         * @return the induction variable
+         */
+        public SymbolTable.SymEntry getVariable() {
+            return variable;
+        }
+
+        /**
+         * @return the array traversed
+         */
+        public SymbolTable.SymEntry getBase() {
+            return base;
+        }
+
+        /**
+         * @return the offset of the element accessed from the address, or
+         * <code>null</code> if the reference is not part of the reduction
+         */
+        public Integer getOffset(Term.ArrayReference reference) {
+            return offsets.get(reference);
+        }
+
+        /**
+         * @return the increment of the variable by the statement, or
+         * <code>null</code> if it is not one of the steps
+         */
+        public Integer getStep(LetStatement statement) {
+            return steps.get(statement);
+        }
+
+        /**
+         * @return whether the variable is read after the loop, and so has to
+         * be updated when it ends
+         */
+        public boolean isMaterialized() {
+            return materialized;
+        }
+    }
+
+    private final SymbolTable symbols;
+    private final Liveness liveness;
+    private final Map<WhileStatement, Reduction> reductions = new IdentityHashMap<>();
+
+    /**
+     * @param subroutine subroutine to analyze
+     * @param symbols symbol table of the subroutine scope
+     * @param liveness optional liveness of the locals, telling whether the
+     * induction variables are read after their loops
+     */
+    InductionVariables(Subroutine subroutine, SymbolTable symbols, Liveness liveness) {
+        this.symbols = symbols;
+        this.liveness = liveness;
+        analyzeStatements(subroutine.getStatements());
+    }
+
+    /**
+     * @return the reduction of the loop, or <code>null</code> if there is none
+     */
+    Reduction get(WhileStatement loop) {
+        return reductions.get(loop);
+    }
+
+    private void analyzeStatements(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement instanceof WhileStatement) {
+                analyzeLoop((WhileStatement) statement);
+            } else if (statement instanceof IfStatement) {
+                analyzeStatements(((IfStatement) statement).getIfStatements());
+                analyzeStatements(((IfStatement) statement).getElseStatements());
+            }
+        }
+    }
+
+    private void analyzeLoop(WhileStatement loop) {
+        Scan scan = new Scan();
+        scan.addTerm(loop.getCondition());
+        scan.addStatements(loop.getStatements());
+        Reduction reduction = scan.getReduction(loop);
+        if (reduction != null) {
+            reductions.put(loop, reduction);
+        } else {
+            analyzeStatements(loop.getStatements());
+        }
+    }
+
+    /**
+     * @return the offset of the index from the variable (<code>i</code>,
+     * <code>i + k</code> or <code>k + i</code>), or <code>null</code> if it
+     * has none of these forms
+     */
+    private static Integer getOffset(Expression index, String variable) {
+        List<Term> terms = index.getTerms();
+        if (terms.size() == 1) {
+            return isVariable(terms.get(0), variable) ? 0 : null;
+        }
+        if (terms.size() != 2 || index.getOperator(0) != '+') {
+            return null;
+        }
+        if (isVariable(terms.get(0), variable)) {
+            return getConstant(terms.get(1));
+        } else if (isVariable(terms.get(1), variable)) {
+            return getConstant(terms.get(0));
+        }
+        return null;
+    }
+
+    /**
+     * @return the increment of the step (<code>i + c</code>,
+     * <code>c + i</code> or <code>i - c</code>), or <code>null</code> if the
+     * expression has none of these forms
+     */
+    private static Integer getStep(Expression exp, String variable) {
+        List<Term> terms = exp.getTerms();
+        if (terms.size() != 2) {
+            return null;
+        }
+        char operator = exp.getOperator(0);
+        Integer c = null;
+        if (isVariable(terms.get(0), variable)) {
+            c = getConstant(terms.get(1));
+        } else if (operator == '+' && isVariable(terms.get(1), variable)) {
+            c = getConstant(terms.get(0));
+        }
+        if (c == null || operator != '+' && operator != '-') {
+            return null;
+        }
+        return operator == '+' ? c : -c;
+    }
+
+    private static boolean isVariable(Term term, String variable) {
+        return term instanceof Term.Reference && !(term instanceof Term.ArrayReference) && ((Term.Reference) term).getVarName().equals(variable);
+    }
+
+    private static Integer getConstant(Term term) {
+        if (term instanceof Term.Constant && ((Term.Constant) term).getType() == Term.Constant.Type.integer) {
+            return Integer.valueOf(((Term.Constant) term).getValue());
+        }
+        return null;
+    }
+
+    /**
+     * Array accesses, assignments and variable reads of a loop.
+     */
+    private class Scan {
+
+        private final List<Term.ArrayReference> arrays = new ArrayList<>();
+        private final Map<String, List<LetStatement>> assignments = new HashMap<>();
+        private final Map<String, Integer> reads = new HashMap<>();
+        private final Set<String> callTargets = new HashSet<>();
+        private boolean calls;
+
+        void addStatements(List<Statement> statements) {
+            for (Statement statement : statements) {
+                if (statement instanceof LetStatement) {
+                    LetStatement let = (LetStatement) statement;
+                    Term.Reference target = let.getTarget();
+                    if (target instanceof Term.ArrayReference) {
+                        arrays.add((Term.ArrayReference) target);
+                    } else {
+                        List<LetStatement> list = assignments.get(target.getVarName());
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            assignments.put(target.getVarName(), list);
+                        }
+                        list.add(let);
+                    }
+                    addTerm(let.getExpression());
+                } else if (statement instanceof IfStatement) {
+                    IfStatement ifStatement = (IfStatement) statement;
+                    addTerm(ifStatement.getCondition());
+                    addStatements(ifStatement.getIfStatements());
+                    addStatements(ifStatement.getElseStatements());
+                } else if (statement instanceof WhileStatement) {
+                    WhileStatement whileStatement = (WhileStatement) statement;
+                    addTerm(whileStatement.getCondition());
+                    addStatements(whileStatement.getStatements());
+                } else if (statement instanceof DoStatement) {
+                    addTerm(((DoStatement) statement).getAction());
+                } else if (statement instanceof ReturnStatement) {
+                    addTerm(((ReturnStatement) statement).getExpression());
+                }
+            }
+        }
+
+        /**
+         * Array indexes are not scanned: those of a reduction are a single
+         * variable read, replaced by the offset.
+         */
+        void addTerm(Term term) {
+            if (term instanceof Expression) {
+                for (Term t : ((Expression) term).getTerms()) {
+                    addTerm(t);
+                }
+            } else if (term instanceof Term.ArrayReference) {
+                arrays.add((Term.ArrayReference) term);
+            } else if (term instanceof Term.Reference) {
+                String name = ((Term.Reference) term).getVarName();
+                Integer count = reads.get(name);
+                reads.put(name, count == null ? 1 : count + 1);
+            } else if (term instanceof Term.UnaryTerm) {
+                addTerm(((Term.UnaryTerm) term).getTerm());
+            } else if (term instanceof SubroutineCall) {
+                SubroutineCall call = (SubroutineCall) term;
+                calls = true;
+                if (call.getTarget() != null) {
+                    callTargets.add(call.getTarget());
+                }
+                for (Expression argument : call.getArguments()) {
+                    addTerm(argument);
+                }
+            }
+        }
+
+        Reduction getReduction(WhileStatement loop) {
+            if (arrays.isEmpty()) {
+                return null;
+            }
+            Expression firstIndex = arrays.get(0).getIndex();
+            Term first = firstIndex.getTerms().get(0);
+            if (!(first instanceof Term.Reference) && firstIndex.getTerms().size() > 1) {
+                first = firstIndex.getTerms().get(1);
+            }
+            if (!(first instanceof Term.Reference) || first instanceof Term.ArrayReference) {
+                return null;
+            }
+            String name = ((Term.Reference) first).getVarName();
+            String baseName = arrays.get(0).getVarName();
+            SymbolTable.SymEntry variable = symbols.getEntry(name);
+            SymbolTable.SymEntry base = symbols.getEntry(baseName);
+            if (variable == null || base == null || name.equals(baseName) || callTargets.contains(name) || assignments.containsKey(baseName)) {
+                return null;
+            }
+            Declaration.Scope scope = variable.getDeclaration().getScope();
+            if (scope != Declaration.Scope.local && scope != Declaration.Scope.argument) {
+                return null;
+            }
+            Declaration.Scope baseScope = base.getDeclaration().getScope();
+            if (calls && baseScope != Declaration.Scope.local && baseScope != Declaration.Scope.argument) {
+                return null;
+            }
+            Reduction reduction = new Reduction(variable, base);
+            for (Term.ArrayReference array : arrays) {
+                Integer offset = array.getVarName().equals(baseName) ? getOffset(array.getIndex(), name) : null;
+                if (offset == null) {
+                    return null;
+                }
+                reduction.offsets.put(array, offset);
+            }
+            List<LetStatement> steps = assignments.get(name);
+            if (steps != null) {
+                for (LetStatement let : steps) {
+                    Integer step = getStep(let.getExpression(), name);
+                    if (step == null) {
+                        return null;
+                    }
+                    reduction.steps.put(let, step);
+                }
+            }
+            Integer count = reads.get(name);
+            int otherReads = (count == null ? 0 : count) - reduction.steps.size();
+            if (4 * arrays.size() <= 2 * otherReads) {
+                return null;
+            }
+            reduction.materialized = scope == Declaration.Scope.argument || liveness == null || liveness.isLiveAfter(loop, variable.getIndex());
+            return reduction;
+        }
+    }
+}
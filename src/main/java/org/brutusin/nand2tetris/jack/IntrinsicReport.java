@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Number of OS calls generated inline instead of called (see
+ * {@link ClassWriter}), by routine. Instances are thread-safe, so that one
+ * report can collect the calls of a multi-threaded compilation.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class IntrinsicReport {
+
+    private final Map<String, Integer> calls = new TreeMap<>();
+    private int callCount;
+
+    /**
+     * @param routine qualified name of the OS routine
+     */
+    public void add(String routine) {
+        add(routine, 1);
+    }
+
+    public synchronized void add(String routine, int count) {
+        Integer current = calls.get(routine);
+        calls.put(routine, current == null ? count : current + count);
+        callCount += count;
+    }
+
+    public void addAll(IntrinsicReport other) {
+        Map<String, Integer> otherCalls;
+        synchronized (other) {
+            otherCalls = new HashMap<>(other.calls);
+        }
+        for (Map.Entry<String, Integer> entry : otherCalls.entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public synchronized void clear() {
+        calls.clear();
+        callCount = 0;
+    }
+
+    /**
+     * @return the number of calls generated inline
+     */
+    public synchronized int getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * @return the number of calls of the routine generated inline
+     */
+    public synchronized int getCallCount(String routine) {
+        Integer count = calls.get(routine);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return a line per routine, and a total line
+     */
+    public synchronized String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : calls.entrySet()) {
+            sb.append(String.format("intrinsic  %-40s calls=%d%n", entry.getKey(), entry.getValue()));
+        }
+        sb.append(String.format("intrinsics calls=%d%n", callCount));
+        return sb.toString();
+    }
+}
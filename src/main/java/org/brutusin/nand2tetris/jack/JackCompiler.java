@@ -15,10 +15,50 @@ package org.brutusin.nand2tetris.jack;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.brutusin.nand2tetris.jack.model.JackClass;
 
 /**
  *
@@ -26,40 +66,810 @@ import java.nio.file.Files;
  */
 public class JackCompiler {
 
+    private static final long WATCH_DEBOUNCE_MILLIS = 10;
+    private static final int WRITER_THREADS = 2;
+    private static final int PIPELINE_QUEUE_CAPACITY = 64;
+    private static final int PIPELINE_IO_WORKERS = 8;
+    private static final long STREAMING_THRESHOLD = 1 << 20;
+    private static final ThreadLocal<CompilationContext> CONTEXTS = new ThreadLocal<CompilationContext>() {
+        @Override
+        protected CompilationContext initialValue() {
+            return new CompilationContext();
+        }
+    };
+
+    /**
+     * Compiles in memory a set of classes, with the default configuration.
+     * Calls are validated against the signatures of the classes and of the OS.
+     * This method is thread-safe: each calling thread uses its own
+     * {@link CompilationContext}, recycled across invocations.
+     *
+     * @param sources Jack source code by class name
+     * @return VM code by class name and diagnostics
+     */
+    public static CompilationResult compile(Map<String, ? extends CharSequence> sources) {
+        return compile(sources, null);
+    }
+
+    /**
+     * Compiles in memory a set of classes, with the configuration
+     * (optimization level, unroll budget and reports) of the given context.
+     * Calls are validated against the signatures of the classes and of the OS.
+     * This method is thread-safe: the configuration is only read, and each
+     * calling thread compiles with its own {@link CompilationContext}.
+     *
+     * @param sources Jack source code by class name
+     * @param configuration context to take the configuration from, or
+     * <code>null</code> for the defaults
+     * @return VM code by class name and diagnostics
+     */
+    public static CompilationResult compile(Map<String, ? extends CharSequence> sources, CompilationContext configuration) {
+        return getContext(configuration).compile(sources);
+    }
+
+    /**
+     * @return the context of the calling thread, configured as the given one
+     */
+    private static CompilationContext getContext(CompilationContext configuration) {
+        CompilationContext context = CONTEXTS.get();
+        context.configure(configuration);
+        return context;
+    }
+
     public static void main(String[] args) throws Exception {
-        File f = new File(args[0]);
+        boolean profile = false;
+        boolean profileLoops = false;
+        boolean watch = false;
+        boolean xml = false;
+        boolean stdio = false;
+        boolean fsync = false;
+        boolean stats = false;
+        int optimizationLevel = ClassWriter.DEFAULT_OPTIMIZATION_LEVEL;
+        int unrollBudget = ClassWriter.DEFAULT_UNROLL_BUDGET;
+        String indexPath = null;
+        String outPath = null;
+        String backendName = null;
+        String path = null;
+        Set<String> options = new LinkedHashSet<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--profile")) {
+                options.add(args[i]);
+                profile = true;
+            } else if (args[i].equals("--profile-loops")) {
+                options.add(args[i]);
+                profileLoops = true;
+            } else if (args[i].equals("--watch")) {
+                options.add(args[i]);
+                watch = true;
+            } else if (args[i].equals("--xml")) {
+                options.add(args[i]);
+                xml = true;
+            } else if (args[i].equals("--stdio")) {
+                options.add(args[i]);
+                stdio = true;
+            } else if (args[i].equals("--fsync")) {
+                options.add(args[i]);
+                fsync = true;
+            } else if (args[i].equals("--stats")) {
+                options.add(args[i]);
+                stats = true;
+            } else if (args[i].equals("--index") && i + 1 < args.length) {
+                options.add(args[i]);
+                indexPath = args[++i];
+            } else if (args[i].equals("--opt-level") && i + 1 < args.length) {
+                options.add(args[i]);
+                optimizationLevel = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--unroll-budget") && i + 1 < args.length) {
+                options.add(args[i]);
+                unrollBudget = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--backend") && i + 1 < args.length) {
+                options.add(args[i]);
+                backendName = args[++i];
+            } else if (args[i].equals("--out") && i + 1 < args.length) {
+                options.add(args[i]);
+                outPath = args[++i];
+            } else if (path == null) {
+                path = args[i];
+            } else {
+                exitWithUsage("Unexpected argument " + args[i]);
+            }
+        }
+        if (optimizationLevel < 0) {
+            exitWithUsage("--opt-level cannot be negative");
+        }
+        if (unrollBudget < 0) {
+            exitWithUsage("--unroll-budget cannot be negative");
+        }
+        if (stdio) {
+            if (path != null) {
+                exitWithUsage("A path cannot be used with --stdio");
+            }
+            checkOptions(options, "--stdio", "--stdio", "--opt-level", "--unroll-budget");
+            CompilationContext configuration = new CompilationContext();
+            configuration.setOptimizationLevel(optimizationLevel);
+            configuration.setUnrollBudget(unrollBudget);
+            stdio(System.in, System.out, configuration);
+            return;
+        }
+        if (path == null) {
+            exitWithUsage("A file or directory is required");
+        }
+        boolean archive = isArchive(path);
+        if (archive) {
+            checkOptions(options, "an archive", "--out", "--opt-level", "--unroll-budget");
+        } else if (outPath != null) {
+            exitWithUsage("--out can only be used with an archive");
+        } else if (xml) {
+            checkOptions(options, "--xml", "--xml");
+        } else if (watch) {
+            checkOptions(options, "--watch", "--watch", "--index", "--fsync", "--stats", "--opt-level", "--unroll-budget");
+        } else if (backendName != null) {
+            checkOptions(options, "--backend", "--backend", "--index", "--fsync", "--stats", "--opt-level", "--unroll-budget");
+        }
+        CompilationContext configuration = new CompilationContext();
+        configuration.setOptimizationLevel(optimizationLevel);
+        configuration.setUnrollBudget(unrollBudget);
+        if (stats) {
+            configuration.setFrameReport(new FrameReport());
+            configuration.setIntrinsicReport(new IntrinsicReport());
+        }
+        Backend backend = new VmBackend(configuration);
+        if (backendName != null && !backendName.equals(VmBackend.NAME)) {
+            backend = Backends.get(backendName);
+            if (backend == null) {
+                System.err.println("Backend not found: " + backendName);
+                System.exit(1);
+            }
+        }
+        Profiler profiler = null;
+        if (profile || profileLoops) {
+            profiler = new Profiler(profileLoops);
+        }
+        File f = new File(path);
         if (!f.exists()) {
             System.err.println("File not found!");
             System.exit(1);
         }
+        if (!(backend instanceof VmBackend) && !f.isDirectory()) {
+            exitWithUsage("--backend can only be used with a directory");
+        }
+        if (archive) {
+            File out;
+            if (outPath != null) {
+                out = new File(outPath);
+            } else {
+                out = new File(f.getAbsoluteFile().getParentFile(), f.getName().substring(0, f.getName().lastIndexOf('.')) + "-vm.zip");
+            }
+            compileArchive(f, out, configuration);
+            return;
+        }
+        if (xml) {
+            if (f.isDirectory()) {
+                for (File file : f.listFiles()) {
+                    if (file.isFile()) {
+                        writeXml(file);
+                    }
+                }
+            } else {
+                writeXml(f);
+            }
+            return;
+        }
+        File outputDir = f.isDirectory() ? f : f.getAbsoluteFile().getParentFile();
+        File indexFile = indexPath == null ? null : new File(indexPath);
+        SignatureIndex index = loadIndex(indexFile);
+        refreshIndexDirectory(index, outputDir);
+        if (profiler != null) {
+            index.add(new ClassParser(new Tokenizer(profiler.toJack())).getParsedClass(), 0);
+        }
+        Map<String, Set<String>> inlinedClasses = new HashMap<>();
+        try (OutputWriter output = new OutputWriter(WRITER_THREADS, fsync)) {
+            if (f.isDirectory() && profiler == null && !watch) {
+                compilePipelined(f, backend, index, configuration, output, stats);
+            } else if (f.isDirectory()) {
+                File[] files = f.listFiles();
+                for (int i = 0; i < files.length; i++) {
+                    File file = files[i];
+                    if (file.isFile()) {
+                        compile(file, profiler, index, configuration, output, inlinedClasses);
+                    }
+                }
+            } else {
+                compile(f, profiler, index, configuration, output, inlinedClasses);
+            }
+            if (profiler != null) {
+                writeProfiler(profiler, outputDir, output);
+            }
+            output.flush();
+            if (stats && backend instanceof VmBackend) {
+                System.err.print(configuration.getFrameReport().getReport());
+                System.err.print(configuration.getIntrinsicReport().getReport());
+            }
+            if (indexFile != null) {
+                saveIndex(index, indexFile);
+            }
+            if (watch) {
+                watch(outputDir, f.isFile() ? f.getAbsoluteFile() : null, index, configuration, output, inlinedClasses);
+            }
+        }
+    }
+
+    /**
+     * Exits with the message and the usage if an option is not one of the
+     * allowed in the mode.
+     *
+     * @param options options given
+     * @param mode mode the options are used with, as reported
+     * @param allowed options allowed in the mode
+     */
+    private static void checkOptions(Set<String> options, String mode, String... allowed) {
+        List<String> allowedOptions = Arrays.asList(allowed);
+        for (String option : options) {
+            if (!allowedOptions.contains(option)) {
+                exitWithUsage(option + " cannot be used with " + mode);
+            }
+        }
+    }
+
+    private static void exitWithUsage(String message) {
+        System.err.println(message);
+        printUsage();
+        System.exit(1);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: JackCompiler [--profile] [--profile-loops] [--index <file>] [--fsync] [--stats] [--opt-level <n>] [--unroll-budget <n>] <file.jack|directory>");
+        System.err.println("       JackCompiler --backend <name> [--index <file>] [--fsync] [--stats] [--opt-level <n>] [--unroll-budget <n>] <directory>");
+        System.err.println("       JackCompiler --watch [--index <file>] [--fsync] [--stats] [--opt-level <n>] [--unroll-budget <n>] <file.jack|directory>");
+        System.err.println("       JackCompiler --xml <file.jack|directory>");
+        System.err.println("       JackCompiler [--out <archive.zip>] [--opt-level <n>] [--unroll-budget <n>] <archive.zip|archive.jar>");
+        System.err.println("       JackCompiler --stdio [--opt-level <n>] [--unroll-budget <n>]");
+    }
+
+    /**
+     * Compiles the classes of the directory in a pipeline of stages (read,
+     * tokenize, parse, generate and write) joined by bounded queues, so that
+     * the I/O of some classes overlaps with the processing of others. The
+     * write stage queues the code in the output writer, that is flushed when
+     * the pipeline finishes.
+     * Diagnostics are reported at the end, in file order. Large sources are
+     * compiled afterwards, one at a time, in streaming mode, if the backend is
+     * the VM one.
+     *
+     * @param backend code generation backend
+     * @param configuration configuration of the classes compiled in streaming
+     * mode
+     * @param output output writer of the code
+     * @param stats whether to report the metrics of the stages
+     */
+    private static void compilePipelined(File dir, final Backend backend, final SignatureIndex index, CompilationContext configuration, final OutputWriter output, boolean stats) throws Exception {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        Pipeline<CompilationUnit> pipeline = new Pipeline<>(PIPELINE_QUEUE_CAPACITY);
+        pipeline.addStage("read", true, PIPELINE_IO_WORKERS, new Pipeline.Task<CompilationUnit>() {
+            @Override
+            public void process(CompilationUnit unit) throws IOException {
+                unit.source = new String(Files.readAllBytes(unit.file.toPath()));
+            }
+        }).addStage("tokenize", false, cpus, new Pipeline.Task<CompilationUnit>() {
+            @Override
+            public void process(CompilationUnit unit) throws CompilerException {
+                unit.tokenizer = new Tokenizer(unit.source, unit.errors);
+                unit.source = null;
+            }
+        }).addStage("parse", false, cpus, new Pipeline.Task<CompilationUnit>() {
+            @Override
+            public void process(CompilationUnit unit) throws CompilerException {
+                unit.parsedClass = new ClassParser(unit.tokenizer, unit.errors).getParsedClass();
+                unit.tokenizer = null;
+                if (unit.parsedClass != null && !unit.parsedClass.getName().equals(unit.className)) {
+                    unit.errors.add(new CompilerException("Class " + unit.parsedClass.getName() + " must be declared in a source named " + unit.parsedClass.getName(), unit.parsedClass.getLineNumber(), unit.parsedClass.getColumnNumber()));
+                }
+            }
+        }).addStage("generate", false, cpus, new Pipeline.Task<CompilationUnit>() {
+            @Override
+            public void process(CompilationUnit unit) throws CompilerException {
+                if (unit.parsedClass != null) {
+                    String code = backend.generate(unit.parsedClass, unit.errors, index);
+                    if (unit.errors.isEmpty()) {
+                        unit.vmCode = code.getBytes();
+                    }
+                    unit.parsedClass = null;
+                }
+            }
+        }).addStage("write", true, 1, new Pipeline.Task<CompilationUnit>() {
+            @Override
+            public void process(CompilationUnit unit) throws IOException {
+                if (unit.vmCode != null) {
+                    output.write(new File(unit.file.getParentFile(), unit.className + backend.getExtension()), ByteBuffer.wrap(unit.vmCode));
+                    unit.vmCode = null;
+                }
+            }
+        });
+        List<CompilationUnit> units = new ArrayList<>();
+        List<File> largeFiles = new ArrayList<>();
+        pipeline.start();
+        try {
+            for (File file : dir.listFiles()) {
+                if (file.isFile() && file.getName().endsWith(".jack") && file.length() > STREAMING_THRESHOLD && backend instanceof VmBackend) {
+                    largeFiles.add(file);
+                } else if (file.isFile() && file.getName().endsWith(".jack")) {
+                    CompilationUnit unit = new CompilationUnit(file);
+                    units.add(unit);
+                    pipeline.submit(unit);
+                }
+            }
+        } finally {
+            pipeline.finish();
+        }
+        output.flush();
+        for (CompilationUnit unit : units) {
+            Collections.sort(unit.errors, CompilationContext.POSITION_COMPARATOR);
+            for (CompilerException ce : unit.errors) {
+                System.err.println("Error compiling " + unit.file + ", line " + ce.getLineNumber() + ", column " + ce.getColNumber() + ": " + ce.getMessage());
+            }
+        }
+        for (File file : largeFiles) {
+            compileStreaming(file, null, index, configuration, new HashMap<String, Set<String>>());
+        }
+        if (stats) {
+            System.err.print(pipeline.getReport());
+        }
+    }
+
+    /**
+     * State of a class going through the compilation pipeline.
+     */
+    private static class CompilationUnit {
+
+        private final File file;
+        private final String className;
+        private final List<CompilerException> errors = new ArrayList<>();
+        private String source;
+        private Tokenizer tokenizer;
+        private JackClass parsedClass;
+        private byte[] vmCode;
+
+        public CompilationUnit(File file) {
+            this.file = file;
+            this.className = file.getName().substring(0, file.getName().length() - 5);
+        }
+    }
+
+    /**
+     * Recompiles the classes of the directory as they change, in this already
+     * warmed-up process. Bursts of events are debounced and each changed class
+     * is compiled once, reporting the time spent compiling it and the latency
+     * since its last modification. The classes that generated inline the
+     * accessors of a changed class are recompiled too, if the accessors
+     * changed, and every class is recompiled if the set of OS classes replaced
+     * by project classes changes, as that decides which OS calls are
+     * generated inline.
+     *
+     * @param dir directory to watch
+     * @param singleFile if not null, only this file is recompiled
+     * @param index signature index of the directory, kept up to date
+     * @param configuration configuration of the compilations
+     * @param output output writer, flushed after each compilation
+     * @param inlinedClasses classes whose accessors have been generated inline
+     * by compiled class, kept up to date
+     */
+    private static void watch(File dir, File singleFile, SignatureIndex index, CompilationContext configuration, OutputWriter output, Map<String, Set<String>> inlinedClasses) throws IOException, InterruptedException {
+        Map<File, Long> compiledVersions = new HashMap<>();
+        try (WatchService ws = FileSystems.getDefault().newWatchService()) {
+            dir.toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            System.err.println("Watching " + dir + " for changes");
+            while (true) {
+                WatchKey key = ws.take();
+                Set<File> changed = new LinkedHashSet<>();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            changed.addAll(Arrays.asList(dir.getAbsoluteFile().listFiles()));
+                        } else {
+                            changed.add(dir.toPath().resolve((Path) event.context()).toFile().getAbsoluteFile());
+                        }
+                    }
+                    key.reset();
+                    key = ws.poll(WATCH_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                Set<File> modified = new LinkedHashSet<>();
+                Set<String> changedAccessors = new HashSet<>();
+                Set<String> shadowedOsClasses = index.getShadowedOsClasses();
+                for (File file : changed) {
+                    if (!file.getName().endsWith(".jack")) {
+                        continue;
+                    }
+                    String className = file.getName().substring(0, file.getName().length() - 5);
+                    String accessDescription = index.getAccessDescription(className);
+                    if (!file.exists()) {
+                        compiledVersions.remove(file);
+                        inlinedClasses.remove(className);
+                        if (index.getProjectClasses().contains(className)) {
+                            index.remove(className);
+                            changedAccessors.add(className);
+                        }
+                        continue;
+                    }
+                    long lastModified = file.lastModified();
+                    Long compiledVersion = compiledVersions.get(file);
+                    if (!file.isFile() || compiledVersion != null && compiledVersion == lastModified) {
+                        continue;
+                    }
+                    compiledVersions.put(file, lastModified);
+                    refreshIndex(index, file);
+                    if (!Objects.equals(accessDescription, index.getAccessDescription(className))) {
+                        changedAccessors.add(className);
+                    }
+                    if (singleFile == null || singleFile.equals(file)) {
+                        modified.add(file);
+                    }
+                }
+                boolean osChanged = !shadowedOsClasses.equals(index.getShadowedOsClasses());
+                Set<File> dependents = new LinkedHashSet<>();
+                for (File file : dir.getAbsoluteFile().listFiles()) {
+                    if (!file.isFile() || !file.getName().endsWith(".jack") || modified.contains(file) || singleFile != null && !singleFile.equals(file)) {
+                        continue;
+                    }
+                    Set<String> inlined = inlinedClasses.get(file.getName().substring(0, file.getName().length() - 5));
+                    if (osChanged || inlined != null && !Collections.disjoint(inlined, changedAccessors)) {
+                        dependents.add(file);
+                    }
+                }
+                for (File file : modified) {
+                    long start = System.nanoTime();
+                    boolean success = compile(file, null, index, configuration, output, inlinedClasses);
+                    output.flush();
+                    long compileMillis = (System.nanoTime() - start) / 1000000;
+                    long latencyMillis = System.currentTimeMillis() - file.lastModified();
+                    System.err.println((success ? "Compiled " : "Failed ") + file.getName() + " in " + compileMillis + " ms (" + latencyMillis + " ms since modification)");
+                }
+                for (File file : dependents) {
+                    long start = System.nanoTime();
+                    boolean success = compile(file, null, index, configuration, output, inlinedClasses);
+                    output.flush();
+                    long compileMillis = (System.nanoTime() - start) / 1000000;
+                    System.err.println((success ? "Compiled " : "Failed ") + file.getName() + " in " + compileMillis + " ms ("
+                            + (osChanged ? "replaced OS classes changed to " + index.getShadowedOsClasses() : "accessors inlined from " + changedAccessors + " changed") + ")");
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles a stream of classes. Each input frame is a header line
+     * <code>class &lt;name&gt; &lt;length&gt;</code> followed by the source
+     * code (<code>length</code> bytes). Each class is answered as soon as it is
+     * compiled with zero or more frames
+     * <code>error &lt;line&gt; &lt;column&gt; &lt;length&gt;</code> (message),
+     * at most one frame <code>vm &lt;length&gt;</code> (VM code), and a final
+     * line <code>end &lt;name&gt; ok|failed</code>.
+     * <p>
+     * Calls are validated against the OS classes and the classes received so
+     * far, each one added to the index before it is compiled, so a class
+     * calling a class not received yet fails and has to be sent again after
+     * it.
+     */
+    static void stdio(InputStream in, OutputStream out, CompilationContext configuration) throws IOException {
+        InputStream is = new BufferedInputStream(in);
+        OutputStream os = new BufferedOutputStream(out);
+        CompilationContext context = getContext(configuration);
+        SignatureIndex index = new SignatureIndex();
+        String header;
+        while ((header = readLine(is)) != null) {
+            if (header.isEmpty()) {
+                continue;
+            }
+            String[] parts = header.split(" ");
+            if (parts.length != 3 || !parts[0].equals("class")) {
+                throw new IOException("Invalid frame header: " + header);
+            }
+            String className = parts[1];
+            byte[] source = new byte[Integer.parseInt(parts[2])];
+            int offset = 0;
+            while (offset < source.length) {
+                int read = is.read(source, offset, source.length - offset);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of stream reading class " + className);
+                }
+                offset += read;
+            }
+            String code = new String(source, "UTF-8");
+            context.index(code, index, 0);
+            CompilationResult result = context.compile(Collections.singletonMap(className, code), null, index);
+            for (Diagnostic diagnostic : result.getDiagnostics()) {
+                byte[] message = diagnostic.getMessage().getBytes("UTF-8");
+                os.write(("error " + diagnostic.getLineNumber() + " " + diagnostic.getColumnNumber() + " " + message.length + "\n").getBytes("UTF-8"));
+                os.write(message);
+            }
+            String vmCode = result.getOutputs().get(className);
+            if (vmCode != null) {
+                byte[] vm = vmCode.getBytes("UTF-8");
+                os.write(("vm " + vm.length + "\n").getBytes("UTF-8"));
+                os.write(vm);
+            }
+            os.write(("end " + className + " " + (result.isSuccessful() ? "ok" : "failed") + "\n").getBytes("UTF-8"));
+            os.flush();
+        }
+    }
+
+    /**
+     * @return the next '\n' terminated line, or null at the end of the stream
+     */
+    private static String readLine(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != '\n') {
+            if (b == -1) {
+                return baos.size() == 0 ? null : baos.toString("UTF-8");
+            }
+            if (b != '\r') {
+                baos.write(b);
+            }
+        }
+        return baos.toString("UTF-8");
+    }
+
+    private static boolean isArchive(String path) {
+        String lowerCase = path.toLowerCase();
+        return lowerCase.endsWith(".zip") || lowerCase.endsWith(".jar");
+    }
 
-        if (f.isDirectory()) {
-            File[] files = f.listFiles();
-            for (int i = 0; i < files.length; i++) {
-                File file = files[i];
-                if (file.isFile()) {
-                    compile(file);
+    /**
+     * Compiles the <code>.jack</code> entries of a zip or jar archive into an
+     * output zip archive, without extracting them. Each directory of the
+     * archive is a program with its own signature index. The archive is read
+     * twice, entry by entry: first to index the signatures, then to compile
+     * the classes, concurrently and with a bounded number of them in flight,
+     * so that only the sources being compiled are held in memory. The
+     * <code>.vm</code> entries are written in input order.
+     */
+    static void compileArchive(File in, File out, final CompilationContext configuration) throws IOException, InterruptedException {
+        try (final ZipFile zip = new ZipFile(in)) {
+            List<ZipEntry> entries = new ArrayList<>();
+            final Map<String, SignatureIndex> indexes = new HashMap<>();
+            Enumeration<? extends ZipEntry> enumeration = zip.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry entry = enumeration.nextElement();
+                if (entry.isDirectory() || !entry.getName().endsWith(".jack")) {
+                    continue;
                 }
+                entries.add(entry);
+                String dir = entry.getName().substring(0, entry.getName().lastIndexOf('/') + 1);
+                SignatureIndex index = indexes.get(dir);
+                if (index == null) {
+                    index = new SignatureIndex();
+                    indexes.put(dir, index);
+                }
+                CONTEXTS.get().index(read(zip, entry), index, 0);
+            }
+            int threads = Runtime.getRuntime().availableProcessors();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(out)))) {
+                Deque<Future<CompilationResult>> futures = new ArrayDeque<>();
+                int written = 0;
+                for (final ZipEntry entry : entries) {
+                    futures.add(executor.submit(new Callable<CompilationResult>() {
+                        @Override
+                        public CompilationResult call() throws IOException {
+                            String entryName = entry.getName();
+                            String className = entryName.substring(entryName.lastIndexOf('/') + 1, entryName.length() - 5);
+                            SignatureIndex index = indexes.get(entryName.substring(0, entryName.lastIndexOf('/') + 1));
+                            return getContext(configuration).compile(Collections.singletonMap(className, read(zip, entry)), null, index);
+                        }
+                    }));
+                    if (futures.size() == 2 * threads) {
+                        writeArchiveEntry(in, entries.get(written++), futures.poll(), zos);
+                    }
+                }
+                while (!futures.isEmpty()) {
+                    writeArchiveEntry(in, entries.get(written++), futures.poll(), zos);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static String read(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream is = zip.getInputStream(entry)) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
+            }
+            return new String(baos.toByteArray());
+        }
+    }
+
+    /**
+     * Waits for the compilation of the entry and writes its
+     * <code>.vm</code> entry, if successful.
+     */
+    private static void writeArchiveEntry(File in, ZipEntry entry, Future<CompilationResult> future, ZipOutputStream zos) throws IOException, InterruptedException {
+        CompilationResult result;
+        try {
+            result = future.get();
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        }
+        for (Diagnostic diagnostic : result.getDiagnostics()) {
+            System.err.println("Error compiling " + in + "!" + entry.getName() + ", line " + diagnostic.getLineNumber() + ", column " + diagnostic.getColumnNumber() + ": " + diagnostic.getMessage());
+        }
+        for (String vmCode : result.getOutputs().values()) {
+            ZipEntry vmEntry = new ZipEntry(entry.getName().substring(0, entry.getName().length() - 5) + ".vm");
+            vmEntry.setTime(entry.getTime());
+            zos.putNextEntry(vmEntry);
+            zos.write(vmCode.getBytes());
+            zos.closeEntry();
+        }
+    }
+
+    private static SignatureIndex loadIndex(File indexFile) throws IOException {
+        if (indexFile != null && indexFile.isFile()) {
+            try (InputStream is = new BufferedInputStream(new FileInputStream(indexFile))) {
+                return SignatureIndex.read(is);
+            } catch (IOException ioe) {
+                System.err.println("Ignoring signature index " + indexFile + ": " + ioe.getMessage());
             }
-        } else if (f.isFile()) {
-            compile(f);
         }
+        return new SignatureIndex();
     }
 
-    private static void compile(File f) throws CompilerException {
+    private static void saveIndex(SignatureIndex index, File indexFile) throws IOException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(indexFile))) {
+            index.write(os);
+        }
+    }
+
+    /**
+     * Brings the signature index up to date with the classes of the
+     * directory, reindexing only the sources modified since they were indexed.
+     */
+    static void refreshIndexDirectory(SignatureIndex index, File dir) throws IOException {
+        Set<String> classNames = new HashSet<>();
+        for (File file : dir.listFiles()) {
+            if (file.isFile() && file.getName().endsWith(".jack")) {
+                classNames.add(file.getName().substring(0, file.getName().length() - 5));
+                refreshIndex(index, file);
+            }
+        }
+        for (String className : index.getProjectClasses()) {
+            if (!classNames.contains(className)) {
+                index.remove(className);
+            }
+        }
+    }
+
+    private static void refreshIndex(SignatureIndex index, File f) throws IOException {
+        String className = f.getName().substring(0, f.getName().length() - 5);
+        long lastModified = f.lastModified();
+        if (index.getVersion(className) != lastModified) {
+            String source = new String(Files.readAllBytes(f.toPath()));
+            if (!CONTEXTS.get().index(source, index, lastModified)) {
+                index.remove(className);
+            }
+        }
+    }
+
+    /**
+     * Compiles the file, queuing its VM code in the output writer.
+     *
+     * @param inlinedClasses map where the classes whose accessors are
+     * generated inline in the class are recorded
+     */
+    private static boolean compile(File f, Profiler profiler, SignatureIndex index, CompilationContext configuration, OutputWriter output, Map<String, Set<String>> inlinedClasses) {
         if (f.getName().endsWith(".jack")) {
+            String className = f.getName().substring(0, f.getName().length() - 5);
             try {
-                String className = f.getName().substring(0, f.getName().length() - 5);
-                try (FileOutputStream fos = new FileOutputStream(new File(f.getParentFile(), className + ".vm"))) {
-                    ClassParser cp = new ClassParser(new Tokenizer(new String(Files.readAllBytes(f.toPath()))));
-                    ClassWriter cw = new ClassWriter(cp.getParsedClass());
-                    cw.writeCode(fos);
+                refreshIndex(index, f);
+                if (f.length() > STREAMING_THRESHOLD) {
+                    return compileStreaming(f, profiler, index, configuration, inlinedClasses);
+                }
+                String source = new String(Files.readAllBytes(f.toPath()));
+                CompilationResult result = getContext(configuration).compile(Collections.singletonMap(className, source), profiler, index);
+                String vmCode = result.getOutputs().get(className);
+                if (vmCode != null) {
+                    output.write(new File(f.getParentFile(), className + ".vm"), ByteBuffer.wrap(vmCode.getBytes()));
+                    inlinedClasses.put(className, result.getInlinedClasses().get(className));
                 }
+                for (Diagnostic diagnostic : result.getDiagnostics()) {
+                    System.err.println("Error compiling " + f + ", line " + diagnostic.getLineNumber() + ", column " + diagnostic.getColumnNumber() + ": " + diagnostic.getMessage());
+                }
+                return result.isSuccessful();
             } catch (IOException ioe) {
                 throw new RuntimeException(ioe);
-            } catch (CompilerException ce) {
-                System.err.println("Error compiling " + f + ", line " + ce.getLineNumber() + ", column " + ce.getColNumber() + ": " + ce.getMessage());
             }
         }
+        return false;
+    }
+
+    /**
+     * Compiles a large source with an event-driven parser and a lazy
+     * tokenizer, streaming the code of each subroutine to a temporary file as
+     * soon as it is parsed, so that memory is bounded by the largest
+     * subroutine and not by the class. The temporary file replaces the VM file
+     * if the class has no errors.
+     */
+    private static boolean compileStreaming(File f, Profiler profiler, SignatureIndex index, CompilationContext configuration, Map<String, Set<String>> inlinedClasses) throws IOException {
+        String className = f.getName().substring(0, f.getName().length() - 5);
+        File vmFile = new File(f.getParentFile(), className + ".vm");
+        File tmpFile = new File(f.getParentFile(), className + ".vm.tmp");
+        List<CompilerException> errors = new ArrayList<>();
+        try {
+            if (profiler != null && className.equals(Profiler.CLASS_NAME)) {
+                errors.add(new CompilerException("Class name " + Profiler.CLASS_NAME + " is reserved when profiling", 1, 1));
+            }
+            String source = new String(Files.readAllBytes(f.toPath()));
+            try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile)))) {
+                ClassWriter.Streaming writer = new ClassWriter.Streaming(profiler, errors, index, configuration, w);
+                ClassParser cp = new ClassParser(Tokenizer.lazy(source, errors), errors, writer);
+                if (cp.getParsedClass() != null && !cp.getParsedClass().getName().equals(className)) {
+                    errors.add(new CompilerException("Class " + cp.getParsedClass().getName() + " must be declared in a source named " + cp.getParsedClass().getName(), cp.getParsedClass().getLineNumber(), cp.getParsedClass().getColumnNumber()));
+                }
+                if (configuration.getFrameReport() != null && errors.isEmpty()) {
+                    configuration.getFrameReport().addAll(writer.getFrameReport());
+                }
+                if (configuration.getIntrinsicReport() != null && errors.isEmpty()) {
+                    configuration.getIntrinsicReport().addAll(writer.getIntrinsicReport());
+                }
+                if (errors.isEmpty()) {
+                    inlinedClasses.put(className, writer.getInlinedClasses());
+                }
+            }
+        } catch (CompilerException ce) {
+            throw new AssertionError(ce); // errors are collected
+        }
+        if (errors.isEmpty()) {
+            Files.move(tmpFile.toPath(), vmFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(tmpFile.toPath());
+        }
+        Collections.sort(errors, CompilationContext.POSITION_COMPARATOR);
+        for (CompilerException ce : errors) {
+            System.err.println("Error compiling " + f + ", line " + ce.getLineNumber() + ", column " + ce.getColNumber() + ": " + ce.getMessage());
+        }
+        return errors.isEmpty();
+    }
+
+    /**
+     * Writes the token (<code>XxxT.xml</code>) and parse tree
+     * (<code>Xxx.xml</code>) documents of the source file. Both are streamed to
+     * disk as they are generated.
+     */
+    static boolean writeXml(File f) {
+        if (!f.getName().endsWith(".jack")) {
+            return false;
+        }
+        String className = f.getName().substring(0, f.getName().length() - 5);
+        List<CompilerException> errors = new ArrayList<>();
+        try {
+            String source = new String(Files.readAllBytes(f.toPath()));
+            try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(f.getParentFile(), className + "T.xml"))))) {
+                Tokenizer.writeXml(source, errors, w);
+            }
+            if (errors.isEmpty()) {
+                try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(f.getParentFile(), className + ".xml"))))) {
+                    XmlWriter xml = new XmlWriter(w, "  ", true);
+                    new ClassParser(Tokenizer.lazy(source, errors), errors, xml);
+                    xml.flush();
+                }
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        } catch (CompilerException ce) {
+            throw new AssertionError(ce); // errors are collected
+        }
+        for (CompilerException ce : errors) {
+            System.err.println("Error parsing " + f + ", line " + ce.getLineNumber() + ", column " + ce.getColNumber() + ": " + ce.getMessage());
+        }
+        return errors.isEmpty();
+    }
+
+    private static void writeProfiler(Profiler profiler, File outputDir, OutputWriter output) throws CompilerException, IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        profiler.writeCode(baos);
+        output.write(new File(outputDir, Profiler.CLASS_NAME + ".vm"), ByteBuffer.wrap(baos.toByteArray()));
+        System.err.println("Profiler: " + profiler.getCounterCount() + " counters, " + Profiler.INSTRUCTIONS_PER_EVENT + " VM instructions per counted event");
     }
 }
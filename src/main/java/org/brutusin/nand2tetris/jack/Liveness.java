@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.brutusin.nand2tetris.jack.model.Declaration;
+import org.brutusin.nand2tetris.jack.model.DoStatement;
+import org.brutusin.nand2tetris.jack.model.Expression;
+import org.brutusin.nand2tetris.jack.model.IfStatement;
+import org.brutusin.nand2tetris.jack.model.LetStatement;
+import org.brutusin.nand2tetris.jack.model.ReturnStatement;
+import org.brutusin.nand2tetris.jack.model.Statement;
+import org.brutusin.nand2tetris.jack.model.Subroutine;
+import org.brutusin.nand2tetris.jack.model.SubroutineCall;
+import org.brutusin.nand2tetris.jack.model.Term;
+import org.brutusin.nand2tetris.jack.model.WhileStatement;
+
+/**
+ * Liveness analysis of the locals of a subroutine, computed backwards over
+ * the statement tree (to a fixed point for <code>while</code> loops).
+ * <p>
+ * Two locals interfere when one is assigned while the other is live, or when
+ * both are live at the entry of the subroutine, where they hold the zero the
+ * VM initializes them to. Locals that do not interfere share a frame slot.
+ * Assignments to a local that is not live afterwards are dead stores: they
+ * are dropped, or only evaluated if their value has side effects (see
+ * {@link #hasEffects(Term)}).
+ * <p>
+ * Calls on locals replaced by their fields (see {@link ScalarReplacement}) do
+ * not read them, so those locals get no slot.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+class Liveness {
+
+    private final SymbolTable symbols;
+    private final ScalarReplacement scalars;
+    private final BitSet[] interferences;
+    private final BitSet allocated = new BitSet();
+    private final Set<LetStatement> deadStores = Collections.newSetFromMap(new IdentityHashMap<LetStatement, Boolean>());
+    private final Map<WhileStatement, BitSet> liveAfterLoops = new IdentityHashMap<>();
+    private final int[] slots;
+    private int slotCount;
+
+    /**
+     * @param subroutine subroutine to analyze
+     * @param symbols symbol table of the subroutine scope
+     * @param scalars optional scalar replacement of the subroutine
+     */
+    Liveness(Subroutine subroutine, SymbolTable symbols, ScalarReplacement scalars) {
+        this.symbols = symbols;
+        this.scalars = scalars;
+        int localCount = symbols.count(Declaration.Scope.local);
+        this.interferences = new BitSet[localCount];
+        for (int i = 0; i < localCount; i++) {
+            interferences[i] = new BitSet();
+        }
+        BitSet entry = analyzeStatements(subroutine.getStatements(), new BitSet(), true);
+        for (int i = entry.nextSetBit(0); i >= 0; i = entry.nextSetBit(i + 1)) {
+            interferences[i].or(entry);
+            interferences[i].clear(i);
+        }
+        allocated.or(entry);
+        this.slots = new int[localCount];
+        Arrays.fill(slots, -1);
+        BitSet taken = new BitSet();
+        for (int i = allocated.nextSetBit(0); i >= 0; i = allocated.nextSetBit(i + 1)) {
+            taken.clear();
+            BitSet neighbours = interferences[i];
+            for (int j = neighbours.nextSetBit(0); j >= 0; j = neighbours.nextSetBit(j + 1)) {
+                if (slots[j] >= 0) {
+                    taken.set(slots[j]);
+                }
+            }
+            slots[i] = taken.nextClearBit(0);
+            slotCount = Math.max(slotCount, slots[i] + 1);
+        }
+    }
+
+    /**
+     * @return the number of frame slots needed by the locals
+     */
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * @param localIndex index of the local in declaration order
+     * @return the frame slot of the local, or -1 if it is never live
+     */
+    int getSlot(int localIndex) {
+        return slots[localIndex];
+    }
+
+    /**
+     * @return whether the statement assigns a local that is not read
+     * afterwards
+     */
+    boolean isDeadStore(LetStatement statement) {
+        return deadStores.contains(statement);
+    }
+
+    /**
+     * @param localIndex index of the local in declaration order
+     * @return whether the local is read after the loop ends (by its
+     * condition)
+     */
+    boolean isLiveAfter(WhileStatement loop, int localIndex) {
+        BitSet live = liveAfterLoops.get(loop);
+        return live == null || live.get(localIndex);
+    }
+
+    /**
+     * @return whether evaluating the term can have effects other than
+     * computing its value: calls, divisions (that fail when the divisor is
+     * zero) and string constants (that allocate)
+     */
+    static boolean hasEffects(Term term) {
+        if (term instanceof Term.Constant) {
+            return ((Term.Constant) term).getType() == Term.Constant.Type.string;
+        } else if (term instanceof Term.ArrayReference) {
+            return hasEffects(((Term.ArrayReference) term).getIndex());
+        } else if (term instanceof Term.UnaryTerm) {
+            return hasEffects(((Term.UnaryTerm) term).getTerm());
+        } else if (term instanceof Expression) {
+            Expression exp = (Expression) term;
+            for (int i = 0; i < exp.getOperatorCount(); i++) {
+                if (exp.getOperator(i) == '/') {
+                    return true;
+                }
+            }
+            for (Term t : exp.getTerms()) {
+                if (hasEffects(t)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return term instanceof SubroutineCall;
+    }
+
+    /**
+     * @param out locals live after the statements
+     * @param record whether to record interferences and dead stores, once the
+     * live sets are final
+     * @return locals live before the statements
+     */
+    private BitSet analyzeStatements(List<Statement> statements, BitSet out, boolean record) {
+        BitSet live = (BitSet) out.clone();
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            live = analyzeStatement(statements.get(i), live, record);
+        }
+        return live;
+    }
+
+    private BitSet analyzeStatement(Statement statement, BitSet out, boolean record) {
+        BitSet in = (BitSet) out.clone();
+        if (statement instanceof LetStatement) {
+            LetStatement let = (LetStatement) statement;
+            Term.Reference target = let.getTarget();
+            int local = target instanceof Term.ArrayReference ? -1 : getLocal(target.getVarName());
+            if (local < 0) {
+                addUses(target, in);
+                addUses(let.getExpression(), in);
+            } else if (!out.get(local)) {
+                if (record) {
+                    deadStores.add(let);
+                }
+                if (hasEffects(let.getExpression())) {
+                    addUses(let.getExpression(), in);
+                }
+            } else {
+                in.clear(local);
+                if (record) {
+                    allocated.set(local);
+                    interferences[local].or(in);
+                    for (int i = in.nextSetBit(0); i >= 0; i = in.nextSetBit(i + 1)) {
+                        interferences[i].set(local);
+                    }
+                }
+                addUses(let.getExpression(), in);
+            }
+        } else if (statement instanceof IfStatement) {
+            IfStatement ifStatement = (IfStatement) statement;
+            in = analyzeStatements(ifStatement.getIfStatements(), out, record);
+            in.or(analyzeStatements(ifStatement.getElseStatements(), out, record));
+            addUses(ifStatement.getCondition(), in);
+        } else if (statement instanceof WhileStatement) {
+            WhileStatement whileStatement = (WhileStatement) statement;
+            addUses(whileStatement.getCondition(), in);
+            while (true) {
+                BitSet next = analyzeStatements(whileStatement.getStatements(), in, false);
+                next.or(out);
+                addUses(whileStatement.getCondition(), next);
+                if (next.equals(in)) {
+                    break;
+                }
+                in = next;
+            }
+            if (record) {
+                analyzeStatements(whileStatement.getStatements(), in, true);
+                liveAfterLoops.put(whileStatement, (BitSet) out.clone());
+            }
+        } else if (statement instanceof DoStatement) {
+            addUses(((DoStatement) statement).getAction(), in);
+        } else if (statement instanceof ReturnStatement) {
+            in.clear();
+            addUses(((ReturnStatement) statement).getExpression(), in);
+        }
+        return in;
+    }
+
+    private void addUses(Term term, BitSet live) {
+        if (term instanceof Expression) {
+            for (Term t : ((Expression) term).getTerms()) {
+                addUses(t, live);
+            }
+        } else if (term instanceof Term.Reference) {
+            int local = getLocal(((Term.Reference) term).getVarName());
+            if (local >= 0) {
+                live.set(local);
+            }
+            if (term instanceof Term.ArrayReference) {
+                addUses(((Term.ArrayReference) term).getIndex(), live);
+            }
+        } else if (term instanceof Term.UnaryTerm) {
+            addUses(((Term.UnaryTerm) term).getTerm(), live);
+        } else if (term instanceof SubroutineCall) {
+            SubroutineCall call = (SubroutineCall) term;
+            if (call.getTarget() != null && (scalars == null || !scalars.isReplaced(call.getTarget()))) {
+                int local = getLocal(call.getTarget());
+                if (local >= 0) {
+                    live.set(local);
+                }
+            }
+            for (Expression argument : call.getArguments()) {
+                addUses(argument, live);
+            }
+        }
+    }
+
+    /**
+     * @return the index of the local, or -1 if the name is not a local
+     */
+    private int getLocal(String name) {
+        SymbolTable.SymEntry entry = symbols.getEntry(name);
+        if (entry == null || entry.getDeclaration().getScope() != Declaration.Scope.local) {
+            return -1;
+        }
+        return entry.getIndex();
+    }
+}
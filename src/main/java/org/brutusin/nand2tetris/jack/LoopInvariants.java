@@ -0,0 +1,369 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.brutusin.nand2tetris.jack.model.Declaration;
+import org.brutusin.nand2tetris.jack.model.DoStatement;
+import org.brutusin.nand2tetris.jack.model.Expression;
+import org.brutusin.nand2tetris.jack.model.IfStatement;
+import org.brutusin.nand2tetris.jack.model.LetStatement;
+import org.brutusin.nand2tetris.jack.model.ReturnStatement;
+import org.brutusin.nand2tetris.jack.model.Statement;
+import org.brutusin.nand2tetris.jack.model.Subroutine;
+import org.brutusin.nand2tetris.jack.model.SubroutineCall;
+import org.brutusin.nand2tetris.jack.model.Term;
+import org.brutusin.nand2tetris.jack.model.WhileStatement;
+
+/**
+ * Loop-invariant code motion analysis of a subroutine. For each
+ * <code>while</code> loop it selects the maximal sub-expressions (and
+ * leading operand runs of flat expressions, evaluated from left to right)
+ * that compute the same value in every iteration, so that they are evaluated
+ * once before the loop into a temporary local.
+ * <p>
+ * The analysis is conservative. Locals and arguments are invariant when the
+ * loop does not assign them. Fields, statics and array elements are memory:
+ * they are only invariant when the loop writes no field, static or array
+ * element and makes no subroutine call other than the pure OS functions it is
+ * given. Hoisted code runs even if the loop does not iterate, so nothing that
+ * can fail is hoisted: no string constants, no division but by non-zero
+ * constants and no array reads but from the loop condition.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+class LoopInvariants {
+
+    /**
+     * Term evaluated before a loop into a temporary local.
+     */
+    static class Hoist {
+
+        private final Term term;
+        private final int prefixLength;
+        private final int slot;
+
+        private Hoist(Term term, int prefixLength, int slot) {
+            this.term = term;
+            this.prefixLength = prefixLength;
+            this.slot = slot;
+        }
+
+        public Term getTerm() {
+            return term;
+        }
+
+        /**
+         * @return the number of leading terms of the expression that are
+         * hoisted, or 0 if the whole term is
+         */
+        public int getPrefixLength() {
+            return prefixLength;
+        }
+
+        /**
+         * @return index of the temporary, from 0
+         */
+        public int getSlot() {
+            return slot;
+        }
+    }
+
+    private final SymbolTable symbols;
+    private final Set<String> pureRoutines;
+    private final Liveness liveness;
+    private final Map<WhileStatement, List<Hoist>> hoists = new IdentityHashMap<>();
+    private final Set<Term> claimed = Collections.newSetFromMap(new IdentityHashMap<Term, Boolean>());
+    private int liveTemps;
+    private int tempCount;
+
+    /**
+     * @param subroutine subroutine to analyze
+     * @param symbols symbol table of the subroutine scope
+     * @param pureRoutines qualified names of the functions without side
+     * effects
+     * @param liveness optional liveness of the locals, whose dead stores
+     * without effects are not generated
+     */
+    LoopInvariants(Subroutine subroutine, SymbolTable symbols, Set<String> pureRoutines, Liveness liveness) {
+        this.symbols = symbols;
+        this.pureRoutines = pureRoutines;
+        this.liveness = liveness;
+        analyzeStatements(subroutine.getStatements());
+    }
+
+    /**
+     * @return the number of temporaries needed by the subroutine. Those of
+     * disjoint loops share slots.
+     */
+    int getTempCount() {
+        return tempCount;
+    }
+
+    /**
+     * @return the terms to evaluate before the loop, in order
+     */
+    List<Hoist> getHoists(WhileStatement loop) {
+        List<Hoist> ret = hoists.get(loop);
+        return ret == null ? Collections.<Hoist>emptyList() : ret;
+    }
+
+    private void analyzeStatements(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement instanceof WhileStatement) {
+                analyzeLoop((WhileStatement) statement);
+            } else if (statement instanceof IfStatement) {
+                analyzeStatements(((IfStatement) statement).getIfStatements());
+                analyzeStatements(((IfStatement) statement).getElseStatements());
+            }
+        }
+    }
+
+    private void analyzeLoop(WhileStatement loop) {
+        Effects effects = new Effects();
+        effects.addTerm(loop.getCondition());
+        effects.addStatements(loop.getStatements());
+        List<Hoist> list = new ArrayList<>();
+        find(loop.getCondition(), false, effects, list);
+        findInStatements(loop.getStatements(), effects, list);
+        int base = liveTemps;
+        if (!list.isEmpty()) {
+            hoists.put(loop, list);
+            liveTemps += list.size();
+            tempCount = Math.max(tempCount, liveTemps);
+        }
+        analyzeStatements(loop.getStatements());
+        liveTemps = base;
+    }
+
+    private void findInStatements(List<Statement> statements, Effects effects, List<Hoist> list) {
+        for (Statement statement : statements) {
+            if (statement instanceof LetStatement) {
+                LetStatement let = (LetStatement) statement;
+                if (liveness != null && liveness.isDeadStore(let) && !Liveness.hasEffects(let.getExpression())) {
+                    continue;
+                }
+                if (let.getTarget() instanceof Term.ArrayReference) {
+                    find(((Term.ArrayReference) let.getTarget()).getIndex(), true, effects, list);
+                }
+                find(let.getExpression(), true, effects, list);
+            } else if (statement instanceof IfStatement) {
+                IfStatement ifStatement = (IfStatement) statement;
+                find(ifStatement.getCondition(), true, effects, list);
+                findInStatements(ifStatement.getIfStatements(), effects, list);
+                findInStatements(ifStatement.getElseStatements(), effects, list);
+            } else if (statement instanceof WhileStatement) {
+                WhileStatement whileStatement = (WhileStatement) statement;
+                find(whileStatement.getCondition(), true, effects, list);
+                findInStatements(whileStatement.getStatements(), effects, list);
+            } else if (statement instanceof DoStatement) {
+                for (Expression argument : ((DoStatement) statement).getAction().getArguments()) {
+                    find(argument, true, effects, list);
+                }
+            } else if (statement instanceof ReturnStatement) {
+                find(((ReturnStatement) statement).getExpression(), true, effects, list);
+            }
+        }
+    }
+
+    /**
+     * Adds to the list the maximal invariant parts of the term.
+     *
+     * @param speculative whether the term might not be evaluated in a loop
+     * that is entered
+     */
+    private void find(Term term, boolean speculative, Effects effects, List<Hoist> list) {
+        if (term == null || claimed.contains(term)) {
+            return;
+        }
+        if (isCompound(term) && isInvariant(term, speculative, effects)) {
+            claimed.add(term);
+            list.add(new Hoist(term, 0, liveTemps + list.size()));
+            return;
+        }
+        if (term instanceof Expression) {
+            Expression exp = (Expression) term;
+            List<Term> terms = exp.getTerms();
+            int prefixLength = 0;
+            if (terms.size() > 2) {
+                while (prefixLength < terms.size() - 1 && isInvariant(terms.get(prefixLength), speculative, effects)
+                        && (prefixLength == 0 || isSafeOperation(exp, prefixLength))) {
+                    prefixLength++;
+                }
+                if (prefixLength >= 2) {
+                    claimed.add(exp);
+                    list.add(new Hoist(exp, prefixLength, liveTemps + list.size()));
+                } else {
+                    prefixLength = 0;
+                }
+            }
+            for (int i = prefixLength; i < terms.size(); i++) {
+                find(terms.get(i), speculative, effects, list);
+            }
+        } else if (term instanceof Term.ArrayReference) {
+            find(((Term.ArrayReference) term).getIndex(), speculative, effects, list);
+        } else if (term instanceof Term.UnaryTerm) {
+            find(((Term.UnaryTerm) term).getTerm(), speculative, effects, list);
+        } else if (term instanceof SubroutineCall) {
+            for (Expression argument : ((SubroutineCall) term).getArguments()) {
+                find(argument, speculative, effects, list);
+            }
+        }
+    }
+
+    /**
+     * @return whether hoisting the term saves instructions: a unary operator
+     * on a single value (as in <code>-1</code>) is not worth a local
+     */
+    private static boolean isCompound(Term term) {
+        if (term instanceof Expression) {
+            return ((Expression) term).getTerms().size() > 1;
+        } else if (term instanceof Term.UnaryTerm) {
+            return isCompound(((Term.UnaryTerm) term).getTerm());
+        }
+        return term instanceof Term.ArrayReference || term instanceof SubroutineCall;
+    }
+
+    private boolean isInvariant(Term term, boolean speculative, Effects effects) {
+        if (term instanceof Term.Constant) {
+            return ((Term.Constant) term).getType() != Term.Constant.Type.string;
+        } else if (term instanceof Term.ArrayReference) {
+            Term.ArrayReference ref = (Term.ArrayReference) term;
+            return !speculative && !effects.memoryWritten && isInvariantVariable(ref.getVarName(), effects)
+                    && isInvariant(ref.getIndex(), speculative, effects);
+        } else if (term instanceof Term.Reference) {
+            return isInvariantVariable(((Term.Reference) term).getVarName(), effects);
+        } else if (term instanceof Term.UnaryTerm) {
+            return isInvariant(((Term.UnaryTerm) term).getTerm(), speculative, effects);
+        } else if (term instanceof Expression) {
+            Expression exp = (Expression) term;
+            List<Term> terms = exp.getTerms();
+            for (int i = 0; i < terms.size(); i++) {
+                if (!isInvariant(terms.get(i), speculative, effects) || i > 0 && !isSafeOperation(exp, i)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (term instanceof SubroutineCall) {
+            SubroutineCall call = (SubroutineCall) term;
+            if (!isPure(call)) {
+                return false;
+            }
+            for (Expression argument : call.getArguments()) {
+                if (!isInvariant(argument, speculative, effects)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isInvariantVariable(String name, Effects effects) {
+        SymbolTable.SymEntry entry = symbols.getEntry(name);
+        if (entry == null || effects.assigned.contains(name)) {
+            return false;
+        }
+        Declaration.Scope scope = entry.getDeclaration().getScope();
+        return scope == Declaration.Scope.local || scope == Declaration.Scope.argument || !effects.memoryWritten;
+    }
+
+    /**
+     * @return whether applying the operator that precedes the term cannot
+     * fail: anything but a division by a term that is not a non-zero constant
+     */
+    private static boolean isSafeOperation(Expression exp, int termIndex) {
+        if (exp.getOperator(termIndex - 1) != '/') {
+            return true;
+        }
+        Term divisor = exp.getTerms().get(termIndex);
+        return divisor instanceof Term.Constant && ((Term.Constant) divisor).getType() == Term.Constant.Type.integer
+                && Integer.parseInt(((Term.Constant) divisor).getValue()) != 0;
+    }
+
+    private boolean isPure(SubroutineCall call) {
+        return call.getTarget() != null && symbols.getEntry(call.getTarget()) == null
+                && pureRoutines.contains(call.getTarget() + "." + call.getName());
+    }
+
+    /**
+     * Variables and memory written by a loop.
+     */
+    private class Effects {
+
+        private final Set<String> assigned = new HashSet<>();
+        private boolean memoryWritten;
+
+        void addStatements(List<Statement> statements) {
+            for (Statement statement : statements) {
+                if (statement instanceof LetStatement) {
+                    LetStatement let = (LetStatement) statement;
+                    Term.Reference target = let.getTarget();
+                    if (target instanceof Term.ArrayReference) {
+                        memoryWritten = true;
+                        addTerm(((Term.ArrayReference) target).getIndex());
+                    } else {
+                        assigned.add(target.getVarName());
+                        SymbolTable.SymEntry entry = symbols.getEntry(target.getVarName());
+                        if (entry == null || entry.getDeclaration().getScope() == Declaration.Scope.field || entry.getDeclaration().getScope() == Declaration.Scope.statiz) {
+                            memoryWritten = true;
+                        }
+                    }
+                    addTerm(let.getExpression());
+                } else if (statement instanceof IfStatement) {
+                    IfStatement ifStatement = (IfStatement) statement;
+                    addTerm(ifStatement.getCondition());
+                    addStatements(ifStatement.getIfStatements());
+                    addStatements(ifStatement.getElseStatements());
+                } else if (statement instanceof WhileStatement) {
+                    WhileStatement whileStatement = (WhileStatement) statement;
+                    addTerm(whileStatement.getCondition());
+                    addStatements(whileStatement.getStatements());
+                } else if (statement instanceof DoStatement) {
+                    addTerm(((DoStatement) statement).getAction());
+                } else if (statement instanceof ReturnStatement) {
+                    addTerm(((ReturnStatement) statement).getExpression());
+                }
+            }
+        }
+
+        void addTerm(Term term) {
+            if (term instanceof Expression) {
+                for (Term t : ((Expression) term).getTerms()) {
+                    addTerm(t);
+                }
+            } else if (term instanceof Term.ArrayReference) {
+                addTerm(((Term.ArrayReference) term).getIndex());
+            } else if (term instanceof Term.UnaryTerm) {
+                addTerm(((Term.UnaryTerm) term).getTerm());
+            } else if (term instanceof SubroutineCall) {
+                SubroutineCall call = (SubroutineCall) term;
+                if (!isPure(call)) {
+                    memoryWritten = true;
+                }
+                for (Expression argument : call.getArguments()) {
+                    addTerm(argument);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.brutusin.nand2tetris.jack.model.Declaration;
+import org.brutusin.nand2tetris.jack.model.DoStatement;
+import org.brutusin.nand2tetris.jack.model.Expression;
+import org.brutusin.nand2tetris.jack.model.IfStatement;
+import org.brutusin.nand2tetris.jack.model.LetStatement;
+import org.brutusin.nand2tetris.jack.model.Statement;
+import org.brutusin.nand2tetris.jack.model.Subroutine;
+import org.brutusin.nand2tetris.jack.model.SubroutineCall;
+import org.brutusin.nand2tetris.jack.model.Term;
+import org.brutusin.nand2tetris.jack.model.WhileStatement;
+
+/**
+ * Unrolling of the <code>while</code> loops with a constant trip count: a
+ * loop right after <code>let i = c</code>, with condition <code>i &lt; n</code>
+ * (or <code>i &gt; n</code>) for a constant <code>n</code>, and a body of
+ * <code>let</code> and <code>do</code> statements, one of them being the only
+ * assignment to <code>i</code>, a unit step <code>let i = i + 1</code> (or
+ * <code>- 1</code>) towards the bound.
+ * <p>
+ * A loop is unrolled fully if its code grows by at most the budget: the body
+ * is repeated once per iteration, with <code>i</code> replaced by its value
+ * and no step, test or jump. Otherwise it is unrolled partially by the
+ * largest factor dividing the trip count within the budget, testing the
+ * condition once per group of iterations. Sizes are estimated in VM
+ * instructions. Bodies with nested control flow are not unrolled, as their
+ * label ids are reserved per statement.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+class LoopUnrolling {
+
+    /**
+     * Unrolling of a loop.
+     */
+    static class Unrolling {
+
+        private final SymbolTable.SymEntry variable;
+        private final LetStatement step;
+        private final int initialValue;
+        private final int increment;
+        private final int tripCount;
+        private final int factor;
+
+        private Unrolling(SymbolTable.SymEntry variable, LetStatement step, int initialValue, int increment, int tripCount, int factor) {
+            this.variable = variable;
+            this.step = step;
+            this.initialValue = initialValue;
+            this.increment = increment;
+            this.tripCount = tripCount;
+            this.factor = factor;
+        }
+
+        /**
+         * @return the induction variable
+         */
+        public SymbolTable.SymEntry getVariable() {
+            return variable;
+        }
+
+        /**
+         * @return the statement stepping the variable
+         */
+        public LetStatement getStep() {
+            return step;
+        }
+
+        public int getInitialValue() {
+            return initialValue;
+        }
+
+        /**
+         * @return 1 or -1
+         */
+        public int getIncrement() {
+            return increment;
+        }
+
+        public int getTripCount() {
+            return tripCount;
+        }
+
+        /**
+         * @return the number of copies of the body per test, the trip count
+         * if the loop is fully unrolled
+         */
+        public int getFactor() {
+            return factor;
+        }
+
+        public boolean isFull() {
+            return factor == tripCount;
+        }
+    }
+
+    private final SymbolTable symbols;
+    private final int budget;
+    private final Map<WhileStatement, Unrolling> unrollings = new IdentityHashMap<>();
+
+    /**
+     * @param subroutine subroutine to analyze
+     * @param symbols symbol table of the subroutine scope
+     * @param budget maximum number of VM instructions an unrolling may add
+     */
+    LoopUnrolling(Subroutine subroutine, SymbolTable symbols, int budget) {
+        this.symbols = symbols;
+        this.budget = budget;
+        analyzeStatements(subroutine.getStatements());
+    }
+
+    /**
+     * @return the unrolling of the loop, or <code>null</code> if it is not
+     * unrolled
+     */
+    Unrolling get(WhileStatement loop) {
+        return unrollings.get(loop);
+    }
+
+    private void analyzeStatements(List<Statement> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = statements.get(i);
+            if (statement instanceof WhileStatement) {
+                WhileStatement loop = (WhileStatement) statement;
+                Unrolling unrolling = i > 0 && statements.get(i - 1) instanceof LetStatement ? analyzeLoop((LetStatement) statements.get(i - 1), loop) : null;
+                if (unrolling != null) {
+                    unrollings.put(loop, unrolling);
+                } else {
+                    analyzeStatements(loop.getStatements());
+                }
+            } else if (statement instanceof IfStatement) {
+                analyzeStatements(((IfStatement) statement).getIfStatements());
+                analyzeStatements(((IfStatement) statement).getElseStatements());
+            }
+        }
+    }
+
+    private Unrolling analyzeLoop(LetStatement init, WhileStatement loop) {
+        Integer initialValue = getConstant(init.getExpression());
+        if (initialValue == null || init.getTarget() instanceof Term.ArrayReference) {
+            return null;
+        }
+        String name = init.getTarget().getVarName();
+        SymbolTable.SymEntry variable = symbols.getEntry(name);
+        if (variable == null || variable.getDeclaration().getScope() != Declaration.Scope.local && variable.getDeclaration().getScope() != Declaration.Scope.argument) {
+            return null;
+        }
+        Term condition = loop.getCondition();
+        while (condition instanceof Expression && ((Expression) condition).getTerms().size() == 1) {
+            condition = ((Expression) condition).getTerms().get(0);
+        }
+        if (!(condition instanceof Expression) || ((Expression) condition).getTerms().size() != 2) {
+            return null;
+        }
+        Expression comparison = (Expression) condition;
+        char operator = comparison.getOperator(0);
+        if (operator != '<' && operator != '>') {
+            return null;
+        }
+        Integer bound;
+        if (isVariable(comparison.getTerms().get(0), name)) {
+            bound = getConstant(comparison.getTerms().get(1));
+        } else if (isVariable(comparison.getTerms().get(1), name)) {
+            bound = getConstant(comparison.getTerms().get(0));
+            operator = operator == '<' ? '>' : '<';
+        } else {
+            return null;
+        }
+        if (bound == null) {
+            return null;
+        }
+        int increment = operator == '<' ? 1 : -1;
+        LetStatement step = null;
+        int bodySize = 0;
+        for (Statement statement : loop.getStatements()) {
+            if (statement instanceof LetStatement) {
+                LetStatement let = (LetStatement) statement;
+                if (!(let.getTarget() instanceof Term.ArrayReference) && let.getTarget().getVarName().equals(name)) {
+                    if (step != null || !isStep(let.getExpression(), name, increment)) {
+                        return null;
+                    }
+                    step = let;
+                } else {
+                    bodySize += size(let);
+                }
+            } else if (statement instanceof DoStatement) {
+                bodySize += size(((DoStatement) statement).getAction()) + 1;
+            } else {
+                return null;
+            }
+        }
+        if (step == null) {
+            return null;
+        }
+        int tripCount = Math.max(0, increment * (bound - initialValue));
+        int stepSize = size(step);
+        int rolledSize = bodySize + stepSize + size(loop.getCondition()) + 2;
+        if ((long) tripCount * bodySize + 2 - rolledSize <= budget) {
+            return new Unrolling(variable, step, initialValue, increment, tripCount, tripCount);
+        }
+        for (int factor = Math.min(tripCount / 2, budget / (bodySize + stepSize) + 1); factor >= 2; factor--) {
+            if (tripCount % factor == 0) {
+                return new Unrolling(variable, step, initialValue, increment, tripCount, factor);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isStep(Expression exp, String name, int increment) {
+        List<Term> terms = exp.getTerms();
+        if (terms.size() != 2) {
+            return false;
+        }
+        if (increment > 0) {
+            return exp.getOperator(0) == '+' && (isVariable(terms.get(0), name) && isOne(terms.get(1)) || isOne(terms.get(0)) && isVariable(terms.get(1), name));
+        }
+        return exp.getOperator(0) == '-' && isVariable(terms.get(0), name) && isOne(terms.get(1));
+    }
+
+    private static boolean isOne(Term term) {
+        Integer value = getConstant(term);
+        return value != null && value == 1;
+    }
+
+    private static boolean isVariable(Term term, String name) {
+        return term instanceof Term.Reference && !(term instanceof Term.ArrayReference) && ((Term.Reference) term).getVarName().equals(name);
+    }
+
+    /**
+     * @return the value of an integer constant, negated or not, or
+     * <code>null</code> if the term is not one
+     */
+    private static Integer getConstant(Term term) {
+        while (term instanceof Expression && ((Expression) term).getTerms().size() == 1) {
+            term = ((Expression) term).getTerms().get(0);
+        }
+        if (term instanceof Term.UnaryTerm && ((Term.UnaryTerm) term).getOperator() == '-') {
+            Integer value = getConstant(((Term.UnaryTerm) term).getTerm());
+            return value == null ? null : -value;
+        }
+        if (term instanceof Term.Constant && ((Term.Constant) term).getType() == Term.Constant.Type.integer) {
+            return Integer.valueOf(((Term.Constant) term).getValue());
+        }
+        return null;
+    }
+
+    /**
+     * @return the estimated number of VM instructions of the statement
+     */
+    private int size(LetStatement let) {
+        int ret = size(let.getExpression()) + 1;
+        if (let.getTarget() instanceof Term.ArrayReference) {
+            ret += size(((Term.ArrayReference) let.getTarget()).getIndex()) + 3;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the estimated number of VM instructions of the term
+     */
+    private int size(Term term) {
+        if (term instanceof Term.Constant) {
+            Term.Constant constant = (Term.Constant) term;
+            if (constant.getType() == Term.Constant.Type.string) {
+                return 2 + 2 * constant.getValue().length();
+            }
+            return constant.getValue().equals("true") ? 2 : 1;
+        } else if (term instanceof Term.ArrayReference) {
+            return size(((Term.ArrayReference) term).getIndex()) + 4;
+        } else if (term instanceof Term.Reference) {
+            return 1;
+        } else if (term instanceof Term.UnaryTerm) {
+            return size(((Term.UnaryTerm) term).getTerm()) + 1;
+        } else if (term instanceof Expression) {
+            Expression exp = (Expression) term;
+            int ret = exp.getOperatorCount();
+            for (Term t : exp.getTerms()) {
+                ret += size(t);
+            }
+            return ret;
+        } else if (term instanceof SubroutineCall) {
+            SubroutineCall call = (SubroutineCall) term;
+            int ret = call.getTarget() == null || symbols.getEntry(call.getTarget()) != null ? 2 : 1;
+            for (Expression argument : call.getArguments()) {
+                ret += size(argument);
+            }
+            return ret;
+        }
+        return 0;
+    }
+}
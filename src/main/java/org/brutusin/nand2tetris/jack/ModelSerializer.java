@@ -0,0 +1,507 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.brutusin.nand2tetris.jack.model.CompilerElement;
+import org.brutusin.nand2tetris.jack.model.Declaration;
+import org.brutusin.nand2tetris.jack.model.DoStatement;
+import org.brutusin.nand2tetris.jack.model.Expression;
+import org.brutusin.nand2tetris.jack.model.IfStatement;
+import org.brutusin.nand2tetris.jack.model.JackClass;
+import org.brutusin.nand2tetris.jack.model.LetStatement;
+import org.brutusin.nand2tetris.jack.model.ReturnStatement;
+import org.brutusin.nand2tetris.jack.model.Statement;
+import org.brutusin.nand2tetris.jack.model.Subroutine;
+import org.brutusin.nand2tetris.jack.model.SubroutineCall;
+import org.brutusin.nand2tetris.jack.model.Term;
+import org.brutusin.nand2tetris.jack.model.WhileStatement;
+
+/**
+ * Compact binary format for parsed classes, allowing them to be cached and
+ * reloaded without tokenizing and parsing the sources again.
+ * <p>
+ * Layout: the magic bytes <code>JAST</code>, the format version, a string
+ * table and the tree of nodes. Integers are unsigned LEB128 varints. Strings
+ * are written once in the table (UTF-8) and referenced by index. Node
+ * positions are written as the column followed by the line delta with respect
+ * to the previous node (zigzag encoded), a zero column standing for an unknown
+ * position.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class ModelSerializer {
+
+    public static final int VERSION = 1;
+    private static final byte[] MAGIC = {'J', 'A', 'S', 'T'};
+
+    private static final int LET = 1;
+    private static final int IF = 2;
+    private static final int WHILE = 3;
+    private static final int DO = 4;
+    private static final int RETURN = 5;
+
+    private static final int INTEGER_CONSTANT = 1;
+    private static final int STRING_CONSTANT = 2;
+    private static final int KEYWORD_CONSTANT = 3;
+    private static final int REFERENCE = 4;
+    private static final int ARRAY_REFERENCE = 5;
+    private static final int UNARY = 6;
+    private static final int EXPRESSION = 7;
+    private static final int CALL = 8;
+
+    private ModelSerializer() {
+    }
+
+    public static void write(JackClass clazz, OutputStream os) throws IOException {
+        Output body = new Output();
+        body.writeClass(clazz);
+        Output header = new Output();
+        header.write(MAGIC, 0, MAGIC.length);
+        header.writeVarint(VERSION);
+        header.writeVarint(body.strings.size());
+        String[] table = new String[body.strings.size()];
+        for (Map.Entry<String, Integer> entry : body.strings.entrySet()) {
+            table[entry.getValue()] = entry.getKey();
+        }
+        for (String s : table) {
+            byte[] bytes = s.getBytes("UTF-8");
+            header.writeVarint(bytes.length);
+            header.write(bytes, 0, bytes.length);
+        }
+        header.writeTo(os);
+        body.writeTo(os);
+    }
+
+    public static byte[] toByteArray(JackClass clazz) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            write(clazz, baos);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        return baos.toByteArray();
+    }
+
+    public static JackClass read(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        return read(baos.toByteArray());
+    }
+
+    public static JackClass read(byte[] bytes) throws IOException {
+        if (bytes.length < MAGIC.length || !Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length))) {
+            throw new IOException("Not a serialized Jack class");
+        }
+        Input in = new Input(bytes, MAGIC.length);
+        try {
+            int version = in.readVarint();
+            if (version != VERSION) {
+                throw new IOException("Unsupported format version " + version);
+            }
+            String[] strings = new String[in.readVarint()];
+            for (int i = 0; i < strings.length; i++) {
+                int length = in.readVarint();
+                strings[i] = new String(bytes, in.pos, length, "UTF-8");
+                in.pos += length;
+            }
+            in.strings = strings;
+            return in.readClass();
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Truncated or corrupted serialized Jack class");
+        }
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int lastLine;
+
+        void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeString(String s) {
+            Integer index = strings.get(s);
+            if (index == null) {
+                index = strings.size();
+                strings.put(s, index);
+            }
+            writeVarint(index);
+        }
+
+        void writeOptionalString(String s) {
+            if (s == null) {
+                writeVarint(0);
+            } else {
+                Integer index = strings.get(s);
+                if (index == null) {
+                    index = strings.size();
+                    strings.put(s, index);
+                }
+                writeVarint(index + 1);
+            }
+        }
+
+        void writePosition(CompilerElement element) {
+            int line = element.getLineNumber();
+            int column = element.getColumnNumber();
+            if (column <= 0) {
+                writeVarint(0);
+            } else {
+                writeVarint(column);
+                int delta = line - lastLine;
+                writeVarint((delta << 1) ^ (delta >> 31));
+                lastLine = line;
+            }
+        }
+
+        void writeClass(JackClass clazz) {
+            writePosition(clazz);
+            writeString(clazz.getName());
+            writeDeclarations(clazz.getDeclarations());
+            writeVarint(clazz.getSubroutines().size());
+            for (Subroutine subroutine : clazz.getSubroutines()) {
+                writePosition(subroutine);
+                writeVarint(subroutine.getType().ordinal());
+                writeString(subroutine.getReturnType());
+                writeString(subroutine.getName());
+                writeDeclarations(subroutine.getDeclarations());
+                writeStatements(subroutine.getStatements());
+            }
+        }
+
+        void writeDeclarations(List<Declaration> declarations) {
+            writeVarint(declarations.size());
+            for (Declaration declaration : declarations) {
+                writePosition(declaration);
+                writeString(declaration.getType());
+                writeString(declaration.getName());
+                writeVarint(declaration.getScope().ordinal());
+            }
+        }
+
+        void writeStatements(List<Statement> statements) {
+            writeVarint(statements.size());
+            for (Statement statement : statements) {
+                if (statement instanceof LetStatement) {
+                    LetStatement let = (LetStatement) statement;
+                    writeVarint(LET);
+                    writePosition(let);
+                    writeTerm(let.getTarget());
+                    writeExpression(let.getExpression());
+                } else if (statement instanceof IfStatement) {
+                    IfStatement ifStatement = (IfStatement) statement;
+                    writeVarint(IF);
+                    writePosition(ifStatement);
+                    writeExpression(ifStatement.getCondition());
+                    writeStatements(ifStatement.getIfStatements());
+                    writeStatements(ifStatement.getElseStatements());
+                } else if (statement instanceof WhileStatement) {
+                    WhileStatement whileStatement = (WhileStatement) statement;
+                    writeVarint(WHILE);
+                    writePosition(whileStatement);
+                    writeExpression(whileStatement.getCondition());
+                    writeStatements(whileStatement.getStatements());
+                } else if (statement instanceof DoStatement) {
+                    DoStatement doStatement = (DoStatement) statement;
+                    writeVarint(DO);
+                    writePosition(doStatement);
+                    writeCall(doStatement.getAction());
+                } else if (statement instanceof ReturnStatement) {
+                    ReturnStatement returnStatement = (ReturnStatement) statement;
+                    writeVarint(RETURN);
+                    writePosition(returnStatement);
+                    if (returnStatement.getExpression() == null) {
+                        writeVarint(0);
+                    } else {
+                        writeVarint(1);
+                        writeExpression(returnStatement.getExpression());
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unsupported statement " + statement);
+                }
+            }
+        }
+
+        void writeExpression(Expression exp) {
+            writePosition(exp);
+            writeVarint(exp.getTerms().size());
+            List<Term> terms = exp.getTerms();
+            for (int i = 0; i < terms.size(); i++) {
+                if (i > 0) {
+                    writeVarint(exp.getOperator(i - 1));
+                }
+                writeTerm(terms.get(i));
+            }
+        }
+
+        void writeCall(SubroutineCall call) {
+            writePosition(call);
+            writeOptionalString(call.getTarget());
+            writeString(call.getName());
+            writeVarint(call.getArguments().size());
+            for (Expression argument : call.getArguments()) {
+                writeExpression(argument);
+            }
+        }
+
+        void writeTerm(Term term) {
+            if (term instanceof Term.Constant) {
+                Term.Constant constant = (Term.Constant) term;
+                if (constant.getType() == Term.Constant.Type.integer) {
+                    writeVarint(INTEGER_CONSTANT);
+                } else if (constant.getType() == Term.Constant.Type.string) {
+                    writeVarint(STRING_CONSTANT);
+                } else {
+                    writeVarint(KEYWORD_CONSTANT);
+                }
+                writePosition(constant);
+                writeString(constant.getValue());
+            } else if (term instanceof Term.ArrayReference) {
+                Term.ArrayReference ref = (Term.ArrayReference) term;
+                writeVarint(ARRAY_REFERENCE);
+                writePosition(ref);
+                writeString(ref.getVarName());
+                writeExpression(ref.getIndex());
+            } else if (term instanceof Term.Reference) {
+                Term.Reference ref = (Term.Reference) term;
+                writeVarint(REFERENCE);
+                writePosition(ref);
+                writeString(ref.getVarName());
+            } else if (term instanceof Term.UnaryTerm) {
+                Term.UnaryTerm unary = (Term.UnaryTerm) term;
+                writeVarint(UNARY);
+                writePosition(unary);
+                writeVarint(unary.getOperator());
+                writeTerm(unary.getTerm());
+            } else if (term instanceof Expression) {
+                writeVarint(EXPRESSION);
+                writeExpression((Expression) term);
+            } else if (term instanceof SubroutineCall) {
+                writeVarint(CALL);
+                writeCall((SubroutineCall) term);
+            } else {
+                throw new IllegalArgumentException("Unsupported term " + term);
+            }
+        }
+    }
+
+    private static class Input {
+
+        private final byte[] bytes;
+        private int pos;
+        private String[] strings;
+        private int lastLine;
+        private int line;
+        private int column;
+
+        Input(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        int readVarint() throws IOException {
+            int ret = 0;
+            int shift = 0;
+            while (true) {
+                byte b = bytes[pos++];
+                ret |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return ret;
+                }
+                shift += 7;
+                if (shift > 28) {
+                    throw new IOException("Malformed varint at offset " + pos);
+                }
+            }
+        }
+
+        String readString() throws IOException {
+            return strings[readVarint()];
+        }
+
+        String readOptionalString() throws IOException {
+            int index = readVarint();
+            return index == 0 ? null : strings[index - 1];
+        }
+
+        /**
+         * Reads a position into {@link #line} and {@link #column}.
+         */
+        void readPosition() throws IOException {
+            int col = readVarint();
+            if (col == 0) {
+                line = 0;
+                column = 0;
+            } else {
+                int zigzag = readVarint();
+                lastLine += (zigzag >>> 1) ^ -(zigzag & 1);
+                line = lastLine;
+                column = col;
+            }
+        }
+
+        JackClass readClass() throws IOException {
+            readPosition();
+            JackClass clazz = new JackClass(line, column, readString());
+            readDeclarations(clazz.getDeclarations());
+            int subroutines = readVarint();
+            for (int i = 0; i < subroutines; i++) {
+                readPosition();
+                int subLine = line;
+                int subColumn = column;
+                Subroutine.Type type = Subroutine.Type.values()[readVarint()];
+                String returnType = readString();
+                Subroutine subroutine = new Subroutine(subLine, subColumn, type, returnType, readString());
+                readDeclarations(subroutine.getDeclarations());
+                readStatements(subroutine.getStatements());
+                subroutine.compact();
+                clazz.getSubroutines().add(subroutine);
+            }
+            clazz.compact();
+            return clazz;
+        }
+
+        void readDeclarations(List<Declaration> declarations) throws IOException {
+            int count = readVarint();
+            for (int i = 0; i < count; i++) {
+                readPosition();
+                String type = readString();
+                String name = readString();
+                declarations.add(new Declaration(line, column, type, name, Declaration.Scope.values()[readVarint()]));
+            }
+        }
+
+        void readStatements(List<Statement> statements) throws IOException {
+            int count = readVarint();
+            for (int i = 0; i < count; i++) {
+                int tag = readVarint();
+                readPosition();
+                int stLine = line;
+                int stColumn = column;
+                switch (tag) {
+                    case LET:
+                        Term.Reference target = (Term.Reference) readTerm();
+                        statements.add(new LetStatement(stLine, stColumn, target, readExpression()));
+                        break;
+                    case IF:
+                        IfStatement ifStatement = new IfStatement(stLine, stColumn, readExpression());
+                        readStatements(ifStatement.getIfStatements());
+                        readStatements(ifStatement.getElseStatements());
+                        ifStatement.compact();
+                        statements.add(ifStatement);
+                        break;
+                    case WHILE:
+                        WhileStatement whileStatement = new WhileStatement(stLine, stColumn, readExpression());
+                        readStatements(whileStatement.getStatements());
+                        whileStatement.compact();
+                        statements.add(whileStatement);
+                        break;
+                    case DO:
+                        statements.add(new DoStatement(stLine, stColumn, readCall()));
+                        break;
+                    case RETURN:
+                        statements.add(new ReturnStatement(stLine, stColumn, readVarint() == 0 ? null : readExpression()));
+                        break;
+                    default:
+                        throw new IOException("Unknown statement tag " + tag);
+                }
+            }
+        }
+
+        Expression readExpression() throws IOException {
+            readPosition();
+            Expression exp = new Expression(line, column);
+            int terms = readVarint();
+            for (int i = 0; i < terms; i++) {
+                if (i > 0) {
+                    exp.addOperator((char) readVarint());
+                }
+                exp.getTerms().add(readTerm());
+            }
+            exp.compact();
+            return exp;
+        }
+
+        SubroutineCall readCall() throws IOException {
+            readPosition();
+            int callLine = line;
+            int callColumn = column;
+            String target = readOptionalString();
+            SubroutineCall call = new SubroutineCall(callLine, callColumn, target, readString());
+            int arguments = readVarint();
+            for (int i = 0; i < arguments; i++) {
+                call.getArguments().add(readExpression());
+            }
+            call.compact();
+            return call;
+        }
+
+        Term readTerm() throws IOException {
+            int tag = readVarint();
+            switch (tag) {
+                case INTEGER_CONSTANT:
+                    readPosition();
+                    return new Term.Constant(line, column, readString(), Term.Constant.Type.integer);
+                case STRING_CONSTANT:
+                    readPosition();
+                    return new Term.Constant(line, column, readString(), Term.Constant.Type.string);
+                case KEYWORD_CONSTANT:
+                    readPosition();
+                    return new Term.Constant(line, column, readString(), Term.Constant.Type.keyword);
+                case REFERENCE:
+                    readPosition();
+                    return new Term.Reference(line, column, readString());
+                case ARRAY_REFERENCE: {
+                    readPosition();
+                    int refLine = line;
+                    int refColumn = column;
+                    String varName = readString();
+                    return new Term.ArrayReference(refLine, refColumn, varName, readExpression());
+                }
+                case UNARY: {
+                    readPosition();
+                    int unaryLine = line;
+                    int unaryColumn = column;
+                    char operator = (char) readVarint();
+                    return new Term.UnaryTerm(unaryLine, unaryColumn, operator, readTerm());
+                }
+                case EXPRESSION:
+                    return readExpression();
+                case CALL:
+                    return readCall();
+                default:
+                    throw new IOException("Unknown term tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Asynchronous file writer. Files are queued in bounded queues (blocking the
+ * producer when full) and written by dedicated threads with gathering channel
+ * writes, so that writing overlaps with compiling the next classes. Each file
+ * is always written by the same thread, so writes of a file are applied in
+ * the order they are queued.
+ * <p>
+ * If <code>sync</code> is enabled, written files are forced to the storage
+ * device in batches of {@link #SYNC_BATCH_SIZE}, and at every
+ * {@link #flush()}. {@link #flush()} is a barrier: when it returns all the
+ * files queued before have been written (and synced if enabled), or the first
+ * error is thrown.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class OutputWriter implements Closeable {
+
+    public static final int SYNC_BATCH_SIZE = 64;
+    private static final int QUEUE_CAPACITY = 256;
+
+    private final Worker[] workers;
+    private final Thread[] threads;
+    private final boolean sync;
+    private volatile IOException error;
+    private boolean closed;
+
+    public OutputWriter(int threadCount, boolean sync) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("At least a writer thread is required");
+        }
+        this.sync = sync;
+        this.workers = new Worker[threadCount];
+        this.threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new Worker(Math.max(1, QUEUE_CAPACITY / threadCount));
+            threads[i] = new Thread(workers[i], "jack-output-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Queues the file to be written with the content of the buffers, replacing
+     * it if it exists.
+     */
+    public void write(File file, ByteBuffer... buffers) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Writer is closed");
+        }
+        IOException ioe = error;
+        if (ioe != null) {
+            throw ioe;
+        }
+        put(workers[Math.floorMod(file.getAbsoluteFile().hashCode(), workers.length)], new Job(file, buffers, null));
+    }
+
+    /**
+     * Waits until all the queued files are written (and synced if enabled).
+     *
+     * @throws IOException the first error found writing the files
+     */
+    public void flush() throws IOException {
+        CountDownLatch barrier = new CountDownLatch(workers.length);
+        for (Worker worker : workers) {
+            put(worker, new Job(null, null, barrier));
+        }
+        try {
+            barrier.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted flushing output", ex);
+        }
+        IOException ioe = error;
+        if (ioe != null) {
+            error = null;
+            throw ioe;
+        }
+    }
+
+    /**
+     * Flushes the queued files and stops the writer threads.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void put(Worker worker, Job job) throws IOException {
+        try {
+            worker.queue.put(job);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted queuing output", ex);
+        }
+    }
+
+    private void fail(IOException ioe) {
+        if (error == null) {
+            error = ioe;
+        }
+    }
+
+    private static class Job {
+
+        private final File file;
+        private final ByteBuffer[] buffers;
+        private final CountDownLatch barrier;
+
+        public Job(File file, ByteBuffer[] buffers, CountDownLatch barrier) {
+            this.file = file;
+            this.buffers = buffers;
+            this.barrier = barrier;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final BlockingQueue<Job> queue;
+        private final List<FileChannel> unsynced = new ArrayList<>();
+
+        private Worker(int queueCapacity) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException ex) {
+                    sync();
+                    return;
+                }
+                if (job.barrier != null) {
+                    sync();
+                    job.barrier.countDown();
+                } else {
+                    write(job);
+                }
+            }
+        }
+
+        private void write(Job job) {
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(job.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                long remaining = 0;
+                for (ByteBuffer buffer : job.buffers) {
+                    remaining += buffer.remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= channel.write(job.buffers);
+                }
+                if (sync) {
+                    unsynced.add(channel);
+                    channel = null;
+                    if (unsynced.size() >= SYNC_BATCH_SIZE) {
+                        sync();
+                    }
+                }
+            } catch (IOException ioe) {
+                fail(ioe);
+            } finally {
+                if (channel != null) {
+                    close(channel);
+                }
+            }
+        }
+
+        private void sync() {
+            for (FileChannel channel : unsynced) {
+                try {
+                    channel.force(true);
+                } catch (IOException ioe) {
+                    fail(ioe);
+                } finally {
+                    close(channel);
+                }
+            }
+            unsynced.clear();
+        }
+
+        private void close(FileChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                fail(ioe);
+            }
+        }
+    }
+}
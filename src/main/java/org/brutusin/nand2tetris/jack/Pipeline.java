@@ -0,0 +1,317 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chain of processing stages joined by bounded queues. Each stage has a number
+ * of workers taking items from its input queue, processing them and putting
+ * them in the input queue of the next stage, blocking when it is full. I/O
+ * stages run on virtual threads when the runtime supports them (on a cached
+ * thread pool otherwise) and CPU stages on a fixed pool sized for their
+ * workers.
+ * <p>
+ * Every stage records the number of processed items, the time its workers
+ * were busy, the depth of its input queue and the time spent blocked by the
+ * next stage, to find out the bottleneck of the pipeline.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ * @param <T> type of the items, that are mutated by the stages
+ */
+public class Pipeline<T> {
+
+    public interface Task<T> {
+
+        void process(T item) throws Exception;
+    }
+
+    private static final Object END = new Object();
+
+    private final int queueCapacity;
+    private final List<Stage> stages = new ArrayList<>();
+    private final AtomicInteger pendingStages = new AtomicInteger();
+    private ExecutorService ioExecutor;
+    private ExecutorService cpuExecutor;
+    private volatile Throwable failure;
+    private long startNanos;
+    private long endNanos;
+
+    /**
+     * @param queueCapacity capacity of the queue in front of each stage
+     */
+    public Pipeline(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public Pipeline<T> addStage(String name, boolean io, int workers, Task<T> task) {
+        if (ioExecutor != null) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        stages.add(new Stage(name, io, workers, task));
+        return this;
+    }
+
+    public synchronized void start() {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("Pipeline without stages");
+        }
+        int cpuWorkers = 0;
+        for (Stage stage : stages) {
+            if (!stage.io) {
+                cpuWorkers += stage.workers;
+            }
+        }
+        ioExecutor = newIoExecutor();
+        cpuExecutor = Executors.newFixedThreadPool(Math.max(1, cpuWorkers), DAEMON_THREAD_FACTORY);
+        pendingStages.set(stages.size());
+        startNanos = System.nanoTime();
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            Stage next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+            for (int w = 0; w < stage.workers; w++) {
+                (stage.io ? ioExecutor : cpuExecutor).execute(new Worker(stage, next));
+            }
+        }
+    }
+
+    /**
+     * Feeds an item to the first stage, blocking while its queue is full.
+     */
+    public void submit(T item) throws InterruptedException {
+        stages.get(0).put(item);
+    }
+
+    /**
+     * Signals the end of the input and waits until every stage has processed
+     * all its items.
+     *
+     * @throws Exception the first exception thrown by a task, whose item was
+     * dropped
+     */
+    public void finish() throws Exception {
+        stages.get(0).put(END);
+        synchronized (pendingStages) {
+            while (pendingStages.get() > 0) {
+                pendingStages.wait();
+            }
+        }
+        endNanos = System.nanoTime();
+        ioExecutor.shutdown();
+        cpuExecutor.shutdown();
+        Throwable th = failure;
+        if (th instanceof Exception) {
+            throw (Exception) th;
+        } else if (th != null) {
+            throw (Error) th;
+        }
+    }
+
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * @return one line per stage with its metrics
+     */
+    public String getReport() {
+        long elapsed = (endNanos > 0 ? endNanos : System.nanoTime()) - startNanos;
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : stages) {
+            sb.append(String.format("%-10s %-3s workers=%-3d items=%-6d utilization=%5.1f%% queue(avg/max)=%.1f/%d blocked=%dms%n",
+                    stage.name, stage.io ? "io" : "cpu", stage.workers, stage.getProcessed(), 100.0 * stage.getUtilization(elapsed),
+                    stage.getAverageQueueDepth(), stage.getMaxQueueDepth(), stage.getBlockedNanos() / 1000000));
+        }
+        return sb.toString();
+    }
+
+    private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jack-pipeline-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /**
+     * @return a virtual-thread-per-task executor if the runtime supports
+     * them, a cached thread pool otherwise
+     */
+    private static ExecutorService newIoExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(DAEMON_THREAD_FACTORY);
+        }
+    }
+
+    public final class Stage {
+
+        private final String name;
+        private final boolean io;
+        private final int workers;
+        private final Task<T> task;
+        private final BlockingQueue<Object> queue;
+        private final AtomicInteger activeWorkers;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong blockedNanos = new AtomicLong();
+        private final AtomicLong queueDepthSum = new AtomicLong();
+        private final AtomicLong queueSamples = new AtomicLong();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+        private Stage(String name, boolean io, int workers, Task<T> task) {
+            if (workers < 1) {
+                throw new IllegalArgumentException("Stage " + name + " needs at least a worker");
+            }
+            this.name = name;
+            this.io = io;
+            this.workers = workers;
+            this.task = task;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.activeWorkers = new AtomicInteger(workers);
+        }
+
+        private void put(Object item) throws InterruptedException {
+            queue.put(item);
+            int depth = queue.size();
+            queueDepthSum.addAndGet(depth);
+            queueSamples.incrementAndGet();
+            int max;
+            while ((max = maxQueueDepth.get()) < depth && !maxQueueDepth.compareAndSet(max, depth)) {
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isIo() {
+            return io;
+        }
+
+        public int getWorkers() {
+            return workers;
+        }
+
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        public long getBusyNanos() {
+            return busyNanos.get();
+        }
+
+        /**
+         * @return time spent by the workers waiting for room in the queue of
+         * the next stage
+         */
+        public long getBlockedNanos() {
+            return blockedNanos.get();
+        }
+
+        /**
+         * @return fraction of the elapsed time the workers have been processing
+         * items
+         */
+        public double getUtilization(long elapsedNanos) {
+            return elapsedNanos == 0 ? 0 : (double) busyNanos.get() / ((double) elapsedNanos * workers);
+        }
+
+        /**
+         * @return mean depth of the input queue, sampled at each insertion
+         */
+        public double getAverageQueueDepth() {
+            long samples = queueSamples.get();
+            return samples == 0 ? 0 : (double) queueDepthSum.get() / samples;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth.get();
+        }
+
+        public int getQueueDepth() {
+            return queue.size();
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private final Stage stage;
+        private final Stage next;
+
+        public Worker(Stage stage, Stage next) {
+            this.stage = stage;
+            this.next = next;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            try {
+                while (true) {
+                    Object item = stage.queue.take();
+                    if (item == END) {
+                        stage.queue.put(END); // for the other workers of the stage
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        stage.task.process((T) item);
+                    } catch (Throwable th) {
+                        if (failure == null) {
+                            failure = th;
+                        }
+                        continue;
+                    } finally {
+                        stage.busyNanos.addAndGet(System.nanoTime() - start);
+                    }
+                    stage.processed.incrementAndGet();
+                    if (next != null) {
+                        start = System.nanoTime();
+                        next.put(item);
+                        stage.blockedNanos.addAndGet(System.nanoTime() - start);
+                    }
+                }
+                if (stage.activeWorkers.decrementAndGet() == 0) {
+                    if (next != null) {
+                        next.put(END);
+                    }
+                    synchronized (pendingStages) {
+                        pendingStages.decrementAndGet();
+                        pendingStages.notifyAll();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
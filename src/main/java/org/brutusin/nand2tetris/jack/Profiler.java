@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runtime profiling support. When a profiler is passed to a
+ * {@link ClassWriter}, every subroutine entry (and optionally every
+ * <code>while</code> back-edge) increments a 16-bit counter. The generated
+ * <code>Profiler</code> class ({@link #writeCode(OutputStream)}) holds the
+ * counters in an array that <code>Profiler.init()</code> allocates with
+ * <code>Memory.alloc</code>, so the heap usage of the program is not limited
+ * by them, and offers <code>Profiler.dump()</code> to print the counters and
+ * <code>Profiler.reset()</code> to zero them. <code>Profiler.init()</code> is
+ * called at the entry of <code>Main.main</code>; the events counted before,
+ * in the OS classes replaced by the program, are not recorded.
+ * <p>
+ * Overhead: each counted event executes
+ * {@value #INSTRUCTIONS_PER_EVENT} VM instructions: the call to
+ * <code>Profiler.count(i)</code> in the instrumented subroutine
+ * (<code>push constant i</code>, <code>call Profiler.count 1</code>,
+ * <code>pop temp 0</code>) and the instructions of the function, so the total
+ * overhead of a run is the sum of the dumped counters times that figure.
+ * Counters are assigned in registration order, so all the classes of a
+ * program have to be compiled with the same profiler instance.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class Profiler {
+
+    public static final String CLASS_NAME = "Profiler";
+    public static final int INSTRUCTIONS_PER_EVENT = 20;
+
+    private final boolean loops;
+    private final List<String> counters = new ArrayList<>();
+
+    public Profiler(boolean loops) {
+        this.loops = loops;
+    }
+
+    /**
+     * @return whether <code>while</code> back-edges are counted
+     */
+    public boolean isLoops() {
+        return loops;
+    }
+
+    /**
+     * Registers a new counter.
+     *
+     * @param name counter name, as printed by <code>Profiler.dump()</code>
+     * @return the index of the counter
+     */
+    public synchronized int register(String name) {
+        counters.add(name);
+        return counters.size() - 1;
+    }
+
+    public synchronized int getCounterCount() {
+        return counters.size();
+    }
+
+    /**
+     * Writes the VM code of the <code>Profiler</code> class. The class is
+     * generated as Jack source and compiled by this compiler.
+     */
+    public void writeCode(OutputStream os) throws CompilerException {
+        ClassParser cp = new ClassParser(new Tokenizer(toJack()));
+        ClassWriter cw = new ClassWriter(cp.getParsedClass());
+        cw.writeCode(os);
+    }
+
+    synchronized String toJack() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class ").append(CLASS_NAME).append(" {\n");
+        sb.append("    static Array counters;\n");
+        sb.append("    function void init() {\n");
+        sb.append("        if (counters = 0) {\n");
+        sb.append("            let counters = Memory.alloc(").append(Math.max(1, counters.size())).append(");\n");
+        sb.append("            do Profiler.reset();\n");
+        sb.append("        }\n");
+        sb.append("        return;\n");
+        sb.append("    }\n");
+        sb.append("    function void count(int i) {\n");
+        sb.append("        if (~(counters = 0)) {\n");
+        sb.append("            let counters[i] = counters[i] + 1;\n");
+        sb.append("        }\n");
+        sb.append("        return;\n");
+        sb.append("    }\n");
+        sb.append("    function void dump() {\n");
+        sb.append("        var String s;\n");
+        sb.append("        if (counters = 0) {\n");
+        sb.append("            return;\n");
+        sb.append("        }\n");
+        for (int i = 0; i < counters.size(); i++) {
+            sb.append("        let s = \"").append(counters.get(i)).append(" \";\n");
+            sb.append("        do Output.printString(s);\n");
+            sb.append("        do s.dispose();\n");
+            sb.append("        do Output.printInt(counters[").append(i).append("]);\n");
+            sb.append("        do Output.println();\n");
+        }
+        sb.append("        return;\n");
+        sb.append("    }\n");
+        sb.append("    function void reset() {\n");
+        sb.append("        var int i;\n");
+        sb.append("        if (counters = 0) {\n");
+        sb.append("            return;\n");
+        sb.append("        }\n");
+        sb.append("        while (i < ").append(counters.size()).append(") {\n");
+        sb.append("            let counters[i] = 0;\n");
+        sb.append("            let i = i + 1;\n");
+        sb.append("        }\n");
+        sb.append("        return;\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+}
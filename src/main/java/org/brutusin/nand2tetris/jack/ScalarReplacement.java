@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.brutusin.nand2tetris.jack.model.Declaration;
+import org.brutusin.nand2tetris.jack.model.DoStatement;
+import org.brutusin.nand2tetris.jack.model.Expression;
+import org.brutusin.nand2tetris.jack.model.IfStatement;
+import org.brutusin.nand2tetris.jack.model.LetStatement;
+import org.brutusin.nand2tetris.jack.model.ReturnStatement;
+import org.brutusin.nand2tetris.jack.model.Statement;
+import org.brutusin.nand2tetris.jack.model.Subroutine;
+import org.brutusin.nand2tetris.jack.model.SubroutineCall;
+import org.brutusin.nand2tetris.jack.model.Term;
+import org.brutusin.nand2tetris.jack.model.WhileStatement;
+
+/**
+ * Escape analysis of the locals holding objects of project classes. A local
+ * whose only assignments are <code>let p = C.new(...)</code> and whose only
+ * uses are method calls <code>p.m(...)</code>, all of them accessors of the
+ * class (see {@link SignatureIndex.FieldAccess}), never lets its objects
+ * escape the subroutine: the fields are replaced by extra locals, the
+ * constructor and methods are generated inline, and the allocation and
+ * disposal disappear.
+ * <p>
+ * Any other reference to the local (passing it, returning it, comparing it or
+ * indexing it) keeps it an object, as do calls to non-accessor methods. A call
+ * of the subroutine being compiled on the local is left alone, as it is a
+ * tail call (see {@link TailCalls}).
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+class ScalarReplacement {
+
+    private final Subroutine subroutine;
+    private final String className;
+    private final SymbolTable symbols;
+    private final SignatureIndex index;
+    private final Map<String, Integer> candidates = new LinkedHashMap<>();
+    private final Set<String> escaping = new HashSet<>();
+    private final Set<String> constructed = new HashSet<>();
+    private final Map<String, Integer> temps = new LinkedHashMap<>();
+    private final Map<SubroutineCall, SignatureIndex.FieldAccess> accesses = new IdentityHashMap<>();
+    private int tempCount;
+
+    /**
+     * @param subroutine subroutine to analyze
+     * @param className name of the class of the subroutine
+     * @param symbols symbol table of the subroutine scope
+     * @param index signature index with the accessors of the project classes
+     */
+    ScalarReplacement(Subroutine subroutine, String className, SymbolTable symbols, SignatureIndex index) {
+        this.subroutine = subroutine;
+        this.className = className;
+        this.symbols = symbols;
+        this.index = index;
+        for (Declaration declaration : subroutine.getDeclarations()) {
+            int fieldCount = index.getFieldCount(declaration.getType());
+            if (declaration.getScope() == Declaration.Scope.local && fieldCount >= 0) {
+                candidates.put(declaration.getName(), fieldCount);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        addStatements(subroutine.getStatements());
+        for (Map.Entry<String, Integer> candidate : candidates.entrySet()) {
+            if (!escaping.contains(candidate.getKey()) && constructed.contains(candidate.getKey())) {
+                temps.put(candidate.getKey(), tempCount);
+                tempCount += candidate.getValue();
+            }
+        }
+    }
+
+    /**
+     * @return whether the variable is replaced by its fields
+     */
+    boolean isReplaced(String name) {
+        return name != null && temps.containsKey(name);
+    }
+
+    /**
+     * @return the number of fields of a replaced variable
+     */
+    int getFieldCount(String name) {
+        return candidates.get(name);
+    }
+
+    /**
+     * @return the index, among the extra locals, of the field of a replaced
+     * variable
+     */
+    int getTemp(String name, int field) {
+        return temps.get(name) + field;
+    }
+
+    /**
+     * @return the number of extra locals needed by the fields
+     */
+    int getTempCount() {
+        return tempCount;
+    }
+
+    /**
+     * @return the classes of the replaced variables, whose constructors and
+     * methods are generated inline
+     */
+    Set<String> getClasses() {
+        Set<String> ret = new HashSet<>();
+        for (String name : temps.keySet()) {
+            ret.add(symbols.getEntry(name).getDeclaration().getType());
+        }
+        return ret;
+    }
+
+    /**
+     * @return the summary of a constructor or method called on a replaced
+     * variable
+     */
+    SignatureIndex.FieldAccess getAccess(SubroutineCall call) {
+        return accesses.get(call);
+    }
+
+    private void addStatements(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement instanceof LetStatement) {
+                LetStatement let = (LetStatement) statement;
+                Term.Reference target = let.getTarget();
+                if (!(target instanceof Term.ArrayReference) && candidates.containsKey(target.getVarName())) {
+                    addConstruction(target.getVarName(), let.getExpression());
+                } else {
+                    addTerm(target);
+                    addTerm(let.getExpression());
+                }
+            } else if (statement instanceof IfStatement) {
+                IfStatement ifStatement = (IfStatement) statement;
+                addTerm(ifStatement.getCondition());
+                addStatements(ifStatement.getIfStatements());
+                addStatements(ifStatement.getElseStatements());
+            } else if (statement instanceof WhileStatement) {
+                WhileStatement whileStatement = (WhileStatement) statement;
+                addTerm(whileStatement.getCondition());
+                addStatements(whileStatement.getStatements());
+            } else if (statement instanceof DoStatement) {
+                addTerm(((DoStatement) statement).getAction());
+            } else if (statement instanceof ReturnStatement) {
+                addTerm(((ReturnStatement) statement).getExpression());
+            }
+        }
+    }
+
+    /**
+     * Assignment to a candidate, that has to be a call to an accessor
+     * constructor of its class.
+     */
+    private void addConstruction(String name, Expression exp) {
+        Term term = exp.getTerms().size() == 1 ? exp.getTerms().get(0) : null;
+        if (!(term instanceof SubroutineCall)) {
+            escaping.add(name);
+            addTerm(exp);
+            return;
+        }
+        SubroutineCall call = (SubroutineCall) term;
+        String type = symbols.getEntry(name).getDeclaration().getType();
+        SignatureIndex.FieldAccess access = null;
+        if (type.equals(call.getTarget()) && symbols.getEntry(type) == null) {
+            access = getAccess(type, call, Subroutine.Type.constructor);
+        }
+        if (access == null) {
+            escaping.add(name);
+        } else {
+            accesses.put(call, access);
+            constructed.add(name);
+        }
+        for (Expression argument : call.getArguments()) {
+            addTerm(argument);
+        }
+    }
+
+    private void addTerm(Term term) {
+        if (term instanceof Expression) {
+            for (Term t : ((Expression) term).getTerms()) {
+                addTerm(t);
+            }
+        } else if (term instanceof Term.Reference) {
+            escaping.add(((Term.Reference) term).getVarName());
+            if (term instanceof Term.ArrayReference) {
+                addTerm(((Term.ArrayReference) term).getIndex());
+            }
+        } else if (term instanceof Term.UnaryTerm) {
+            addTerm(((Term.UnaryTerm) term).getTerm());
+        } else if (term instanceof SubroutineCall) {
+            SubroutineCall call = (SubroutineCall) term;
+            String target = call.getTarget();
+            if (target != null && candidates.containsKey(target)) {
+                String type = symbols.getEntry(target).getDeclaration().getType();
+                SignatureIndex.FieldAccess access = getAccess(type, call, Subroutine.Type.method);
+                if (access == null || type.equals(className) && call.getName().equals(subroutine.getName())) {
+                    escaping.add(target);
+                } else {
+                    accesses.put(call, access);
+                }
+            }
+            for (Expression argument : call.getArguments()) {
+                addTerm(argument);
+            }
+        }
+    }
+
+    /**
+     * @return the summary of the called subroutine, or <code>null</code> if
+     * it is not an accessor of the given kind matching the call
+     */
+    private SignatureIndex.FieldAccess getAccess(String type, SubroutineCall call, Subroutine.Type kind) {
+        SignatureIndex.Signature signature = index.getSignature(type, call.getName());
+        if (signature == null || signature.getKind() != kind || signature.getParameterCount() != call.getArguments().size()) {
+            return null;
+        }
+        SignatureIndex.FieldAccess access = signature.getFieldAccess();
+        if (access != null && access.isDisposing() && !index.isOsClass("Memory")) {
+            return null;
+        }
+        return access;
+    }
+}
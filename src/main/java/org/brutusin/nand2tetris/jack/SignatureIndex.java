@@ -0,0 +1,566 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.brutusin.nand2tetris.jack.model.Declaration;
+import org.brutusin.nand2tetris.jack.model.DoStatement;
+import org.brutusin.nand2tetris.jack.model.Expression;
+import org.brutusin.nand2tetris.jack.model.JackClass;
+import org.brutusin.nand2tetris.jack.model.LetStatement;
+import org.brutusin.nand2tetris.jack.model.ReturnStatement;
+import org.brutusin.nand2tetris.jack.model.Statement;
+import org.brutusin.nand2tetris.jack.model.Subroutine;
+import org.brutusin.nand2tetris.jack.model.SubroutineCall;
+import org.brutusin.nand2tetris.jack.model.Term;
+
+/**
+ * Project-wide index of subroutine signatures (kind, return type and
+ * parameter types) by class, used by {@link ClassWriter} to validate call
+ * sites. The index is preloaded with the signatures of the standard Jack OS
+ * classes, that are shadowed by project classes of the same name.
+ * <p>
+ * Project classes also record their number of fields, and the constructors
+ * and methods that only move values between the fields of their object, their
+ * arguments and constants are summarized as a {@link FieldAccess}, allowing
+ * objects used only through them to be replaced by locals (see
+ * {@link ScalarReplacement}). As with the signatures, the code generated from
+ * these summaries is only as current as the index.
+ * <p>
+ * Each project class is stored with a version (typically the modification
+ * time of its source), so that a persisted index ({@link #write(OutputStream)},
+ * {@link #read(InputStream)}) can be refreshed incrementally. Instances are
+ * not thread-safe.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class SignatureIndex {
+
+    private static final int MAGIC = 0x4A534958; // JSIX
+    private static final int VERSION = 2;
+
+    private static final String[][] OS_SIGNATURES = {
+        {"Math", "function void init()", "function int abs(int)", "function int multiply(int,int)", "function int divide(int,int)",
+            "function int min(int,int)", "function int max(int,int)", "function int sqrt(int)"},
+        {"String", "constructor String new(int)", "method void dispose()", "method int length()", "method char charAt(int)",
+            "method void setCharAt(int,char)", "method String appendChar(char)", "method void eraseLastChar()", "method int intValue()",
+            "method void setInt(int)", "function char backSpace()", "function char doubleQuote()", "function char newLine()"},
+        {"Array", "function Array new(int)", "method void dispose()"},
+        {"Output", "function void init()", "function void moveCursor(int,int)", "function void printChar(char)",
+            "function void printString(String)", "function void printInt(int)", "function void println()", "function void backSpace()"},
+        {"Screen", "function void init()", "function void clearScreen()", "function void setColor(boolean)", "function void drawPixel(int,int)",
+            "function void drawLine(int,int,int,int)", "function void drawRectangle(int,int,int,int)", "function void drawCircle(int,int,int)"},
+        {"Keyboard", "function void init()", "function char keyPressed()", "function char readChar()", "function String readLine(String)",
+            "function int readInt(String)"},
+        {"Memory", "function void init()", "function int peek(int)", "function void poke(int,int)", "function Array alloc(int)",
+            "function void deAlloc(Array)"},
+        {"Sys", "function void init()", "function void halt()", "function void error(int)", "function void wait(int)"}
+    };
+
+    private static final Map<String, ClassSignatures> OS_CLASSES = new HashMap<>();
+
+    static {
+        for (String[] os : OS_SIGNATURES) {
+            ClassSignatures cs = new ClassSignatures(os[0], -1);
+            for (int i = 1; i < os.length; i++) {
+                String s = os[i];
+                int space1 = s.indexOf(' ');
+                int space2 = s.indexOf(' ', space1 + 1);
+                int paren = s.indexOf('(');
+                String params = s.substring(paren + 1, s.length() - 1);
+                String[] parameterTypes = params.isEmpty() ? new String[0] : params.split(",");
+                Signature signature = new Signature(os[0], s.substring(space2 + 1, paren), Subroutine.Type.valueOf(s.substring(0, space1)), s.substring(space1 + 1, space2), parameterTypes);
+                cs.subroutines.put(signature.getName(), signature);
+            }
+            OS_CLASSES.put(cs.className, cs);
+        }
+    }
+
+    private final Map<String, ClassSignatures> classes = new HashMap<>(OS_CLASSES);
+
+    /**
+     * Adds (or replaces) the signatures of the class.
+     *
+     * @param clazz parsed class
+     * @param version version of the class source
+     */
+    public void add(JackClass clazz, long version) {
+        ClassSignatures cs = new ClassSignatures(clazz.getName(), version);
+        Map<String, Integer> fields = new HashMap<>();
+        for (Declaration declaration : clazz.getDeclarations()) {
+            if (declaration.getScope() == Declaration.Scope.field) {
+                fields.put(declaration.getName(), fields.size());
+            }
+        }
+        cs.fieldCount = fields.size();
+        for (Subroutine subroutine : clazz.getSubroutines()) {
+            int count = 0;
+            for (Declaration declaration : subroutine.getDeclarations()) {
+                if (declaration.getScope() == Declaration.Scope.argument) {
+                    count++;
+                }
+            }
+            String[] parameterTypes = new String[count];
+            int i = 0;
+            for (Declaration declaration : subroutine.getDeclarations()) {
+                if (declaration.getScope() == Declaration.Scope.argument) {
+                    parameterTypes[i++] = declaration.getType();
+                }
+            }
+            cs.subroutines.put(subroutine.getName(), new Signature(clazz.getName(), subroutine.getName(), subroutine.getType(), subroutine.getReturnType(), parameterTypes,
+                    getFieldAccess(subroutine, fields)));
+        }
+        classes.put(cs.className, cs);
+    }
+
+    /**
+     * @param fields indexes of the fields of the class by name
+     * @return the summary of the subroutine, or <code>null</code> if it is
+     * not an accessor
+     */
+    private static FieldAccess getFieldAccess(Subroutine subroutine, Map<String, Integer> fields) {
+        List<Statement> statements = subroutine.getStatements();
+        if (subroutine.getType() == Subroutine.Type.function || statements.isEmpty() || !(statements.get(statements.size() - 1) instanceof ReturnStatement)) {
+            return null;
+        }
+        Map<String, Integer> arguments = new HashMap<>();
+        Map<String, Integer> visibleFields = new HashMap<>(fields);
+        for (Declaration declaration : subroutine.getDeclarations()) {
+            visibleFields.remove(declaration.getName());
+            if (declaration.getScope() == Declaration.Scope.argument) {
+                arguments.put(declaration.getName(), arguments.size());
+            }
+        }
+        List<int[]> assignments = new ArrayList<>();
+        boolean disposing = false;
+        for (Statement statement : statements.subList(0, statements.size() - 1)) {
+            if (disposing) {
+                return null;
+            }
+            if (statement instanceof LetStatement) {
+                LetStatement let = (LetStatement) statement;
+                Integer field = let.getTarget() instanceof Term.ArrayReference ? null : visibleFields.get(let.getTarget().getVarName());
+                Term source = getSingleTerm(let.getExpression());
+                if (field == null || source == null) {
+                    return null;
+                }
+                if (source instanceof Term.Reference && arguments.containsKey(((Term.Reference) source).getVarName()) && !(source instanceof Term.ArrayReference)) {
+                    assignments.add(new int[]{field, arguments.get(((Term.Reference) source).getVarName()), 0});
+                } else if (source instanceof Term.Constant && ((Term.Constant) source).getType() != Term.Constant.Type.string
+                        && !((Term.Constant) source).getValue().equals("this")) {
+                    String value = ((Term.Constant) source).getValue();
+                    assignments.add(new int[]{field, -1, value.equals("true") ? -1 : value.equals("false") || value.equals("null") ? 0 : Integer.parseInt(value)});
+                } else {
+                    return null;
+                }
+            } else if (statement instanceof DoStatement && subroutine.getType() == Subroutine.Type.method) {
+                SubroutineCall call = ((DoStatement) statement).getAction();
+                if (!"Memory".equals(call.getTarget()) || !call.getName().equals("deAlloc") || call.getArguments().size() != 1 || !isThis(getSingleTerm(call.getArguments().get(0)))) {
+                    return null;
+                }
+                disposing = true;
+            } else {
+                return null;
+            }
+        }
+        Term returned = getSingleTerm(((ReturnStatement) statements.get(statements.size() - 1)).getExpression());
+        int returnedField = -1;
+        if (subroutine.getType() == Subroutine.Type.constructor) {
+            if (!isThis(returned)) {
+                return null;
+            }
+        } else if (returned != null) {
+            Integer field = returned instanceof Term.Reference && !(returned instanceof Term.ArrayReference) ? visibleFields.get(((Term.Reference) returned).getVarName()) : null;
+            if (field == null) {
+                return null;
+            }
+            returnedField = field;
+        }
+        int[] fieldIndexes = new int[assignments.size()];
+        int[] argumentIndexes = new int[assignments.size()];
+        int[] constants = new int[assignments.size()];
+        for (int i = 0; i < assignments.size(); i++) {
+            fieldIndexes[i] = assignments.get(i)[0];
+            argumentIndexes[i] = assignments.get(i)[1];
+            constants[i] = assignments.get(i)[2];
+        }
+        return new FieldAccess(fieldIndexes, argumentIndexes, constants, returnedField, disposing);
+    }
+
+    private static Term getSingleTerm(Expression exp) {
+        Term term = exp;
+        while (term instanceof Expression && ((Expression) term).getTerms().size() == 1) {
+            term = ((Expression) term).getTerms().get(0);
+        }
+        return term instanceof Expression ? null : term;
+    }
+
+    private static boolean isThis(Term term) {
+        return term instanceof Term.Constant && ((Term.Constant) term).getType() == Term.Constant.Type.keyword && ((Term.Constant) term).getValue().equals("this");
+    }
+
+    /**
+     * Removes the signatures of a project class, restoring the OS ones if the
+     * class was shadowing an OS class.
+     */
+    public void remove(String className) {
+        ClassSignatures os = OS_CLASSES.get(className);
+        if (os != null) {
+            classes.put(className, os);
+        } else {
+            classes.remove(className);
+        }
+    }
+
+    public boolean containsClass(String className) {
+        return classes.containsKey(className);
+    }
+
+    /**
+     * @return the signature, or null if the class or the subroutine are not
+     * indexed
+     */
+    public Signature getSignature(String className, String subroutineName) {
+        ClassSignatures cs = classes.get(className);
+        if (cs == null) {
+            return null;
+        }
+        return cs.subroutines.get(subroutineName);
+    }
+
+    /**
+     * @return whether the class is a Jack OS class not replaced by a project
+     * class
+     */
+    public boolean isOsClass(String className) {
+        ClassSignatures cs = classes.get(className);
+        return cs != null && cs.version < 0;
+    }
+
+    /**
+     * @return the names of the Jack OS classes replaced by project classes
+     */
+    public Set<String> getShadowedOsClasses() {
+        Set<String> ret = new TreeSet<>();
+        for (String className : OS_CLASSES.keySet()) {
+            if (!isOsClass(className)) {
+                ret.add(className);
+            }
+        }
+        return Collections.unmodifiableSet(ret);
+    }
+
+    /**
+     * @return the number of fields of the class, or -1 if it is not a project
+     * class of the index
+     */
+    public int getFieldCount(String className) {
+        ClassSignatures cs = classes.get(className);
+        if (cs == null || cs.version < 0) {
+            return -1;
+        }
+        return cs.fieldCount;
+    }
+
+    /**
+     * @return a description of the number of fields and the accessors of the
+     * class, equal for two versions of the class if the code generated inline
+     * from them is the same, or <code>null</code> if it is not a project class
+     * of the index
+     */
+    public String getAccessDescription(String className) {
+        ClassSignatures cs = classes.get(className);
+        if (cs == null || cs.version < 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(cs.fieldCount);
+        for (Signature signature : new TreeMap<>(cs.subroutines).values()) {
+            FieldAccess access = signature.getFieldAccess();
+            if (access != null) {
+                sb.append(";").append(signature.getKind()).append(" ").append(signature.getName()).append("/").append(signature.getParameterCount());
+                sb.append(Arrays.toString(access.fields)).append(Arrays.toString(access.arguments)).append(Arrays.toString(access.constants));
+                sb.append(access.returnedField).append(access.disposing ? "d" : "");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the version the class was added with, or -1 if it is not a
+     * project class of the index
+     */
+    public long getVersion(String className) {
+        ClassSignatures cs = classes.get(className);
+        if (cs == null) {
+            return -1;
+        }
+        return cs.version;
+    }
+
+    /**
+     * @return the names of the project (non OS) classes
+     */
+    public Set<String> getProjectClasses() {
+        Set<String> ret = new TreeSet<>();
+        for (ClassSignatures cs : classes.values()) {
+            if (cs.version >= 0) {
+                ret.add(cs.className);
+            }
+        }
+        return Collections.unmodifiableSet(ret);
+    }
+
+    /**
+     * Writes the project classes of the index. OS classes are not persisted.
+     */
+    public void write(OutputStream os) throws IOException {
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        Set<String> projectClasses = getProjectClasses();
+        dos.writeInt(projectClasses.size());
+        for (String className : projectClasses) {
+            ClassSignatures cs = classes.get(className);
+            dos.writeUTF(cs.className);
+            dos.writeLong(cs.version);
+            dos.writeShort(cs.fieldCount);
+            dos.writeInt(cs.subroutines.size());
+            for (Signature signature : cs.subroutines.values()) {
+                dos.writeUTF(signature.getName());
+                dos.writeByte(signature.getKind().ordinal());
+                dos.writeUTF(signature.getReturnType());
+                dos.writeShort(signature.getParameterCount());
+                for (String type : signature.parameterTypes) {
+                    dos.writeUTF(type);
+                }
+                FieldAccess access = signature.getFieldAccess();
+                dos.writeBoolean(access != null);
+                if (access != null) {
+                    dos.writeShort(access.fields.length);
+                    for (int k = 0; k < access.fields.length; k++) {
+                        dos.writeShort(access.fields[k]);
+                        dos.writeShort(access.arguments[k]);
+                        dos.writeShort(access.constants[k]);
+                    }
+                    dos.writeShort(access.returnedField);
+                    dos.writeBoolean(access.disposing);
+                }
+            }
+        }
+        dos.flush();
+    }
+
+    public static SignatureIndex read(InputStream is) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("Not a signature index");
+        }
+        int version = dis.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported signature index version " + version);
+        }
+        SignatureIndex ret = new SignatureIndex();
+        int classCount = dis.readInt();
+        for (int i = 0; i < classCount; i++) {
+            ClassSignatures cs = new ClassSignatures(dis.readUTF(), dis.readLong());
+            cs.fieldCount = dis.readUnsignedShort();
+            int subroutineCount = dis.readInt();
+            for (int j = 0; j < subroutineCount; j++) {
+                String name = dis.readUTF();
+                Subroutine.Type kind = Subroutine.Type.values()[dis.readByte()];
+                String returnType = dis.readUTF();
+                String[] parameterTypes = new String[dis.readUnsignedShort()];
+                for (int k = 0; k < parameterTypes.length; k++) {
+                    parameterTypes[k] = dis.readUTF();
+                }
+                FieldAccess access = null;
+                if (dis.readBoolean()) {
+                    int[] fields = new int[dis.readUnsignedShort()];
+                    int[] arguments = new int[fields.length];
+                    int[] constants = new int[fields.length];
+                    for (int k = 0; k < fields.length; k++) {
+                        fields[k] = dis.readUnsignedShort();
+                        arguments[k] = dis.readShort();
+                        constants[k] = dis.readShort();
+                    }
+                    access = new FieldAccess(fields, arguments, constants, dis.readShort(), dis.readBoolean());
+                }
+                cs.subroutines.put(name, new Signature(cs.className, name, kind, returnType, parameterTypes, access));
+            }
+            ret.classes.put(cs.className, cs);
+        }
+        return ret;
+    }
+
+    private static class ClassSignatures {
+
+        private final String className;
+        private final long version;
+        private final Map<String, Signature> subroutines = new HashMap<>();
+        private int fieldCount = -1;
+
+        public ClassSignatures(String className, long version) {
+            this.className = className;
+            this.version = version;
+        }
+    }
+
+    public static class Signature {
+
+        private final String className;
+        private final String name;
+        private final Subroutine.Type kind;
+        private final String returnType;
+        private final String[] parameterTypes;
+        private final FieldAccess fieldAccess;
+
+        public Signature(String className, String name, Subroutine.Type kind, String returnType, String[] parameterTypes) {
+            this(className, name, kind, returnType, parameterTypes, null);
+        }
+
+        public Signature(String className, String name, Subroutine.Type kind, String returnType, String[] parameterTypes, FieldAccess fieldAccess) {
+            this.className = className;
+            this.name = name;
+            this.kind = kind;
+            this.returnType = returnType;
+            this.parameterTypes = parameterTypes;
+            this.fieldAccess = fieldAccess;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Subroutine.Type getKind() {
+            return kind;
+        }
+
+        public String getReturnType() {
+            return returnType;
+        }
+
+        public int getParameterCount() {
+            return parameterTypes.length;
+        }
+
+        public String getParameterType(int index) {
+            return parameterTypes[index];
+        }
+
+        /**
+         * @return the summary of the constructor or method, or
+         * <code>null</code> if it is not an accessor
+         */
+        public FieldAccess getFieldAccess() {
+            return fieldAccess;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(kind).append(" ").append(returnType).append(" ").append(className).append(".").append(name).append("(");
+            for (int i = 0; i < parameterTypes.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(parameterTypes[i]);
+            }
+            return sb.append(")").toString();
+        }
+    }
+
+    /**
+     * Summary of a constructor or method whose body only assigns fields of its
+     * object from arguments and constants, and then returns a field, nothing,
+     * or (constructors) the object itself. Methods may dispose the object with
+     * <code>Memory.deAlloc(this)</code> right before returning.
+     */
+    public static class FieldAccess {
+
+        private final int[] fields;
+        private final int[] arguments;
+        private final int[] constants;
+        private final int returnedField;
+        private final boolean disposing;
+
+        public FieldAccess(int[] fields, int[] arguments, int[] constants, int returnedField, boolean disposing) {
+            this.fields = fields;
+            this.arguments = arguments;
+            this.constants = constants;
+            this.returnedField = returnedField;
+            this.disposing = disposing;
+        }
+
+        /**
+         * @return the number of field assignments, in execution order
+         */
+        public int getAssignmentCount() {
+            return fields.length;
+        }
+
+        /**
+         * @return the index of the field assigned
+         */
+        public int getField(int assignment) {
+            return fields[assignment];
+        }
+
+        /**
+         * @return the index of the argument assigned, or -1 if the assignment
+         * is of a constant
+         */
+        public int getArgument(int assignment) {
+            return arguments[assignment];
+        }
+
+        public int getConstant(int assignment) {
+            return constants[assignment];
+        }
+
+        /**
+         * @return the index of the field returned, or -1 if none
+         */
+        public int getReturnedField() {
+            return returnedField;
+        }
+
+        /**
+         * @return whether the object is disposed by
+         * <code>Memory.deAlloc</code>
+         */
+        public boolean isDisposing() {
+            return disposing;
+        }
+    }
+}
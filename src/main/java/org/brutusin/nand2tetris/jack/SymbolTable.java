@@ -15,46 +15,159 @@
  */
 package org.brutusin.nand2tetris.jack;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import org.brutusin.nand2tetris.jack.model.Declaration;
 
 /**
+ * Symbol table for a scope, optionally chained to the table of its enclosing
+ * scope so a single {@link #getEntry(String)} resolves locals, arguments,
+ * fields and statics in that order.
+ * <p>
+ * Entries live in an open addressing table (linear probing) keyed by the
+ * identifier strings, that the {@link Tokenizer} canonicalizes so that lookups
+ * usually succeed on reference equality. Scope counters are primitive and
+ * entries are recycled by {@link #clear()}, so a table reused across
+ * subroutines does not allocate once it has grown to its working size.
  *
  * @author Ignacio del Valle Alles idelvall@brutusin.org
  */
 public class SymbolTable {
 
-    private final Map<String, SymEntry> entryMap = new HashMap<>();
-    private final Map<Declaration.Scope, Integer> counters = new HashMap<>();
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final SymbolTable parent;
+    private final int[] counters = new int[Declaration.Scope.values().length];
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private SymEntry[] slots = new SymEntry[INITIAL_CAPACITY];
+    private SymEntry[] entries = new SymEntry[INITIAL_CAPACITY / 2];
+    private int size;
+
+    public SymbolTable() {
+        this(null);
+    }
+
+    /**
+     * @param parent table of the enclosing scope, looked up when a name is not
+     * found in this one
+     */
+    public SymbolTable(SymbolTable parent) {
+        this.parent = parent;
+    }
+
+    public SymbolTable getParent() {
+        return parent;
+    }
 
     public void add(Declaration declaration) throws AlreadyRegisteredException {
-        if (entryMap.containsKey(declaration.getName())) {
-            throw new AlreadyRegisteredException(declaration.getName());
+        String name = declaration.getName();
+        int hash = hash(name);
+        int mask = keys.length - 1;
+        int i = slot(hash, keys.length);
+        while (keys[i] != null) {
+            if (keys[i] == name || hashes[i] == hash && keys[i].equals(name)) {
+                throw new AlreadyRegisteredException(name);
+            }
+            i = (i + 1) & mask;
         }
-        Integer index = counters.get(declaration.getScope());
-        if (index == null) {
-            index = 0;
-        } else {
-            index++;
+        SymEntry se = entries[size];
+        if (se == null) {
+            se = new SymEntry();
+            entries[size] = se;
         }
-        counters.put(declaration.getScope(), index);
-        SymEntry se = new SymEntry();
         se.declaration = declaration;
-        se.index = index;
-        entryMap.put(declaration.getName(), se);
+        se.index = counters[declaration.getScope().ordinal()]++;
+        keys[i] = name;
+        hashes[i] = hash;
+        slots[i] = se;
+        size++;
+        if (size == entries.length) {
+            grow();
+        }
     }
 
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        SymEntry[] oldSlots = slots;
+        keys = new String[oldKeys.length * 2];
+        hashes = new int[oldKeys.length * 2];
+        slots = new SymEntry[oldSlots.length * 2];
+        entries = Arrays.copyOf(entries, entries.length * 2);
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = slot(oldHashes[j], keys.length);
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                hashes[i] = oldHashes[j];
+                slots[i] = oldSlots[j];
+            }
+        }
+    }
+
+    /**
+     * Fibonacci hashing, so that the high bits used by {@link #slot(int, int)}
+     * depend on all the bits of the string hash.
+     */
+    private static int hash(String name) {
+        return name.hashCode() * 0x9E3779B9;
+    }
+
+    private static int slot(int hash, int length) {
+        return hash >>> (32 - Integer.numberOfTrailingZeros(length));
+    }
+
+    /**
+     * Removes all the entries, allowing the table to be reused.
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, null);
+            Arrays.fill(slots, null);
+            for (int i = 0; i < size; i++) {
+                entries[i].declaration = null;
+            }
+            size = 0;
+        }
+        Arrays.fill(counters, 0);
+    }
+
+    /**
+     * Resolves a name in this scope and then in the enclosing ones.
+     *
+     * @param name identifier
+     * @return the entry, or null if not found
+     */
     public SymEntry getEntry(String name) {
-        return entryMap.get(name);
+        int hash = hash(name);
+        SymbolTable table = this;
+        do {
+            if (table.size > 0) {
+                String[] tableKeys = table.keys;
+                int mask = tableKeys.length - 1;
+                int i = slot(hash, tableKeys.length);
+                String key;
+                while ((key = tableKeys[i]) != null) {
+                    if (key == name || table.hashes[i] == hash && key.equals(name)) {
+                        return table.slots[i];
+                    }
+                    i = (i + 1) & mask;
+                }
+            }
+            table = table.parent;
+        } while (table != null);
+        return null;
     }
 
+    /**
+     * @param scope declaration scope
+     * @return number of variables of the scope declared in this table
+     */
     public int count(Declaration.Scope scope) {
-        Integer ret = counters.get(scope);
-        if (ret == null) {
-            return 0;
-        }
-        return ret + 1;
+        return counters[scope.ordinal()];
     }
 
     public static class AlreadyRegisteredException extends Exception {
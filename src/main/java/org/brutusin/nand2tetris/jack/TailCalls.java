@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.brutusin.nand2tetris.jack.model.Declaration;
+import org.brutusin.nand2tetris.jack.model.DoStatement;
+import org.brutusin.nand2tetris.jack.model.Expression;
+import org.brutusin.nand2tetris.jack.model.IfStatement;
+import org.brutusin.nand2tetris.jack.model.LetStatement;
+import org.brutusin.nand2tetris.jack.model.ReturnStatement;
+import org.brutusin.nand2tetris.jack.model.Statement;
+import org.brutusin.nand2tetris.jack.model.Subroutine;
+import org.brutusin.nand2tetris.jack.model.SubroutineCall;
+import org.brutusin.nand2tetris.jack.model.Term;
+import org.brutusin.nand2tetris.jack.model.WhileStatement;
+
+/**
+ * Tail call analysis of a subroutine. A <code>return</code> whose value is a
+ * call to the subroutine itself (<code>Class.f(...)</code> from function
+ * <code>f</code>, or from method <code>m</code>, <code>m(...)</code> on the
+ * same object or <code>v.m(...)</code> on a variable of the same class, since
+ * methods are not dispatched at runtime) can reuse the frame of the caller:
+ * the arguments (and <code>this</code>) are reassigned and the code jumps back
+ * to the entry of the subroutine.
+ * <p>
+ * A new frame starts with its locals set to zero, and so has to start a
+ * reused one. Only the locals that may be read before being assigned are
+ * reset: those referenced before the first top-level <code>let</code> that
+ * assigns them.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+class TailCalls {
+
+    private final Subroutine subroutine;
+    private final String className;
+    private final SymbolTable symbols;
+    private final Map<ReturnStatement, SubroutineCall> calls = new IdentityHashMap<>();
+    private final List<SymbolTable.SymEntry> localsToReset = new ArrayList<>();
+
+    /**
+     * @param subroutine subroutine to analyze
+     * @param className name of the class of the subroutine
+     * @param symbols symbol table of the subroutine scope
+     */
+    TailCalls(Subroutine subroutine, String className, SymbolTable symbols) {
+        this.subroutine = subroutine;
+        this.className = className;
+        this.symbols = symbols;
+        if (subroutine.getType() != Subroutine.Type.constructor) {
+            findStatements(subroutine.getStatements());
+        }
+        if (!calls.isEmpty()) {
+            findLocalsToReset();
+        }
+    }
+
+    /**
+     * @return whether the subroutine has some tail call
+     */
+    boolean isEmpty() {
+        return calls.isEmpty();
+    }
+
+    /**
+     * @return the self call returned by the statement, or <code>null</code>
+     * if it is not a tail call
+     */
+    SubroutineCall get(ReturnStatement statement) {
+        return calls.get(statement);
+    }
+
+    /**
+     * @return the locals to set to zero before jumping to the entry
+     */
+    List<SymbolTable.SymEntry> getLocalsToReset() {
+        return localsToReset;
+    }
+
+    private void findStatements(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement instanceof ReturnStatement) {
+                SubroutineCall call = getSelfCall(((ReturnStatement) statement).getExpression());
+                if (call != null) {
+                    calls.put((ReturnStatement) statement, call);
+                }
+            } else if (statement instanceof IfStatement) {
+                findStatements(((IfStatement) statement).getIfStatements());
+                findStatements(((IfStatement) statement).getElseStatements());
+            } else if (statement instanceof WhileStatement) {
+                findStatements(((WhileStatement) statement).getStatements());
+            }
+        }
+    }
+
+    private SubroutineCall getSelfCall(Term term) {
+        while (term instanceof Expression && ((Expression) term).getTerms().size() == 1) {
+            term = ((Expression) term).getTerms().get(0);
+        }
+        if (!(term instanceof SubroutineCall)) {
+            return null;
+        }
+        SubroutineCall call = (SubroutineCall) term;
+        if (!call.getName().equals(subroutine.getName())) {
+            return null;
+        }
+        if (subroutine.getType() == Subroutine.Type.method) {
+            if (call.getTarget() != null) {
+                SymbolTable.SymEntry entry = symbols.getEntry(call.getTarget());
+                if (entry == null || !entry.getDeclaration().getType().equals(className)) {
+                    return null;
+                }
+            }
+        } else if (call.getTarget() == null || !call.getTarget().equals(className) || symbols.getEntry(call.getTarget()) != null) {
+            return null;
+        }
+        int parameterCount = 0;
+        for (Declaration declaration : subroutine.getDeclarations()) {
+            if (declaration.getScope() == Declaration.Scope.argument) {
+                parameterCount++;
+            }
+        }
+        return call.getArguments().size() == parameterCount ? call : null;
+    }
+
+    private void findLocalsToReset() {
+        Set<String> assigned = new HashSet<>();
+        Set<String> read = new HashSet<>();
+        for (Statement statement : subroutine.getStatements()) {
+            if (statement instanceof LetStatement && !(((LetStatement) statement).getTarget() instanceof Term.ArrayReference)) {
+                LetStatement let = (LetStatement) statement;
+                addReads(let.getExpression(), assigned, read);
+                assigned.add(let.getTarget().getVarName());
+            } else {
+                addReads(statement, assigned, read);
+            }
+        }
+        for (Declaration declaration : subroutine.getDeclarations()) {
+            if (declaration.getScope() == Declaration.Scope.local && read.contains(declaration.getName())) {
+                localsToReset.add(symbols.getEntry(declaration.getName()));
+            }
+        }
+    }
+
+    private static void addReads(Statement statement, Set<String> assigned, Set<String> read) {
+        if (statement instanceof LetStatement) {
+            LetStatement let = (LetStatement) statement;
+            addReads(let.getTarget(), assigned, read);
+            addReads(let.getExpression(), assigned, read);
+        } else if (statement instanceof IfStatement) {
+            IfStatement ifStatement = (IfStatement) statement;
+            addReads(ifStatement.getCondition(), assigned, read);
+            for (Statement s : ifStatement.getIfStatements()) {
+                addReads(s, assigned, read);
+            }
+            for (Statement s : ifStatement.getElseStatements()) {
+                addReads(s, assigned, read);
+            }
+        } else if (statement instanceof WhileStatement) {
+            WhileStatement whileStatement = (WhileStatement) statement;
+            addReads(whileStatement.getCondition(), assigned, read);
+            for (Statement s : whileStatement.getStatements()) {
+                addReads(s, assigned, read);
+            }
+        } else if (statement instanceof DoStatement) {
+            addReads(((DoStatement) statement).getAction(), assigned, read);
+        } else if (statement instanceof ReturnStatement) {
+            addReads(((ReturnStatement) statement).getExpression(), assigned, read);
+        }
+    }
+
+    private static void addReads(Term term, Set<String> assigned, Set<String> read) {
+        if (term instanceof Expression) {
+            for (Term t : ((Expression) term).getTerms()) {
+                addReads(t, assigned, read);
+            }
+        } else if (term instanceof Term.Reference) {
+            String name = ((Term.Reference) term).getVarName();
+            if (!assigned.contains(name)) {
+                read.add(name);
+            }
+            if (term instanceof Term.ArrayReference) {
+                addReads(((Term.ArrayReference) term).getIndex(), assigned, read);
+            }
+        } else if (term instanceof Term.UnaryTerm) {
+            addReads(((Term.UnaryTerm) term).getTerm(), assigned, read);
+        } else if (term instanceof SubroutineCall) {
+            SubroutineCall call = (SubroutineCall) term;
+            if (call.getTarget() != null && !assigned.contains(call.getTarget())) {
+                read.add(call.getTarget());
+            }
+            for (Expression argument : call.getArguments()) {
+                addReads(argument, assigned, read);
+            }
+        }
+    }
+}
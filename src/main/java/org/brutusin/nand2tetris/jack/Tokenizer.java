@@ -17,11 +17,17 @@ package org.brutusin.nand2tetris.jack;
  */
 
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
@@ -35,6 +41,7 @@ public class Tokenizer implements Iterable<Tokenizer.Token> {
     private final static Set<Character> SYMBOLS;
 
     private final List<Token> tokens;
+    private Scanner scanner;
 
     static {
         KEYWORDS = new HashSet<>();
@@ -82,34 +89,243 @@ public class Tokenizer implements Iterable<Tokenizer.Token> {
         SYMBOLS.add('=');
     }
 
-    public Tokenizer(String code) throws CompilerException {
-        this.tokens = parse(code);
+    public Tokenizer(CharSequence code) throws CompilerException {
+        this(code, null);
     }
 
-    private static List<Token> parse(String code) throws CompilerException {
-        LinkedList<Token> ret = new LinkedList<>();
-        boolean escaping = false;
-        boolean inString = false;
-        boolean inSingleLineComment = false;
-        boolean inMultiLineComment = false;
-        int start = 0;
-        int lineNumber = 1;
-        int i = 0;
-        int lineStartIndex = 0;
-        while (i < code.length()) {
+    /**
+     * @param code source code
+     * @param errors if not null, lexical errors are added to this list and
+     * tokenization goes on, otherwise the first error is thrown
+     * @throws CompilerException
+     */
+    public Tokenizer(CharSequence code, List<CompilerException> errors) throws CompilerException {
+        this(code, new ArrayList<Token>(), new HashMap<String, String>(), errors);
+    }
+
+    /**
+     * @param code source code
+     * @param tokens list to be cleared and filled with the tokens, allowing
+     * its reuse
+     * @param identifiers canonical instances of the identifiers, shared by
+     * the tokenizers of a {@link CompilationContext} so that equal identifiers
+     * are the same string and symbol table lookups succeed on reference
+     * equality
+     * @param errors optional error list
+     * @throws CompilerException
+     */
+    Tokenizer(CharSequence code, List<Token> tokens, Map<String, String> identifiers, List<CompilerException> errors) throws CompilerException {
+        tokens.clear();
+        Scanner scanner = new Scanner(code, identifiers, errors);
+        Token token;
+        while ((token = scanner.next()) != null) {
+            tokens.add(token);
+        }
+        this.tokens = tokens;
+    }
+
+    private Tokenizer(Scanner scanner) {
+        this.tokens = null;
+        this.scanner = scanner;
+    }
+
+    /**
+     * Creates a tokenizer that scans the code on demand instead of holding all
+     * its tokens, so memory does not depend on the code size. The resulting
+     * tokenizer can only be iterated once.
+     *
+     * @param code source code
+     * @param errors list where lexical errors are added
+     * @return the tokenizer
+     */
+    public static Tokenizer lazy(CharSequence code, List<CompilerException> errors) {
+        return lazy(code, new HashMap<String, String>(), errors);
+    }
+
+    /**
+     * @param identifiers canonical instances of the identifiers
+     */
+    static Tokenizer lazy(CharSequence code, Map<String, String> identifiers, List<CompilerException> errors) {
+        if (errors == null) {
+            throw new IllegalArgumentException("errors is required");
+        }
+        return new Tokenizer(new Scanner(code, identifiers, errors));
+    }
+
+    private static void report(CompilerException ce, List<CompilerException> errors) throws CompilerException {
+        if (errors == null) {
+            throw ce;
+        }
+        errors.add(ce);
+    }
+
+    /**
+     * Writes the XML representation of the tokens of the source code, without
+     * holding them in memory.
+     *
+     * @param code source code
+     * @param errors optional error list
+     * @param writer destination
+     * @throws CompilerException
+     * @throws IOException
+     */
+    public static void writeXml(CharSequence code, List<CompilerException> errors, Writer writer) throws CompilerException, IOException {
+        XmlWriter xml = new XmlWriter(writer, "", false);
+        xml.open("tokens");
+        Scanner scanner = new Scanner(code, new HashMap<String, String>(), errors);
+        Token token;
+        while ((token = scanner.next()) != null) {
+            token.writeXml(xml);
+        }
+        xml.close("tokens");
+        xml.flush();
+    }
+
+    /**
+     * Pull tokenizer, producing the tokens of the source code one at a time.
+     */
+    static class Scanner {
+
+        private final CharSequence code;
+        private final Map<String, String> identifiers;
+        private final List<CompilerException> errors;
+        private boolean escaping = false;
+        private boolean inString = false;
+        private boolean inSingleLineComment = false;
+        private boolean inMultiLineComment = false;
+        private boolean finished = false;
+        private int start = 0;
+        private int lineNumber = 1;
+        private int i = 0;
+        private int lineStartIndex = 0;
+        private Token next;
+        private Token pending; // a single step can produce two tokens
+
+        Scanner(CharSequence code, Map<String, String> identifiers, List<CompilerException> errors) {
+            this.code = code;
+            this.identifiers = identifiers;
+            this.errors = errors;
+        }
+
+        /**
+         * @return the next token, or null if the end of the code has been
+         * reached
+         * @throws CompilerException
+         */
+        Token next() throws CompilerException {
+            if (pending != null) {
+                Token ret = pending;
+                pending = null;
+                return ret;
+            }
+            while (next == null && i < code.length()) {
+                step();
+                i++;
+            }
+            if (next == null && !finished) {
+                finished = true;
+                if (inString) {
+                    report(new CompilerException("Non terminated string literal", lineNumber, start - lineStartIndex + 1), errors);
+                } else if (i != start) {
+                    addToken(code.subSequence(start, i).toString(), lineNumber, start - lineStartIndex + 1);
+                }
+            }
+            Token ret = next;
+            next = null;
+            return ret;
+        }
+
+        /**
+         * Skips the characters of a block whose opening '{' is the last
+         * returned token, without creating tokens nor checking them.
+         *
+         * @return the matching '}', or null if the end of the code is reached
+         */
+        Token skipBlock() {
+            if (next != null || pending != null || i != start) {
+                throw new IllegalStateException("Scanner is not at a token boundary");
+            }
+            int depth = 1;
+            int length = code.length();
+            while (i < length) {
+                char c = code.charAt(i);
+                if (c == '\n') {
+                    lineNumber++;
+                    lineStartIndex = i + 1;
+                } else if (c == '\"') {
+                    for (i++; i < length; i++) {
+                        c = code.charAt(i);
+                        if (c == '\\') {
+                            i++;
+                        } else if (c == '\"') {
+                            break;
+                        } else if (c == '\n') {
+                            lineNumber++;
+                            lineStartIndex = i + 1;
+                            break;
+                        }
+                    }
+                } else if (c == '/' && i + 1 < length && code.charAt(i + 1) == '/') {
+                    while (i + 1 < length && code.charAt(i + 1) != '\n') {
+                        i++;
+                    }
+                } else if (c == '/' && i + 2 < length && code.charAt(i + 1) == '*' && code.charAt(i + 2) == '*') {
+                    for (i += 3; i < length && !(code.charAt(i) == '*' && i + 1 < length && code.charAt(i + 1) == '/'); i++) {
+                        if (code.charAt(i) == '\n') {
+                            lineNumber++;
+                            lineStartIndex = i + 1;
+                        }
+                    }
+                    i++;
+                } else if (c == '{') {
+                    depth++;
+                } else if (c == '}' && --depth == 0) {
+                    Token ret = new Token("}", Token.Type.symbol, lineNumber, i - lineStartIndex + 1);
+                    i++;
+                    start = i;
+                    return ret;
+                }
+                i++;
+            }
+            start = i;
+            return null;
+        }
+
+        private void emit(Token token) {
+            if (next == null) {
+                next = token;
+            } else {
+                pending = token;
+            }
+        }
+
+        private void addToken(String s, int line, int column) throws CompilerException {
+            try {
+                emit(createTokenFrom(s, line, column, identifiers));
+            } catch (CompilerException ce) {
+                report(ce, errors);
+            }
+        }
+
+        private void step() throws CompilerException {
             char c = code.charAt(i);
             if (inString) {
                 if (c == '\n') {
-                    throw new CompilerException("End of line found inside string literal", lineNumber, start - lineStartIndex + 1);
-                }
-                if (escaping) {
+                    report(new CompilerException("End of line found inside string literal", lineNumber, start - lineStartIndex + 1), errors);
+                    emit(new Token(code.subSequence(start, i).toString(), Token.Type.stringConstant, lineNumber, start - lineStartIndex + 1));
+                    inString = false;
+                    escaping = false;
+                    start = i + 1;
+                    lineNumber++;
+                    lineStartIndex = i + 1;
+                } else if (escaping) {
                     escaping = false;
                 } else {
                     if (c == '\\') {
                         escaping = true;
                     } else if (c == '\"') {
                         inString = false;
-                        ret.add(new Token(code.substring(start, i), Token.Type.stringConstant, lineNumber, start - lineStartIndex + 1));
+                        emit(new Token(code.subSequence(start, i).toString(), Token.Type.stringConstant, lineNumber, start - lineStartIndex + 1));
                         start = i + 1;
                     }
                 }
@@ -132,23 +348,23 @@ public class Tokenizer implements Iterable<Tokenizer.Token> {
                     }
                 } else if (c == '/' && i + 1 < code.length() && code.charAt(i + 1) == '/') {
                     if (i != start) {
-                        ret.add(createTokenFrom(code.substring(start, i), lineNumber, start - lineStartIndex + 1));
+                        addToken(code.subSequence(start, i).toString(), lineNumber, start - lineStartIndex + 1);
                     }
                     inSingleLineComment = true;
                 } else if (c == '/' && i + 2 < code.length() && code.charAt(i + 1) == '*' && code.charAt(i + 2) == '*') {
                     if (i != start) {
-                        ret.add(createTokenFrom(code.substring(start, i), lineNumber, start - lineStartIndex + 1));
+                        addToken(code.subSequence(start, i).toString(), lineNumber, start - lineStartIndex + 1);
                     }
                     inMultiLineComment = true;
                 } else if (c == '\"') {
                     if (i != start) {
-                        ret.add(createTokenFrom(code.substring(start, i), lineNumber, start - lineStartIndex + 1));
+                        addToken(code.subSequence(start, i).toString(), lineNumber, start - lineStartIndex + 1);
                     }
                     start = i + 1;
                     inString = true;
                 } else if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
                     if (i != start) {
-                        ret.add(createTokenFrom(code.substring(start, i), lineNumber, start - lineStartIndex + 1));
+                        addToken(code.subSequence(start, i).toString(), lineNumber, start - lineStartIndex + 1);
                     }
                     start = i + 1;
                     if (c == '\n') {
@@ -157,24 +373,16 @@ public class Tokenizer implements Iterable<Tokenizer.Token> {
                     }
                 } else if (SYMBOLS.contains(c)) {
                     if (i != start) {
-                        ret.add(createTokenFrom(code.substring(start, i), lineNumber, start - lineStartIndex + 1));
+                        addToken(code.subSequence(start, i).toString(), lineNumber, start - lineStartIndex + 1);
                     }
-                    ret.add(new Token(code.substring(i, i + 1), Token.Type.symbol, lineNumber, start - lineStartIndex + 1));
+                    emit(new Token(code.subSequence(i, i + 1).toString(), Token.Type.symbol, lineNumber, start - lineStartIndex + 1));
                     start = i + 1;
                 }
             }
-            i++;
-        }
-        if (inString) {
-            throw new CompilerException("Non terminated string literal", lineNumber, start - lineStartIndex + 1);
         }
-        if (i != start) {
-            ret.add(createTokenFrom(code.substring(start, i), lineNumber, start - lineStartIndex + 1));
-        }
-        return ret;
     }
 
-    private static Token createTokenFrom(String s, int line, int column) throws CompilerException {
+    private static Token createTokenFrom(String s, int line, int column, Map<String, String> identifiers) throws CompilerException {
         if (s.charAt(0) > 47 && s.charAt(0) < 58) { // starts with number
             try {
                 BigInteger v = new BigInteger(s);
@@ -188,7 +396,12 @@ public class Tokenizer implements Iterable<Tokenizer.Token> {
         } else if (KEYWORDS.contains(s)) {
             return new Token(s, Token.Type.keyword, line, column);
         } else {
-            return new Token(s, Token.Type.identifier, line, column);
+            String identifier = identifiers.get(s);
+            if (identifier == null) {
+                identifiers.put(s, s);
+                identifier = s;
+            }
+            return new Token(identifier, Token.Type.identifier, line, column); // canonical for symbol table lookups
         }
     }
 
@@ -198,14 +411,24 @@ public class Tokenizer implements Iterable<Tokenizer.Token> {
     }
 
     public String toXml() {
-        StringBuilder sb = new StringBuilder("<tokens>");
+        StringWriter sw = new StringWriter();
+        try {
+            writeXml(sw);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        sw.getBuffer().setLength(sw.getBuffer().length() - 1); // trailing new line
+        return sw.toString();
+    }
+
+    public void writeXml(Writer writer) throws IOException {
+        XmlWriter xml = new XmlWriter(writer, "", false);
+        xml.open("tokens");
         for (Token token : this) {
-            sb.append("\n");
-            sb.append(token);
+            token.writeXml(xml);
         }
-        sb.append("\n");
-        sb.append("</tokens>");
-        return sb.toString();
+        xml.close("tokens");
+        xml.flush();
     }
 
     @Override
@@ -228,8 +451,21 @@ public class Tokenizer implements Iterable<Tokenizer.Token> {
 
     public class TokenizerIterator implements Iterator<Token> {
 
-        private Iterator<Token> it = tokens.iterator();
+        private final Iterator<Token> it;
         private Token next; // Used to store queried but not consumed token
+        private Token last; // Last consumed token
+        private int position; // Number of consumed tokens
+
+        private TokenizerIterator() {
+            if (tokens != null) {
+                it = tokens.iterator();
+            } else if (scanner != null) {
+                it = new ScannerIterator(scanner);
+                scanner = null;
+            } else {
+                throw new IllegalStateException("Lazy tokenizers can only be iterated once");
+            }
+        }
 
         @Override
         public boolean hasNext() {
@@ -246,12 +482,13 @@ public class Tokenizer implements Iterable<Tokenizer.Token> {
 
         public Token poll() {
             if (next != null) {
-                Token ret = next;
+                last = next;
                 next = null;
-                return ret;
             } else {
-                return it.next();
+                last = it.next();
             }
+            position++;
+            return last;
         }
 
         public Token peek() {
@@ -260,6 +497,83 @@ public class Tokenizer implements Iterable<Tokenizer.Token> {
             }
             return next;
         }
+
+        /**
+         * Consumes the tokens of a block whose opening '{' has just been
+         * consumed, up to its matching '}'. Blocks of lazy tokenizers are
+         * skipped at character level, without scanning their tokens.
+         *
+         * @return the closing '}'
+         * @throws NoSuchElementException if the block is not closed
+         */
+        public Token skipBlock() {
+            if (next == null && it instanceof ScannerIterator && ((ScannerIterator) it).next == null) {
+                Token token = ((ScannerIterator) it).scanner.skipBlock();
+                if (token == null) {
+                    throw new NoSuchElementException();
+                }
+                last = token;
+                position++;
+                return token;
+            }
+            int depth = 1;
+            while (true) {
+                Token token = poll();
+                if (token.getType() == Token.Type.symbol) {
+                    if (token.getValue().equals("{")) {
+                        depth++;
+                    } else if (token.getValue().equals("}") && --depth == 0) {
+                        return token;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the last consumed token, or null if none has been consumed
+         */
+        public Token last() {
+            return last;
+        }
+
+        /**
+         * @return the number of tokens consumed so far
+         */
+        public int position() {
+            return position;
+        }
+    }
+
+    private static class ScannerIterator implements Iterator<Token> {
+
+        private final Scanner scanner;
+        private Token next;
+
+        public ScannerIterator(Scanner scanner) {
+            this.scanner = scanner;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = scanner.next();
+                } catch (CompilerException ce) {
+                    throw new AssertionError(ce); // errors are collected
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Token next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Token ret = next;
+            next = null;
+            return ret;
+        }
     }
 
     public static class Token {
@@ -303,11 +617,15 @@ public class Tokenizer implements Iterable<Tokenizer.Token> {
         }
 
         public String toXml() {
-            return "<" + type + ">" + escapeXML(value) + "</" + type + ">";
+            StringBuilder sb = new StringBuilder(value.length() + 32);
+            sb.append("<").append(type).append(">");
+            XmlWriter.escape(value, sb);
+            sb.append("</").append(type).append(">");
+            return sb.toString();
         }
 
-        private static String escapeXML(String value) {
-            return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+        public void writeXml(XmlWriter xml) throws IOException {
+            xml.element(type.name(), value);
         }
     }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.List;
+import org.brutusin.nand2tetris.jack.model.JackClass;
+
+/**
+ * Built-in backend, generating Hack VM code with {@link ClassWriter}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class VmBackend implements Backend {
+
+    public static final String NAME = "vm";
+
+    private final CompilationContext configuration;
+
+    public VmBackend() {
+        this(null);
+    }
+
+    /**
+     * @param configuration context to take the optimization level, unroll
+     * budget and reports from, or <code>null</code> for the defaults
+     */
+    public VmBackend(CompilationContext configuration) {
+        this.configuration = configuration;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getExtension() {
+        return ".vm";
+    }
+
+    @Override
+    public String generate(JackClass clazz, List<CompilerException> errors, SignatureIndex index) throws CompilerException {
+        ClassWriter cw = new ClassWriter(clazz, null, errors, index, configuration);
+        if (configuration != null && configuration.getFrameReport() != null) {
+            configuration.getFrameReport().addAll(cw.getFrameReport());
+        }
+        if (configuration != null && configuration.getIntrinsicReport() != null) {
+            configuration.getIntrinsicReport().addAll(cw.getIntrinsicReport());
+        }
+        return cw.getCode();
+    }
+}
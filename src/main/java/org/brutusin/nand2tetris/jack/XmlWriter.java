@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal streaming XML writer for token and parse tree documents. Elements
+ * are written straight to the underlying writer, one per line, and text is
+ * escaped in a single pass.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class XmlWriter {
+
+    private final Writer out;
+    private final String indentUnit;
+    private final boolean padded;
+    private int depth;
+
+    /**
+     * @param out destination
+     * @param indentUnit string written once per nesting level
+     * @param padded whether text values are surrounded by spaces, as in
+     * <code>&lt;keyword&gt; class &lt;/keyword&gt;</code>
+     */
+    public XmlWriter(Writer out, String indentUnit, boolean padded) {
+        this(out, indentUnit, padded, 0);
+    }
+
+    public XmlWriter(Writer out, String indentUnit, boolean padded, int depth) {
+        this.out = out;
+        this.indentUnit = indentUnit;
+        this.padded = padded;
+        this.depth = depth;
+    }
+
+    public void open(String name) throws IOException {
+        indent();
+        out.write('<');
+        out.write(name);
+        out.write(">\n");
+        depth++;
+    }
+
+    public void close(String name) throws IOException {
+        depth--;
+        indent();
+        out.write("</");
+        out.write(name);
+        out.write(">\n");
+    }
+
+    public void element(String name, String value) throws IOException {
+        indent();
+        out.write('<');
+        out.write(name);
+        out.write('>');
+        if (padded) {
+            out.write(' ');
+        }
+        escape(value, out);
+        if (padded) {
+            out.write(' ');
+        }
+        out.write("</");
+        out.write(name);
+        out.write(">\n");
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private void indent() throws IOException {
+        for (int i = 0; i < depth; i++) {
+            out.write(indentUnit);
+        }
+    }
+
+    /**
+     * Escapes the XML special characters of the value in a single pass.
+     */
+    public static void escape(String value, Writer out) throws IOException {
+        int from = 0;
+        for (int i = 0; i < value.length(); i++) {
+            String replacement = replacement(value.charAt(i));
+            if (replacement != null) {
+                out.write(value, from, i - from);
+                out.write(replacement);
+                from = i + 1;
+            }
+        }
+        out.write(value, from, value.length() - from);
+    }
+
+    public static void escape(CharSequence value, StringBuilder sb) {
+        int from = 0;
+        for (int i = 0; i < value.length(); i++) {
+            String replacement = replacement(value.charAt(i));
+            if (replacement != null) {
+                sb.append(value, from, i);
+                sb.append(replacement);
+                from = i + 1;
+            }
+        }
+        sb.append(value, from, value.length());
+    }
+
+    private static String replacement(char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return "&quot;";
+            default:
+                return null;
+        }
+    }
+}
@@ -16,24 +16,26 @@
 package org.brutusin.nand2tetris.jack.model;
 
 /**
+ * Base class of the nodes of the model. The source position is packed in a
+ * single <code>long</code> (line in the high half, column in the low half).
+ * Nodes with children also offer <code>compact()</code>, called by the
+ * parser once the node is complete, to size their child arrays exactly.
  *
  * @author Ignacio del Valle Alles idelvall@brutusin.org
  */
 public class CompilerElement {
 
-    private final Integer lineNumber;
-    private final Integer columnNumber;
+    private final long position;
 
-    public CompilerElement(Integer lineNumber, Integer columnNumber) {
-        this.lineNumber = lineNumber;
-        this.columnNumber = columnNumber;
+    public CompilerElement(int lineNumber, int columnNumber) {
+        this.position = (long) lineNumber << 32 | columnNumber & 0xFFFFFFFFL;
     }
 
-    public Integer getColumnNumber() {
-        return columnNumber;
+    public int getColumnNumber() {
+        return (int) position;
     }
 
-    public Integer getLineNumber() {
-        return lineNumber;
+    public int getLineNumber() {
+        return (int) (position >>> 32);
     }
 }
@@ -45,7 +45,7 @@ public class Declaration extends CompilerElement {
     private final String name;
     private final Scope scope;
 
-    public Declaration(Integer lineNumber, Integer columnNumber, String type, String name, Scope scope) {
+    public Declaration(int lineNumber, int columnNumber, String type, String name, Scope scope) {
         super(lineNumber, columnNumber);
         this.type = type;
         this.name = name;
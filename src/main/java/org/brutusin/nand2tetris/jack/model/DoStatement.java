@@ -23,7 +23,7 @@ public class DoStatement extends CompilerElement implements Statement {
 
     private final SubroutineCall action;
 
-    public DoStatement(Integer lineNumber, Integer columnNumber, SubroutineCall action) {
+    public DoStatement(int lineNumber, int columnNumber, SubroutineCall action) {
         super(lineNumber, columnNumber);
         this.action = action;
     }
@@ -31,4 +31,9 @@ public class DoStatement extends CompilerElement implements Statement {
     public SubroutineCall getAction() {
         return action;
     }
+
+    @Override
+    public <E extends Exception> void accept(StatementVisitor<E> visitor) throws E {
+        visitor.visit(this);
+    }
 }
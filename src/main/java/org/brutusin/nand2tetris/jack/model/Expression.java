@@ -15,19 +15,25 @@
  */
 package org.brutusin.nand2tetris.jack.model;
 
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
+ * Sequence of terms joined by binary operators: operator <code>i</code> is
+ * applied between the terms <code>i</code> and <code>i + 1</code>. Operators
+ * are kept as primitive <code>char</code>s.
  *
  * @author Ignacio del Valle Alles idelvall@brutusin.org
  */
 public class Expression extends Term {
 
-    private final List<Term> terms = new LinkedList<>();
-    private final List<Character> operators = new LinkedList<>();
+    private static final char[] NO_OPERATORS = {};
 
-    public Expression(Integer lineNumber, Integer columnNumber) {
+    private final NodeList<Term> terms = new NodeList<>();
+    private char[] operators = NO_OPERATORS;
+    private int operatorCount;
+
+    public Expression(int lineNumber, int columnNumber) {
         super(lineNumber, columnNumber);
     }
 
@@ -35,7 +41,33 @@ public class Expression extends Term {
         return terms;
     }
 
-    public List<Character> getOperators() {
-        return operators;
+    public int getOperatorCount() {
+        return operatorCount;
+    }
+
+    public char getOperator(int index) {
+        if (index < 0 || index >= operatorCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + operatorCount);
+        }
+        return operators[index];
+    }
+
+    public void addOperator(char operator) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount + (operatorCount >> 1) + 1);
+        }
+        operators[operatorCount++] = operator;
+    }
+
+    public void compact() {
+        terms.trimToSize();
+        if (operatorCount < operators.length) {
+            operators = operatorCount == 0 ? NO_OPERATORS : Arrays.copyOf(operators, operatorCount);
+        }
+    }
+
+    @Override
+    public <E extends Exception> void accept(TermVisitor<E> visitor) throws E {
+        visitor.visit(this);
     }
 }
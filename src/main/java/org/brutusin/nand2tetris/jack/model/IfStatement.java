@@ -15,7 +15,6 @@
  */
 package org.brutusin.nand2tetris.jack.model;
 
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -25,10 +24,10 @@ import java.util.List;
 public class IfStatement extends CompilerElement implements Statement {
 
     private final Expression condition;
-    private final List<Statement> ifStatements = new LinkedList<>();
-    private final List<Statement> elseStatements = new LinkedList<>();
+    private final NodeList<Statement> ifStatements = new NodeList<>();
+    private final NodeList<Statement> elseStatements = new NodeList<>();
 
-    public IfStatement(Integer lineNumber, Integer columnNumber, Expression condition) {
+    public IfStatement(int lineNumber, int columnNumber, Expression condition) {
         super(lineNumber, columnNumber);
         this.condition = condition;
     }
@@ -44,4 +43,14 @@ public class IfStatement extends CompilerElement implements Statement {
     public List<Statement> getElseStatements() {
         return elseStatements;
     }
+
+    public void compact() {
+        ifStatements.trimToSize();
+        elseStatements.trimToSize();
+    }
+
+    @Override
+    public <E extends Exception> void accept(StatementVisitor<E> visitor) throws E {
+        visitor.visit(this);
+    }
 }
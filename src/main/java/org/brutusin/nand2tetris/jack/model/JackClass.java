@@ -15,7 +15,6 @@
  */
 package org.brutusin.nand2tetris.jack.model;
 
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -24,11 +23,11 @@ import java.util.List;
  */
 public class JackClass extends CompilerElement{
 
-    private final List<Declaration> declarations = new LinkedList<>();
-    private final List<Subroutine> subroutines = new LinkedList<>();
+    private final NodeList<Declaration> declarations = new NodeList<>();
+    private final NodeList<Subroutine> subroutines = new NodeList<>();
     private final String name;
 
-    public JackClass(Integer lineNumber, Integer columnNumber, String name) {
+    public JackClass(int lineNumber, int columnNumber, String name) {
         super(lineNumber, columnNumber);
         this.name = name;
     }
@@ -44,4 +43,9 @@ public class JackClass extends CompilerElement{
     public String getName() {
         return name;
     }
+
+    public void compact() {
+        declarations.trimToSize();
+        subroutines.trimToSize();
+    }
 }
@@ -24,7 +24,7 @@ public class LetStatement extends CompilerElement implements Statement {
     private final Term.Reference target;
     private final Expression expression;
 
-    public LetStatement(Integer lineNumber, Integer columnNumber, Term.Reference target, Expression expression) {
+    public LetStatement(int lineNumber, int columnNumber, Term.Reference target, Expression expression) {
         super(lineNumber, columnNumber);
         this.target = target;
         this.expression = expression;
@@ -37,4 +37,9 @@ public class LetStatement extends CompilerElement implements Statement {
     public Term.Reference getTarget() {
         return target;
     }
+
+    @Override
+    public <E extends Exception> void accept(StatementVisitor<E> visitor) throws E {
+        visitor.visit(this);
+    }
 }
@@ -23,7 +23,7 @@ public class ReturnStatement extends CompilerElement implements Statement {
 
     private final Expression expression;
 
-    public ReturnStatement(Integer lineNumber, Integer columnNumber, Expression expression) {
+    public ReturnStatement(int lineNumber, int columnNumber, Expression expression) {
         super(lineNumber, columnNumber);
         this.expression = expression;
     }
@@ -31,4 +31,9 @@ public class ReturnStatement extends CompilerElement implements Statement {
     public Expression getExpression() {
         return expression;
     }
+
+    @Override
+    public <E extends Exception> void accept(StatementVisitor<E> visitor) throws E {
+        visitor.visit(this);
+    }
 }
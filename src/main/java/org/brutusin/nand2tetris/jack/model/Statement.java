@@ -20,5 +20,6 @@ package org.brutusin.nand2tetris.jack.model;
  * @author Ignacio del Valle Alles idelvall@brutusin.org
  */
 public interface Statement {
-    
+
+    <E extends Exception> void accept(StatementVisitor<E> visitor) throws E;
 }
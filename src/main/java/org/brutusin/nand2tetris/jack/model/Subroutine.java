@@ -15,7 +15,6 @@
  */
 package org.brutusin.nand2tetris.jack.model;
 
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -28,13 +27,13 @@ public class Subroutine extends CompilerElement{
 
         constructor, method, function
     }
-    private final List<Declaration> declarations = new LinkedList<>();
-    private final List<Statement> statements = new LinkedList<>();
+    private final NodeList<Declaration> declarations = new NodeList<>();
+    private final NodeList<Statement> statements = new NodeList<>();
     private final Type type;
     private final String returnType;
     private final String name;
 
-    public Subroutine(Integer lineNumber, Integer columnNumber, Type type, String returnType, String name) {
+    public Subroutine(int lineNumber, int columnNumber, Type type, String returnType, String name) {
         super(lineNumber, columnNumber);
         this.type = type;
         this.returnType = returnType;
@@ -60,4 +59,9 @@ public class Subroutine extends CompilerElement{
     public String getName() {
         return name;
     }
+
+    public void compact() {
+        declarations.trimToSize();
+        statements.trimToSize();
+    }
 }
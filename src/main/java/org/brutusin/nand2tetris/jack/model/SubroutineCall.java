@@ -15,7 +15,6 @@
  */
 package org.brutusin.nand2tetris.jack.model;
 
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -26,9 +25,9 @@ public class SubroutineCall extends Term {
 
     private final String target;
     private final String name;
-    private final List<Expression> arguments = new LinkedList<>();
+    private final NodeList<Expression> arguments = new NodeList<>();
 
-    public SubroutineCall(Integer lineNumber, Integer columnNumber, String target, String name) {
+    public SubroutineCall(int lineNumber, int columnNumber, String target, String name) {
         super(lineNumber, columnNumber);
         this.target = target;
         this.name = name;
@@ -45,4 +44,13 @@ public class SubroutineCall extends Term {
     public List<Expression> getArguments() {
         return arguments;
     }
+
+    public void compact() {
+        arguments.trimToSize();
+    }
+
+    @Override
+    public <E extends Exception> void accept(TermVisitor<E> visitor) throws E {
+        visitor.visit(this);
+    }
 }
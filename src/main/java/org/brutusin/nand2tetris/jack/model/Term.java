@@ -21,10 +21,12 @@ package org.brutusin.nand2tetris.jack.model;
  */
 public abstract class Term extends CompilerElement {
 
-    public Term(Integer lineNumber, Integer columnNumber) {
+    public Term(int lineNumber, int columnNumber) {
         super(lineNumber, columnNumber);
     }
 
+    public abstract <E extends Exception> void accept(TermVisitor<E> visitor) throws E;
+
     public static class Constant extends Term {
 
         public enum Type {
@@ -35,7 +37,7 @@ public abstract class Term extends CompilerElement {
         private final String value;
         private final Type type;
 
-        public Constant(Integer lineNumber, Integer columnNumber, String value, Type type) {
+        public Constant(int lineNumber, int columnNumber, String value, Type type) {
             super(lineNumber, columnNumber);
             this.value = value;
             this.type = type;
@@ -47,14 +49,19 @@ public abstract class Term extends CompilerElement {
 
         public Type getType() {
             return type;
-        }        
+        }
+
+        @Override
+        public <E extends Exception> void accept(TermVisitor<E> visitor) throws E {
+            visitor.visit(this);
+        }
     }
 
     public static class Reference extends Term {
 
         private final String varName;
 
-        public Reference(Integer lineNumber, Integer columnNumber, String varName) {
+        public Reference(int lineNumber, int columnNumber, String varName) {
             super(lineNumber, columnNumber);
             this.varName = varName;
         }
@@ -62,14 +69,19 @@ public abstract class Term extends CompilerElement {
         public String getVarName() {
             return varName;
         }
+
+        @Override
+        public <E extends Exception> void accept(TermVisitor<E> visitor) throws E {
+            visitor.visit(this);
+        }
     }
 
     public static class UnaryTerm extends Term {
 
-        private final Character operator;
+        private final char operator;
         private final Term term;
 
-        public UnaryTerm(Integer lineNumber, Integer columnNumber, Character operator, Term term) {
+        public UnaryTerm(int lineNumber, int columnNumber, char operator, Term term) {
             super(lineNumber, columnNumber);
             this.operator = operator;
             this.term = term;
@@ -79,16 +91,21 @@ public abstract class Term extends CompilerElement {
             return term;
         }
 
-        public Character getOperator() {
+        public char getOperator() {
             return operator;
         }
+
+        @Override
+        public <E extends Exception> void accept(TermVisitor<E> visitor) throws E {
+            visitor.visit(this);
+        }
     }
 
     public static class ArrayReference extends Reference {
 
         private final Expression index;
 
-        public ArrayReference(Integer lineNumber, Integer columnNumber, String varName, Expression index) {
+        public ArrayReference(int lineNumber, int columnNumber, String varName, Expression index) {
             super(lineNumber, columnNumber, varName);
             this.index = index;
         }
@@ -96,5 +113,10 @@ public abstract class Term extends CompilerElement {
         public Expression getIndex() {
             return index;
         }
+
+        @Override
+        public <E extends Exception> void accept(TermVisitor<E> visitor) throws E {
+            visitor.visit(this);
+        }
     }
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack.model;
+
+/**
+ * Visitor of the term types (expressions included), see {@link Term#accept}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ * @param <E> exception thrown by the visitor
+ */
+public interface TermVisitor<E extends Exception> {
+
+    void visit(Term.Constant constant) throws E;
+
+    void visit(Term.Reference reference) throws E;
+
+    void visit(Term.ArrayReference reference) throws E;
+
+    void visit(Term.UnaryTerm term) throws E;
+
+    void visit(Expression expression) throws E;
+
+    void visit(SubroutineCall call) throws E;
+}
@@ -15,7 +15,6 @@
  */
 package org.brutusin.nand2tetris.jack.model;
 
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -25,9 +24,9 @@ import java.util.List;
 public class WhileStatement extends CompilerElement implements Statement {
 
     private final Expression condition;
-    private final List<Statement> statements = new LinkedList<>();
+    private final NodeList<Statement> statements = new NodeList<>();
 
-    public WhileStatement(Integer lineNumber, Integer columnNumber, Expression condition) {
+    public WhileStatement(int lineNumber, int columnNumber, Expression condition) {
         super(lineNumber, columnNumber);
         this.condition = condition;
     }
@@ -39,4 +38,13 @@ public class WhileStatement extends CompilerElement implements Statement {
     public List<Statement> getStatements() {
         return statements;
     }
+
+    public void compact() {
+        statements.trimToSize();
+    }
+
+    @Override
+    public <E extends Exception> void accept(StatementVisitor<E> visitor) throws E {
+        visitor.visit(this);
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.brutusin.nand2tetris.jack.model.DoStatement;
+import org.brutusin.nand2tetris.jack.model.Expression;
+import org.brutusin.nand2tetris.jack.model.IfStatement;
+import org.brutusin.nand2tetris.jack.model.JackClass;
+import org.brutusin.nand2tetris.jack.model.LetStatement;
+import org.brutusin.nand2tetris.jack.model.ReturnStatement;
+import org.brutusin.nand2tetris.jack.model.Statement;
+import org.brutusin.nand2tetris.jack.model.StatementVisitor;
+import org.brutusin.nand2tetris.jack.model.Subroutine;
+import org.brutusin.nand2tetris.jack.model.SubroutineCall;
+import org.brutusin.nand2tetris.jack.model.Term;
+import org.brutusin.nand2tetris.jack.model.TermVisitor;
+import org.brutusin.nand2tetris.jack.model.WhileStatement;
+
+/**
+ * Memory footprint of the AST: parses copies of a synthetic class (see
+ * {@link Samples#synthesize(String, int)}) and reports the heap they retain
+ * after a full collection, and the bytes allocated while parsing them, per
+ * AST node (classes, declarations, subroutines, statements and terms). The
+ * retained heap includes the identifier strings the nodes refer to.
+ * <p>
+ * Run with a fixed heap and a single-threaded collector, so that the heap
+ * usage is stable after collection:
+ * <code>java -Xms2g -Xmx2g -XX:+UseSerialGC -cp target/classes:target/test-classes org.brutusin.nand2tetris.jack.AstMemoryBenchmark [methods] [copies]</code>.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class AstMemoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int methods = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int copies = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        String source = Samples.synthesize("Big", methods);
+        long nodes = countNodes(parse(source));
+        JackClass[] retained = new JackClass[copies];
+        long used = getUsedHeap();
+        long allocated = getAllocatedBytes();
+        for (int i = 0; i < copies; i++) {
+            retained[i] = parse(source);
+        }
+        allocated = getAllocatedBytes() - allocated;
+        used = getUsedHeap() - used;
+        System.out.println(String.format("Class of %d methods, %.1f MB of source, %d nodes, %d copies", methods, source.length() / 1e6, nodes, copies));
+        System.out.println(String.format("Retained:  %6.1f bytes/node", used / (double) (nodes * copies)));
+        System.out.println(String.format("Allocated: %6.1f bytes/node", allocated / (double) (nodes * copies)));
+        if (retained[copies - 1] == null) {
+            System.out.println();
+        }
+    }
+
+    private static JackClass parse(String source) throws CompilerException {
+        List<CompilerException> errors = new ArrayList<>();
+        JackClass ret = new ClassParser(new Tokenizer(source, errors), errors).getParsedClass();
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        return ret;
+    }
+
+    private static long getUsedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long ret = -1;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(50);
+            long used = runtime.totalMemory() - runtime.freeMemory();
+            if (used == ret) {
+                break;
+            }
+            ret = used;
+        }
+        return ret;
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long countNodes(JackClass clazz) {
+        NodeCounter counter = new NodeCounter();
+        counter.count += 1 + clazz.getDeclarations().size();
+        for (Subroutine subroutine : clazz.getSubroutines()) {
+            counter.count += 1 + subroutine.getDeclarations().size();
+            counter.visit(subroutine.getStatements());
+        }
+        return counter.count;
+    }
+
+    private static class NodeCounter implements StatementVisitor<RuntimeException>, TermVisitor<RuntimeException> {
+
+        private long count;
+
+        private void visit(List<Statement> statements) {
+            for (Statement statement : statements) {
+                count++;
+                statement.accept(this);
+            }
+        }
+
+        private void visitTerm(Term term) {
+            if (term != null) {
+                count++;
+                term.accept(this);
+            }
+        }
+
+        @Override
+        public void visit(LetStatement statement) {
+            visitTerm(statement.getTarget());
+            visitTerm(statement.getExpression());
+        }
+
+        @Override
+        public void visit(IfStatement statement) {
+            visitTerm(statement.getCondition());
+            visit(statement.getIfStatements());
+            visit(statement.getElseStatements());
+        }
+
+        @Override
+        public void visit(WhileStatement statement) {
+            visitTerm(statement.getCondition());
+            visit(statement.getStatements());
+        }
+
+        @Override
+        public void visit(DoStatement statement) {
+            visitTerm(statement.getAction());
+        }
+
+        @Override
+        public void visit(ReturnStatement statement) {
+            visitTerm(statement.getExpression());
+        }
+
+        @Override
+        public void visit(Term.Constant constant) {
+        }
+
+        @Override
+        public void visit(Term.Reference reference) {
+        }
+
+        @Override
+        public void visit(Term.ArrayReference reference) {
+            visitTerm(reference.getIndex());
+        }
+
+        @Override
+        public void visit(Term.UnaryTerm term) {
+            visitTerm(term.getTerm());
+        }
+
+        @Override
+        public void visit(Expression expression) {
+            for (Term term : expression.getTerms()) {
+                visitTerm(term);
+            }
+        }
+
+        @Override
+        public void visit(SubroutineCall call) {
+            for (Expression argument : call.getArguments()) {
+                visitTerm(argument);
+            }
+        }
+    }
+}
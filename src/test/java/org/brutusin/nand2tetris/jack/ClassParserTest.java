@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.brutusin.nand2tetris.jack.model.JackClass;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Error recovery of {@link ClassParser}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class ClassParserTest {
+
+    /**
+     * Each error of the source is reported once, at its position, and the
+     * parser resynchronizes after it: the following statements and
+     * subroutines are parsed.
+     */
+    @Test
+    public void testRecovery() throws Exception {
+        String source = "class Main {\n"
+                + "    field int x y;\n"
+                + "    static boolean flag;\n"
+                + "\n"
+                + "    function void main() {\n"
+                + "        var int i;\n"
+                + "        let i = 1 +;\n"
+                + "        let x = 2;\n"
+                + "        do Output.printInt(i;\n"
+                + "        if (i > ) {\n"
+                + "            let i = 0;\n"
+                + "        }\n"
+                + "        while (i < 10) {\n"
+                + "            let i = i + 1\n"
+                + "        }\n"
+                + "        return;\n"
+                + "    }\n"
+                + "\n"
+                + "    method int get() {\n"
+                + "        return x $ 2;\n"
+                + "    }\n"
+                + "}\n";
+        List<CompilerException> errors = new ArrayList<>();
+        JackClass clazz = new ClassParser(new Tokenizer(source, errors), errors).getParsedClass();
+        List<String> diagnostics = new ArrayList<>();
+        for (CompilerException ce : errors) {
+            diagnostics.add(ce.getLineNumber() + ":" + ce.getColNumber() + " " + ce.getMessage());
+        }
+        assertEquals("[2:17 Expected token , but found 'y', "
+                + "7:19 Expression expected after '+', "
+                + "9:28 Expected token ) but found ';', "
+                + "10:15 Expression expected after '>', "
+                + "15:9 Expected token ; but found '}', "
+                + "20:18 Expected token ; but found '$']", diagnostics.toString());
+        assertEquals(2, clazz.getSubroutines().size());
+        assertEquals("get", clazz.getSubroutines().get(1).getName());
+        assertEquals(1, clazz.getDeclarations().size()); // flag
+        assertEquals(3, clazz.getSubroutines().get(0).getStatements().size()); // let x, while and return
+    }
+}
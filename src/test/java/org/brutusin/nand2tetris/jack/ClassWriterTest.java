@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the parallel code generation of {@link ClassWriter}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class ClassWriterTest {
+
+    /**
+     * The subroutines generated in parallel give the same code, and register
+     * the same profiler counters, as generated sequentially, at every level.
+     */
+    @Test
+    public void testParallel() throws Exception {
+        List<String> programs = new ArrayList<>();
+        Collections.addAll(programs, Samples.PROGRAMS);
+        for (String program : Samples.getPrograms(OptimizationTest.DIRECTORY)) {
+            programs.add(OptimizationTest.DIRECTORY + "/" + program);
+        }
+        for (String program : programs) {
+            assertParallel(program, Samples.getSources(program));
+        }
+        assertParallel("Big", Collections.singletonMap("Big", Samples.synthesize("Big", 2 * ClassWriter.PARALLEL_THRESHOLD)));
+    }
+
+    private static void assertParallel(String program, Map<String, String> sources) {
+        SignatureIndex index = Samples.index(sources);
+        for (int level = 0; level <= OptimizationTest.MAX_LEVEL; level++) {
+            for (boolean profile : new boolean[]{false, true}) {
+                Profiler sequentialProfiler = profile ? new Profiler(true) : null;
+                Profiler parallelProfiler = profile ? new Profiler(true) : null;
+                CompilationResult sequential = compile(sources, sequentialProfiler, index, level, Integer.MAX_VALUE);
+                CompilationResult parallel = compile(sources, parallelProfiler, index, level, 1);
+                String description = program + " at level " + level + (profile ? ", profiled" : "");
+                assertTrue(description + ": " + sequential.getDiagnostics(), sequential.isSuccessful());
+                assertEquals(description, sequential.getOutputs(), parallel.getOutputs());
+                assertEquals(description, sequential.getDiagnostics().toString(), parallel.getDiagnostics().toString());
+                if (profile) {
+                    assertEquals(description, sequentialProfiler.toJack(), parallelProfiler.toJack());
+                }
+            }
+        }
+    }
+
+    private static CompilationResult compile(Map<String, String> sources, Profiler profiler, SignatureIndex index, int level, int parallelThreshold) {
+        CompilationContext context = OptimizationTest.configuration(level);
+        context.setParallelThreshold(parallelThreshold);
+        return context.compile(sources, profiler, index);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.brutusin.nand2tetris.jack.model.JackClass;
+
+/**
+ * Throughput of the code generation ({@link ClassWriter}) alone, at each
+ * optimization level, on a synthetic class parsed once (see
+ * {@link Samples#synthesize(String, int)}). Reports the best time of the
+ * rounds and the VM code generated per second.
+ * <p>
+ * Run with a fixed heap, as its resizing dominates the variance of the
+ * results:
+ * <code>java -Xms1g -Xmx1g -XX:+UseSerialGC -cp target/classes:target/test-classes org.brutusin.nand2tetris.jack.CodegenBenchmark [methods] [rounds]</code>.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class CodegenBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int methods = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        String source = Samples.synthesize("Big", methods);
+        List<CompilerException> errors = new ArrayList<>();
+        JackClass clazz = new ClassParser(new Tokenizer(source, errors), errors).getParsedClass();
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        SignatureIndex index = Samples.index(Collections.singletonMap("Big", source));
+        System.out.println(String.format("Class of %d methods, %.1f MB of source", methods, source.length() / 1e6));
+        for (int level = 0; level <= OptimizationTest.MAX_LEVEL; level++) {
+            CompilationContext configuration = OptimizationTest.configuration(level);
+            long best = Long.MAX_VALUE;
+            int length = 0;
+            for (int r = 0; r < rounds; r++) {
+                long start = System.nanoTime();
+                ClassWriter cw = new ClassWriter(clazz, null, errors, index, configuration);
+                long time = System.nanoTime() - start;
+                if (!errors.isEmpty()) {
+                    throw errors.get(0);
+                }
+                length = cw.getCode().length();
+                best = Math.min(best, time);
+            }
+            System.out.println(String.format("Level %d: %7.1f ms %7.1f MB/s of VM code (%.1f MB)", level, best / 1e6, length / (best / 1e3), length / 1e6));
+        }
+    }
+}
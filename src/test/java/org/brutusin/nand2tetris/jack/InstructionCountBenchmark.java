@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.Map;
+
+/**
+ * Reports the VM instructions generated at each optimization level: the
+ * instructions of the code (labels excluded) of the sample programs and of
+ * the programs of {@link OptimizationTest}, and the instructions the latter
+ * execute in {@link VmInterpreter}. The sample programs need the screen and
+ * keyboard and are not run.
+ * <p>
+ * Run with
+ * <code>java -cp target/classes:target/test-classes org.brutusin.nand2tetris.jack.InstructionCountBenchmark</code>.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class InstructionCountBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        StringBuilder header = new StringBuilder(String.format("%-22s %-8s", "program", "count"));
+        for (int level = 0; level <= OptimizationTest.MAX_LEVEL; level++) {
+            header.append(String.format(" %8s", "O" + level));
+        }
+        System.out.println(header);
+        for (String program : Samples.PROGRAMS) {
+            print(program, "code", countInstructions(program, Samples.getSources(program)));
+        }
+        for (String program : Samples.getPrograms(OptimizationTest.DIRECTORY)) {
+            print(OptimizationTest.DIRECTORY + "/" + program, "code", countInstructions(program, Samples.getSources(OptimizationTest.DIRECTORY + "/" + program)));
+            VmInterpreter[] interpreters = OptimizationTest.run(program);
+            long[] executed = new long[interpreters.length];
+            for (int level = 0; level < interpreters.length; level++) {
+                executed[level] = interpreters[level].getExecuted();
+            }
+            print("", "executed", executed);
+        }
+    }
+
+    private static long[] countInstructions(String program, Map<String, String> sources) {
+        long[] ret = new long[OptimizationTest.MAX_LEVEL + 1];
+        for (int level = 0; level < ret.length; level++) {
+            ret[level] = countInstructions(OptimizationTest.compile(program, sources, level));
+        }
+        return ret;
+    }
+
+    private static void print(String program, String count, long[] values) {
+        StringBuilder sb = new StringBuilder(String.format("%-22s %-8s", program, count));
+        for (long value : values) {
+            sb.append(String.format(" %8d", value));
+        }
+        System.out.println(sb);
+    }
+
+    /**
+     * @return the number of VM instructions of the code, labels excluded
+     */
+    static int countInstructions(Map<String, String> vmCode) {
+        int ret = 0;
+        for (String code : vmCode.values()) {
+            for (String line : code.split("\n")) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("//") && !line.startsWith("label ")) {
+                    ret++;
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the compilation modes of {@link JackCompiler}: their output is the
+ * one of the in-memory compilation of the same sources.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class JackCompilerTest {
+
+    private static final long WATCH_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Without an index, calls are validated and optimized against the
+     * signatures of the sources.
+     */
+    @Test
+    public void testInMemory() throws Exception {
+        for (String program : Samples.PROGRAMS) {
+            Map<String, String> sources = Samples.getSources(program);
+            CompilationResult result = JackCompiler.compile(sources);
+            assertEquals(program, OptimizationTest.compile(program, sources, ClassWriter.DEFAULT_OPTIMIZATION_LEVEL), result.getOutputs());
+        }
+        CompilationResult result = JackCompiler.compile(Collections.singletonMap("Main", "class Main {\n    function void main() {\n        do Game.run(1);\n        do Output.printInt();\n        return;\n    }\n}\n"));
+        assertEquals("[Main, line 3, column 17: Class not found 'Game', Main, line 4, column 19: Subroutine 'Output.printInt' expects 1 arguments but 0 were given]", result.getDiagnostics().toString());
+    }
+
+    /**
+     * Classes are validated against the classes received before them, and
+     * compiled at the configured level.
+     */
+    @Test
+    public void testStdio() throws Exception {
+        Map<String, String> sources = Samples.getSources("Square");
+        for (int level = 0; level <= OptimizationTest.MAX_LEVEL; level++) {
+            Map<String, String> expected = OptimizationTest.compile("Square", sources, level);
+            StringBuilder input = new StringBuilder();
+            for (String className : new String[]{"Main", "Square", "SquareGame", "Main"}) {
+                String source = sources.get(className);
+                input.append("class ").append(className).append(" ").append(source.getBytes("UTF-8").length).append("\n").append(source);
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            JackCompiler.stdio(new ByteArrayInputStream(input.toString().getBytes("UTF-8")), baos, OptimizationTest.configuration(level));
+            String output = "";
+            for (String position : new String[]{"14 29", "15 15", "16 15"}) { // SquareGame.new(), game.run(), game.dispose()
+                output += "error " + position + " 28\nClass not found 'SquareGame'";
+            }
+            output += "end Main failed\n";
+            for (String className : new String[]{"Square", "SquareGame", "Main"}) {
+                String vmCode = expected.get(className);
+                output += "vm " + vmCode.getBytes("UTF-8").length + "\n" + vmCode + "end " + className + " ok\n";
+            }
+            assertEquals("Level " + level, output, new String(baos.toByteArray(), "UTF-8"));
+        }
+    }
+
+    /**
+     * The token and parse tree documents streamed by <code>--xml</code> are
+     * the ones of the nand2tetris project 10 resources, line by line. The
+     * resources end lines with "\r\n", and some do not end the last one.
+     */
+    @Test
+    public void testXml() throws Exception {
+        for (String program : Samples.PROGRAMS) {
+            File dir = Files.createTempDirectory("xml").toFile();
+            try {
+                for (Map.Entry<String, String> source : Samples.getSources(program).entrySet()) {
+                    File file = new File(dir, source.getKey() + ".jack");
+                    Files.write(file.toPath(), source.getValue().getBytes("UTF-8"));
+                    assertTrue(program + "/" + file.getName(), JackCompiler.writeXml(file));
+                    for (String document : new String[]{source.getKey() + "T.xml", source.getKey() + ".xml"}) {
+                        String expected = Samples.read("/" + program + "/" + document);
+                        String actual = new String(Files.readAllBytes(new File(dir, document).toPath()), "UTF-8");
+                        assertEquals(program + "/" + document, Arrays.asList(expected.split("\r\n")), Arrays.asList(actual.split("\n")));
+                    }
+                }
+            } finally {
+                delete(dir);
+            }
+        }
+    }
+
+    /**
+     * The <code>.vm</code> entries of a compiled archive are the files of the
+     * compilation of each of its directories, at every level.
+     */
+    @Test
+    public void testArchive() throws Exception {
+        File dir = Files.createTempDirectory("archive").toFile();
+        try {
+            File zip = new File(dir, "programs.zip");
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip))) {
+                zos.putNextEntry(new ZipEntry("README"));
+                zos.write("not compiled".getBytes("UTF-8"));
+                for (String program : Samples.PROGRAMS) {
+                    zos.putNextEntry(new ZipEntry(program + "/"));
+                    File programDir = new File(dir, program);
+                    programDir.mkdir();
+                    for (Map.Entry<String, String> source : Samples.getSources(program).entrySet()) {
+                        byte[] bytes = source.getValue().getBytes("UTF-8");
+                        zos.putNextEntry(new ZipEntry(program + "/" + source.getKey() + ".jack"));
+                        zos.write(bytes);
+                        Files.write(new File(programDir, source.getKey() + ".jack").toPath(), bytes);
+                    }
+                }
+            }
+            File out = new File(dir, "programs-vm.zip");
+            for (int level = 0; level <= OptimizationTest.MAX_LEVEL; level++) {
+                JackCompiler.main(new String[]{"--opt-level", String.valueOf(level), "--out", out.getPath(), zip.getPath()});
+                Map<String, String> expected = new TreeMap<>();
+                for (String program : Samples.PROGRAMS) {
+                    File programDir = new File(dir, program);
+                    JackCompiler.main(new String[]{"--opt-level", String.valueOf(level), programDir.getPath()});
+                    for (File file : programDir.listFiles()) {
+                        if (file.getName().endsWith(".vm")) {
+                            expected.put(program + "/" + file.getName(), new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+                        }
+                    }
+                }
+                assertEquals("Level " + level, expected, readEntries(out));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Directories are compiled in a pipeline of stages, with more classes than
+     * fit in its queues.
+     */
+    @Test
+    public void testPipeline() throws Exception {
+        Map<String, Map<String, String>> programs = new TreeMap<>();
+        for (String program : Samples.PROGRAMS) {
+            programs.put(program, Samples.getSources(program));
+        }
+        for (String program : Samples.getPrograms(OptimizationTest.DIRECTORY)) {
+            programs.put(program, Samples.getSources(OptimizationTest.DIRECTORY + "/" + program));
+        }
+        Map<String, String> classes = new TreeMap<>();
+        for (int i = 0; i < 150; i++) {
+            classes.put("Big" + i, Samples.synthesize("Big" + i, 5));
+        }
+        programs.put("Classes", classes);
+        File dir = Files.createTempDirectory("pipeline").toFile();
+        try {
+            for (Map.Entry<String, Map<String, String>> program : programs.entrySet()) {
+                File programDir = new File(dir, program.getKey());
+                writeSources(programDir, program.getValue());
+                for (int level = 0; level <= OptimizationTest.MAX_LEVEL; level++) {
+                    JackCompiler.main(new String[]{"--opt-level", String.valueOf(level), programDir.getPath()});
+                    assertEquals(program.getKey() + " at level " + level, OptimizationTest.compile(program.getKey(), program.getValue(), level), readOutputs(programDir));
+                }
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Sources larger than 1 MB are compiled in streaming mode, alone or in a
+     * directory.
+     */
+    @Test
+    public void testStreaming() throws Exception {
+        Map<String, String> sources = Collections.singletonMap("Big", Samples.synthesize("Big", 4000));
+        assertTrue(sources.get("Big").length() > 1 << 20);
+        File dir = Files.createTempDirectory("streaming").toFile();
+        try {
+            writeSources(dir, sources);
+            for (int level = 0; level <= OptimizationTest.MAX_LEVEL; level++) {
+                Map<String, String> expected = OptimizationTest.compile("Big", sources, level);
+                JackCompiler.main(new String[]{"--opt-level", String.valueOf(level), new File(dir, "Big.jack").getPath()});
+                assertEquals("File at level " + level, expected, readOutputs(dir));
+                JackCompiler.main(new String[]{"--opt-level", String.valueOf(level), dir.getPath()});
+                assertEquals("Directory at level " + level, expected, readOutputs(dir));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Changed classes are recompiled, and so are the classes that generated
+     * inline the accessors of a class whose accessors changed.
+     */
+    @Test
+    public void testWatch() throws Exception {
+        Map<String, String> sources = new TreeMap<>();
+        sources.put("Main", "class Main {\n    function void main() {\n        var Point p;\n        let p = Point.new(1, 2);\n        do Output.printInt(p.get());\n        return;\n    }\n}\n");
+        sources.put("Point", "class Point {\n    field int x, y;\n    constructor Point new(int ax, int ay) {\n        let x = ax;\n        let y = ay;\n        return this;\n    }\n    method int get() {\n        return x;\n    }\n}\n");
+        final File dir = Files.createTempDirectory("watch").toFile();
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JackCompiler.main(new String[]{"--watch", dir.getPath()});
+                } catch (InterruptedException ie) {
+                    // stopped
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        try {
+            writeSources(dir, sources);
+            watcher.setDaemon(true);
+            watcher.start();
+            Map<String, String> expected = OptimizationTest.compile("Watch", sources, ClassWriter.DEFAULT_OPTIMIZATION_LEVEL);
+            awaitOutputs(dir, expected, null, null);
+            sources.put("Main", sources.get("Main").replace("p.get()", "p.get() + 1"));
+            expected = OptimizationTest.compile("Watch", sources, ClassWriter.DEFAULT_OPTIMIZATION_LEVEL);
+            awaitOutputs(dir, expected, "Main", sources.get("Main"));
+            sources.put("Point", sources.get("Point").replace("return x;", "return y;"));
+            Map<String, String> previous = expected;
+            expected = OptimizationTest.compile("Watch", sources, ClassWriter.DEFAULT_OPTIMIZATION_LEVEL);
+            assertFalse(previous.get("Main").equals(expected.get("Main")));
+            awaitOutputs(dir, expected, "Point", sources.get("Point"));
+        } finally {
+            watcher.interrupt();
+            watcher.join(WATCH_TIMEOUT_MILLIS);
+            delete(dir);
+        }
+    }
+
+    /**
+     * Waits for the VM files of the directory to be the expected ones,
+     * rewriting the source of the class meanwhile, if any, as the watch may not
+     * have started yet.
+     */
+    private static void awaitOutputs(File dir, Map<String, String> expected, String className, String source) throws Exception {
+        long deadline = System.currentTimeMillis() + WATCH_TIMEOUT_MILLIS;
+        Map<String, String> outputs;
+        while (!(outputs = readOutputs(dir, false)).equals(expected)) {
+            if (System.currentTimeMillis() > deadline) {
+                assertEquals(expected, outputs);
+            }
+            if (className != null) {
+                Files.write(new File(dir, className + ".jack").toPath(), source.getBytes("UTF-8"));
+            }
+            Thread.sleep(500);
+        }
+    }
+
+    private static void writeSources(File dir, Map<String, String> sources) throws Exception {
+        dir.mkdirs();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            Files.write(new File(dir, source.getKey() + ".jack").toPath(), source.getValue().getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * @return the VM code of the directory by class name, removing the files
+     */
+    private static Map<String, String> readOutputs(File dir) throws Exception {
+        return readOutputs(dir, true);
+    }
+
+    private static Map<String, String> readOutputs(File dir, boolean remove) throws Exception {
+        Map<String, String> ret = new TreeMap<>();
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".vm")) {
+                ret.put(file.getName().substring(0, file.getName().length() - 3), new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+                if (remove) {
+                    file.delete();
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static Map<String, String> readEntries(File zip) throws Exception {
+        Map<String, String> ret = new TreeMap<>();
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = is.read(buffer)) != -1) {
+                        baos.write(buffer, 0, read);
+                    }
+                    ret.put(entry.getName(), new String(baos.toByteArray(), "UTF-8"));
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
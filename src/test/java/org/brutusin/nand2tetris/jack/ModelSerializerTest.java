@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.brutusin.nand2tetris.jack.model.JackClass;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Round trip of the classes of the sample programs through
+ * {@link ModelSerializer}.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class ModelSerializerTest {
+
+    /**
+     * Classes read back generate the same VM code as the parsed ones, at
+     * every optimization level.
+     */
+    @Test
+    public void testRoundTripCode() throws Exception {
+        for (String program : Samples.PROGRAMS) {
+            Map<String, String> sources = Samples.getSources(program);
+            SignatureIndex index = Samples.index(sources);
+            for (Map.Entry<String, String> source : sources.entrySet()) {
+                JackClass parsed = new ClassParser(new Tokenizer(source.getValue())).getParsedClass();
+                JackClass read = ModelSerializer.read(ModelSerializer.toByteArray(parsed));
+                assertEquals(parsed.getName(), read.getName());
+                for (int level = 0; level <= OptimizationTest.MAX_LEVEL; level++) {
+                    String name = program + "/" + source.getKey() + " at level " + level;
+                    assertEquals(name, generate(parsed, index, level), generate(read, index, level));
+                }
+            }
+        }
+    }
+
+    /**
+     * Classes read back serialize to the same bytes, positions included.
+     */
+    @Test
+    public void testRoundTripBytes() throws Exception {
+        for (String program : Samples.PROGRAMS) {
+            for (Map.Entry<String, String> source : Samples.getSources(program).entrySet()) {
+                byte[] bytes = ModelSerializer.toByteArray(new ClassParser(new Tokenizer(source.getValue())).getParsedClass());
+                assertArrayEquals(program + "/" + source.getKey(), bytes, ModelSerializer.toByteArray(ModelSerializer.read(bytes)));
+            }
+        }
+    }
+
+    private static String generate(JackClass clazz, SignatureIndex index, int level) throws CompilerException {
+        List<CompilerException> errors = new ArrayList<>();
+        String code = new ClassWriter(clazz, null, errors, index, OptimizationTest.configuration(level)).getCode();
+        assertTrue(errors.toString(), errors.isEmpty());
+        return code;
+    }
+}
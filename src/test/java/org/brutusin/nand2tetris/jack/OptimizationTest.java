@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Differential test of the optimization levels: the programs of
+ * <code>src/test/resources/optimizations</code> print the same output when
+ * compiled at every level and run by {@link VmInterpreter}. Each program
+ * gathers the edge cases of one group of optimizations.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class OptimizationTest {
+
+    static final String DIRECTORY = "optimizations";
+    static final int MAX_LEVEL = 2;
+    private static final int MAX_STACK_DEPTH = 1 << 20;
+    private static final long MAX_INSTRUCTIONS = 50000000;
+
+    /**
+     * Conditions lowered to branches: comparisons, negations, and non-boolean
+     * values combined bitwise. The lowering saves the instructions that
+     * materialize and negate the boolean values.
+     */
+    @Test
+    public void testConditions() throws Exception {
+        VmInterpreter[] interpreters = run("Cond");
+        assertTrue(interpreters[0].getExecuted() + " -> " + interpreters[1].getExecuted() + " instructions", interpreters[1].getExecuted() < interpreters[0].getExecuted());
+    }
+
+    /**
+     * Loop-invariant code motion: invariants killed by calls, field and
+     * static writes, aliased stores, zero-trip loops, and reads carried from
+     * the previous iteration.
+     */
+    @Test
+    public void testLoopInvariants() throws Exception {
+        run("Licm");
+    }
+
+    /**
+     * Self-recursive tail calls, of functions and methods, with swapped and
+     * dead arguments. The deepest recursion runs in constant stack once
+     * optimized.
+     */
+    @Test
+    public void testTailCalls() throws Exception {
+        VmInterpreter[] interpreters = run("Rec");
+        assertTrue(interpreters[0].getMaxStackDepth() > 20000 * 5);
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            assertTrue("Stack depth at level " + level + ": " + interpreters[level].getMaxStackDepth(), interpreters[level].getMaxStackDepth() < 1000);
+        }
+    }
+
+    /**
+     * Frame slot sharing: values carried across loop iterations, reads before
+     * writes in loops and locals relying on their zero initialization after
+     * the slot of a dead one.
+     */
+    @Test
+    public void testLiveRanges() throws Exception {
+        run("Live");
+    }
+
+    /**
+     * Strength-reduced array traversals: steps that depend on a condition,
+     * early exits, and bases of locals, statics and fields reassigned in the
+     * loop, directly or by the subroutines it calls.
+     */
+    @Test
+    public void testArrayTraversals() throws Exception {
+        run("Arr");
+    }
+
+    /**
+     * Unrolling of constant-trip loops: counting down, mirrored conditions,
+     * zero trips, loops over the budget, and counters stepped or assigned
+     * under a condition, that are not unrolled.
+     */
+    @Test
+    public void testUnrolling() throws Exception {
+        run("Unroll");
+    }
+
+    /**
+     * Scalar replacement of objects: accessors and mutators inlined, and
+     * objects that escape by assignment, by argument or through an alias,
+     * that are kept.
+     */
+    @Test
+    public void testScalarReplacement() throws Exception {
+        run("Obj");
+    }
+
+    /**
+     * OS calls generated inline: 16-bit extremes, evaluation order of the
+     * arguments, and peeks and pokes aliasing array accesses.
+     */
+    @Test
+    public void testIntrinsics() throws Exception {
+        run("Intr");
+        run("Loops");
+    }
+
+    /**
+     * Runs the program at every optimization level.
+     *
+     * @return the interpreters, by level, after the runs
+     */
+    static VmInterpreter[] run(String program) throws Exception {
+        Map<String, String> sources = Samples.getSources(DIRECTORY + "/" + program);
+        VmInterpreter[] ret = new VmInterpreter[MAX_LEVEL + 1];
+        String expected = null;
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            ret[level] = new VmInterpreter(compile(program, sources, level), MAX_STACK_DEPTH);
+            String output = ret[level].run(MAX_INSTRUCTIONS);
+            if (expected == null) {
+                assertFalse(program + " printed nothing", output.isEmpty());
+                expected = output;
+            } else {
+                assertEquals(program + " at level " + level, expected, output);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the VM code of the program at the optimization level
+     */
+    static Map<String, String> compile(String program, Map<String, String> sources, int level) {
+        CompilationResult result = configuration(level).compile(sources, null, Samples.index(sources));
+        assertTrue(program + " at level " + level + ": " + result.getDiagnostics(), result.isSuccessful());
+        return result.getOutputs();
+    }
+
+    /**
+     * @return a context with the optimization level
+     */
+    static CompilationContext configuration(int level) {
+        CompilationContext ret = new CompilationContext();
+        ret.setOptimizationLevel(level);
+        return ret;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of {@link OutputWriter}: order of the writes of a file, and flush and
+ * close semantics.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class OutputWriterTest {
+
+    private static final int FILES = 200;
+    private static final int WRITES = 50;
+
+    /**
+     * The last write of each file queued before a flush is the content of the
+     * file when the flush returns, whatever the thread writing it.
+     */
+    @Test
+    public void testOrder() throws Exception {
+        for (boolean sync : new boolean[]{false, true}) {
+            File dir = Files.createTempDirectory("output").toFile();
+            try (OutputWriter output = new OutputWriter(4, sync)) {
+                for (int w = 0; w < WRITES; w++) {
+                    for (int i = 0; i < FILES; i++) {
+                        output.write(new File(dir, i + ".vm"), buffer(i + "." + w + "\n"), buffer(w % 2 == 0 ? "even\n" : ""));
+                    }
+                }
+                output.flush();
+                for (int i = 0; i < FILES; i++) {
+                    assertEquals(i + "." + (WRITES - 1) + "\n", read(new File(dir, i + ".vm")));
+                }
+            } finally {
+                delete(dir);
+            }
+        }
+    }
+
+    /**
+     * Closing flushes the queued files, and the writer can not be used
+     * afterwards. Closing again does nothing.
+     */
+    @Test
+    public void testClose() throws Exception {
+        File dir = Files.createTempDirectory("output").toFile();
+        try {
+            OutputWriter output = new OutputWriter(2, false);
+            for (int i = 0; i < FILES; i++) {
+                output.write(new File(dir, i + ".vm"), buffer("code " + i));
+            }
+            output.close();
+            for (int i = 0; i < FILES; i++) {
+                assertEquals("code " + i, read(new File(dir, i + ".vm")));
+            }
+            output.close();
+            try {
+                output.write(new File(dir, "late.vm"), buffer("late"));
+                fail();
+            } catch (IllegalStateException ex) {
+                assertFalse(new File(dir, "late.vm").exists());
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * A failed write is thrown by the next flush, once. The other files are
+     * written.
+     */
+    @Test
+    public void testError() throws Exception {
+        File dir = Files.createTempDirectory("output").toFile();
+        try (OutputWriter output = new OutputWriter(2, false)) {
+            output.write(new File(new File(dir, "missing"), "Main.vm"), buffer("lost"));
+            output.write(new File(dir, "Square.vm"), buffer("kept"));
+            try {
+                output.flush();
+                fail();
+            } catch (IOException ex) {
+                assertEquals("kept", read(new File(dir, "Square.vm")));
+            }
+            output.write(new File(dir, "Main.vm"), buffer("retried"));
+            output.flush();
+            assertEquals("retried", read(new File(dir, "Main.vm")));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static ByteBuffer buffer(String s) throws IOException {
+        return ByteBuffer.wrap(s.getBytes("UTF-8"));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    }
+
+    private static void delete(File dir) {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Runs instrumented programs in {@link VmInterpreter}: the counters are
+ * allocated on the heap, next to the objects of the program, and each counted
+ * event costs {@link Profiler#INSTRUCTIONS_PER_EVENT} instructions.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class ProfilerTest {
+
+    private static final int MAX_STACK_DEPTH = 1000;
+    private static final long MAX_INSTRUCTIONS = 1000000;
+
+    @Test
+    public void testCounters() throws Exception {
+        assertEquals("Main.main 1\nMain.fill 3\nMain.check 3\n", compile(source(3, true), new Profiler(false)).run(MAX_INSTRUCTIONS));
+        assertEquals("Main.main 1\nMain.main@loops 6\nMain.fill 3\nMain.fill@loops 192\nMain.check 3\nMain.check@loops 192\n", compile(source(3, true), new Profiler(true)).run(MAX_INSTRUCTIONS));
+    }
+
+    /**
+     * The objects allocated by the program after the counters do not overlap
+     * them.
+     */
+    @Test
+    public void testHeap() throws Exception {
+        assertEquals("Main.main 1\nMain.fill 200\nMain.check 200\n", compile(source(200, true), new Profiler(false)).run(MAX_INSTRUCTIONS));
+    }
+
+    @Test
+    public void testOverhead() throws Exception {
+        long profiled = execute(source(4, false), new Profiler(false)) - execute(source(3, false), new Profiler(false));
+        long plain = execute(source(4, false), null) - execute(source(3, false), null);
+        assertEquals(2 * Profiler.INSTRUCTIONS_PER_EVENT, profiled - plain); // a call to fill and one to check
+    }
+
+    /**
+     * @return a program that fills <code>count</code> arrays of 64 elements,
+     * each one in a call to <code>Main.fill</code>, and checks their content
+     */
+    private static String source(int count, boolean dump) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class Main {\n");
+        sb.append("    function void main() {\n");
+        sb.append("        var Array arrays;\n");
+        sb.append("        var int i;\n");
+        sb.append("        let arrays = Array.new(").append(count).append(");\n");
+        sb.append("        while (i < ").append(count).append(") {\n");
+        sb.append("            let arrays[i] = Main.fill(i);\n");
+        sb.append("            let i = i + 1;\n");
+        sb.append("        }\n");
+        sb.append("        let i = 0;\n");
+        sb.append("        while (i < ").append(count).append(") {\n");
+        sb.append("            if (~(Main.check(arrays[i], i))) {\n");
+        sb.append("                do Output.printString(\"corrupted\");\n");
+        sb.append("            }\n");
+        sb.append("            let i = i + 1;\n");
+        sb.append("        }\n");
+        if (dump) {
+            sb.append("        do Profiler.dump();\n");
+        }
+        sb.append("        return;\n");
+        sb.append("    }\n");
+        sb.append("    function Array fill(int value) {\n");
+        sb.append("        var Array a;\n");
+        sb.append("        var int i;\n");
+        sb.append("        let a = Array.new(64);\n");
+        sb.append("        while (i < 64) {\n");
+        sb.append("            let a[i] = value;\n");
+        sb.append("            let i = i + 1;\n");
+        sb.append("        }\n");
+        sb.append("        return a;\n");
+        sb.append("    }\n");
+        sb.append("    function boolean check(Array a, int value) {\n");
+        sb.append("        var int i;\n");
+        sb.append("        while (i < 64) {\n");
+        sb.append("            if (~(a[i] = value)) {\n");
+        sb.append("                return false;\n");
+        sb.append("            }\n");
+        sb.append("            let i = i + 1;\n");
+        sb.append("        }\n");
+        sb.append("        return true;\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static long execute(String source, Profiler profiler) throws Exception {
+        VmInterpreter interpreter = compile(source, profiler);
+        interpreter.run(MAX_INSTRUCTIONS);
+        return interpreter.getExecuted();
+    }
+
+    /**
+     * @return an interpreter of the program and, if profiled, the
+     * <code>Profiler</code> class
+     */
+    private static VmInterpreter compile(String source, Profiler profiler) throws Exception {
+        Map<String, String> sources = Collections.singletonMap("Main", source);
+        CompilationResult result = new CompilationContext().compile(sources, profiler);
+        assertTrue(result.getDiagnostics().toString(), result.isSuccessful());
+        Map<String, String> vmCode = new HashMap<>(result.getOutputs());
+        if (profiler != null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            profiler.writeCode(baos);
+            vmCode.put(Profiler.CLASS_NAME, new String(baos.toByteArray(), "UTF-8"));
+        }
+        return new VmInterpreter(vmCode, MAX_STACK_DEPTH);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Jack programs of the test resources, each one a directory of
+ * <code>.jack</code> sources, and synthetic classes of any size for the
+ * benchmarks.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+final class Samples {
+
+    /**
+     * The nand2tetris sample programs.
+     */
+    static final String[] PROGRAMS = {"ArrayTest", "Square", "ExpressionLessSquare"};
+
+    private Samples() {
+    }
+
+    /**
+     * @param program path of the program directory, relative to the test
+     * resources
+     * @return the sources of the program by class name, in name order
+     */
+    static Map<String, String> getSources(String program) throws IOException {
+        URL url = Samples.class.getResource("/" + program);
+        if (url == null) {
+            throw new IOException("Program not found: " + program);
+        }
+        File[] files;
+        try {
+            files = new File(url.toURI()).listFiles();
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex);
+        }
+        Arrays.sort(files);
+        Map<String, String> ret = new LinkedHashMap<>();
+        for (File file : files) {
+            if (file.getName().endsWith(".jack")) {
+                String className = file.getName().substring(0, file.getName().length() - 5);
+                ret.put(className, read("/" + program + "/" + file.getName()));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param directory path of a directory of programs, relative to the test
+     * resources
+     * @return the names of the programs of the directory, in name order
+     */
+    static String[] getPrograms(String directory) throws IOException {
+        URL url = Samples.class.getResource("/" + directory);
+        if (url == null) {
+            throw new IOException("Directory not found: " + directory);
+        }
+        try {
+            String[] ret = new File(url.toURI()).list();
+            Arrays.sort(ret);
+            return ret;
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * @return the content of the resource
+     */
+    static String read(String resource) throws IOException {
+        try (InputStream is = Samples.class.getResourceAsStream(resource)) {
+            if (is == null) {
+                throw new IOException("Resource not found: " + resource);
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
+            }
+            return new String(baos.toByteArray(), "UTF-8");
+        }
+    }
+
+    /**
+     * @return a signature index with the classes of the program
+     */
+    static SignatureIndex index(Map<String, String> sources) {
+        SignatureIndex index = new SignatureIndex();
+        new CompilationContext().index(sources, index);
+        return index;
+    }
+
+    /**
+     * Generates a class of methods that call each other, with loops,
+     * conditions, array accesses, OS calls and string constants. Each method
+     * takes about 0.6 KB of source.
+     *
+     * @param methods number of methods
+     * @return the source of the class
+     */
+    static String synthesize(String className, int methods) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class ").append(className).append(" {\n");
+        sb.append("    field int x, y;\n");
+        sb.append("    field Array cells;\n");
+        for (int m = 0; m < methods; m++) {
+            sb.append("\n");
+            sb.append("    method int m").append(m).append("(int a, int b) {\n");
+            sb.append("        var int i, s;\n");
+            sb.append("        let i = 0;\n");
+            sb.append("        while (i < a) {\n");
+            sb.append("            let cells[i] = (i * b) + s - ").append(m % 100).append(";\n");
+            sb.append("            if ((cells[i] > b) & ~(i = 0)) {\n");
+            sb.append("                let s = s + cells[i - 1];\n");
+            sb.append("            } else {\n");
+            sb.append("                let s = s - Math.abs(b - y);\n");
+            sb.append("                do Output.printString(\"m").append(m).append("\");\n");
+            sb.append("            }\n");
+            sb.append("            let i = i + 1;\n");
+            sb.append("        }\n");
+            sb.append("        let x = m").append((m + 1) % methods).append("(s, -a);\n");
+            sb.append("        return s + x;\n");
+            sb.append("    }\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import org.brutusin.nand2tetris.jack.model.JackClass;
+import org.brutusin.nand2tetris.jack.model.Subroutine;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of {@link SignatureIndex}: the validation of calls against it, its
+ * construction from outline parses, its persisted format and its refresh from
+ * the modification times of the sources.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class SignatureIndexTest {
+
+    private static final String POINT = "class Point {\n"
+            + "    field int x, y;\n"
+            + "    constructor Point new(int ax, int ay) {\n"
+            + "        let x = ax;\n"
+            + "        let y = ay;\n"
+            + "        return this;\n"
+            + "    }\n"
+            + "    method int getX() {\n"
+            + "        return x;\n"
+            + "    }\n"
+            + "    function int origin() {\n"
+            + "        return 0;\n"
+            + "    }\n"
+            + "}\n";
+
+    @Test
+    public void testCallValidation() throws Exception {
+        String main = "class Main {\n"
+                + "    function void main() {\n"
+                + "        var Point p;\n"
+                + "        let p = Point.new(1, 2);\n"
+                + "        do Line.draw(p);\n"
+                + "        do Point.move(p);\n"
+                + "        do p.getX(1);\n"
+                + "        do Point.getX();\n"
+                + "        do p.origin();\n"
+                + "        do Output.printInt(p.getX());\n"
+                + "        return;\n"
+                + "    }\n"
+                + "}\n";
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("Main", main);
+        sources.put("Point", POINT);
+        CompilationResult result = new CompilationContext().compile(sources, null, Samples.index(sources));
+        List<String> diagnostics = new ArrayList<>();
+        for (Diagnostic diagnostic : result.getDiagnostics()) {
+            diagnostics.add(diagnostic.toString());
+        }
+        assertEquals(Arrays.asList(
+                "Main, line 5, column 17: Class not found 'Line'",
+                "Main, line 6, column 18: Subroutine not found 'Point.move'",
+                "Main, line 7, column 14: Subroutine 'Point.getX' expects 0 arguments but 1 were given",
+                "Main, line 8, column 18: Method 'Point.getX' cannot be called as a function",
+                "Main, line 9, column 14: Subroutine 'Point.origin' is a function and cannot be called as a method"), diagnostics);
+    }
+
+    /**
+     * The persisted index (format version 2) reads back the project classes
+     * with their versions, signatures and field accesses, and writes back the
+     * same bytes. OS classes replaced by project classes stay replaced.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, String> sources = new LinkedHashMap<>(Samples.getSources("Square"));
+        sources.put("Point", POINT);
+        sources.put("Math", "class Math {\n    function int abs(int x) {\n        return x;\n    }\n}\n");
+        SignatureIndex index = new SignatureIndex();
+        long version = 1000;
+        for (String source : sources.values()) {
+            new CompilationContext().index(source, index, version++);
+        }
+        byte[] bytes = toByteArray(index);
+        assertEquals(0x4A534958, (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF);
+        assertEquals(2, bytes[7]);
+        SignatureIndex read = SignatureIndex.read(new ByteArrayInputStream(bytes));
+        assertArrayEquals(bytes, toByteArray(read));
+        assertEquals(new TreeSet<>(sources.keySet()), new TreeSet<>(read.getProjectClasses()));
+        assertFalse(read.isOsClass("Math"));
+        assertTrue(read.isOsClass("Output"));
+        assertNull(read.getSignature("Math", "sqrt"));
+        assertTrue(read.getAccessDescription("Point").contains("[0, 1]"));
+        for (String className : sources.keySet()) {
+            assertEquals(className, index.getVersion(className), read.getVersion(className));
+            assertEquals(className, index.getFieldCount(className), read.getFieldCount(className));
+            assertEquals(className, index.getAccessDescription(className), read.getAccessDescription(className));
+            JackClass clazz = new ClassParser(new Tokenizer(sources.get(className))).getParsedClass();
+            for (Subroutine subroutine : clazz.getSubroutines()) {
+                assertEquals(index.getSignature(className, subroutine.getName()).toString(), read.getSignature(className, subroutine.getName()).toString());
+            }
+        }
+    }
+
+    /**
+     * The outline parse skips the bodies of the subroutines, but the index it
+     * builds is the one of the full parse, field accesses included.
+     */
+    @Test
+    public void testOutline() throws Exception {
+        List<Map<String, String>> programs = new ArrayList<>();
+        for (String program : Samples.PROGRAMS) {
+            programs.add(Samples.getSources(program));
+        }
+        for (String program : Samples.getPrograms(OptimizationTest.DIRECTORY)) {
+            programs.add(Samples.getSources(OptimizationTest.DIRECTORY + "/" + program));
+        }
+        programs.add(Collections.singletonMap("Point", POINT));
+        programs.add(Collections.singletonMap("Big", Samples.synthesize("Big", 50)));
+        for (Map<String, String> sources : programs) {
+            SignatureIndex outline = new SignatureIndex();
+            SignatureIndex full = new SignatureIndex();
+            for (String source : sources.values()) {
+                assertTrue(new CompilationContext().index(source, outline, 0));
+                full.add(new ClassParser(new Tokenizer(source)).getParsedClass(), 0);
+            }
+            for (String className : sources.keySet()) {
+                assertEquals(className, full.getAccessDescription(className), outline.getAccessDescription(className));
+            }
+            assertArrayEquals(sources.keySet().toString(), toByteArray(full), toByteArray(outline));
+        }
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0x4A534958);
+        dos.writeInt(1);
+        dos.writeInt(0);
+        try {
+            SignatureIndex.read(new ByteArrayInputStream(baos.toByteArray()));
+            fail();
+        } catch (IOException ex) {
+            assertEquals("Unsupported signature index version 1", ex.getMessage());
+        }
+    }
+
+    /**
+     * Sources are indexed again only when their modification time changes,
+     * and removed from the index when deleted.
+     */
+    @Test
+    public void testRefresh() throws Exception {
+        File dir = Files.createTempDirectory("index").toFile();
+        try {
+            File point = write(dir, "Point", POINT, 1000000);
+            File main = write(dir, "Main", "class Main {\n    function void main() {\n        return;\n    }\n}\n", 1000000);
+            SignatureIndex index = new SignatureIndex();
+            JackCompiler.refreshIndexDirectory(index, dir);
+            assertEquals(1000000, index.getVersion("Point"));
+            assertEquals("method int Point.getX()", index.getSignature("Point", "getX").toString());
+
+            write(dir, "Point", POINT.replace("getX()", "getX(int scale)"), 1000000);
+            JackCompiler.refreshIndexDirectory(index, dir);
+            assertEquals("method int Point.getX()", index.getSignature("Point", "getX").toString());
+
+            point.setLastModified(2000000);
+            JackCompiler.refreshIndexDirectory(index, dir);
+            assertEquals(2000000, index.getVersion("Point"));
+            assertEquals("method int Point.getX(int)", index.getSignature("Point", "getX").toString());
+
+            assertTrue(main.delete());
+            JackCompiler.refreshIndexDirectory(index, dir);
+            assertFalse(index.containsClass("Main"));
+            assertEquals(new TreeSet<>(Arrays.asList("Point")), new TreeSet<>(index.getProjectClasses()));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static File write(File dir, String className, String source, long lastModified) throws IOException {
+        File ret = new File(dir, className + ".jack");
+        Files.write(ret.toPath(), source.getBytes("UTF-8"));
+        assertTrue(ret.setLastModified(lastModified));
+        return ret;
+    }
+
+    private static byte[] toByteArray(SignatureIndex index) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        index.write(baos);
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.brutusin.nand2tetris.jack.model.Declaration;
+
+/**
+ * Microbenchmark of {@link SymbolTable} against the previous implementation
+ * (two <code>HashMap</code>s per table, boxed scope counters and a lookup per
+ * scope level), reproduced here as {@link HashMapSymbolTable}, and against
+ * the same open addressing table keyed by integer identifier ids, as
+ * {@link IntIdSymbolTable}. The ids are assigned before measuring, as a
+ * tokenizer numbering the identifiers would.
+ * <p>
+ * Each operation fills the table of a subroutine with 7 declarations and
+ * resolves 40 identifiers against it and a class table with 4 fields and
+ * statics, as {@link ClassWriter} does. Identifiers are canonicalized as the
+ * {@link Tokenizer} of a {@link CompilationContext} does. Reports the best
+ * time of the rounds and the bytes allocated per operation.
+ * <p>
+ * Run with
+ * <code>java -cp target/classes:target/test-classes org.brutusin.nand2tetris.jack.SymbolTableBenchmark [iterations] [rounds]</code>.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+public class SymbolTableBenchmark {
+
+    private static final String[] CLASS_NAMES = {"x", "y", "size", "count"};
+    private static final Declaration.Scope[] CLASS_SCOPES = {Declaration.Scope.field, Declaration.Scope.field, Declaration.Scope.field, Declaration.Scope.statiz};
+    private static final String[] SUBROUTINE_NAMES = {"this", "dx", "dy", "i", "j", "sum", "tmp"};
+    private static final Declaration.Scope[] SUBROUTINE_SCOPES = {Declaration.Scope.argument, Declaration.Scope.argument, Declaration.Scope.argument,
+        Declaration.Scope.local, Declaration.Scope.local, Declaration.Scope.local, Declaration.Scope.local};
+    private static final int LOOKUPS = 40;
+
+    private final Declaration[] classDeclarations = new Declaration[CLASS_NAMES.length];
+    private final Declaration[] subroutineDeclarations = new Declaration[SUBROUTINE_NAMES.length];
+    private final String[] lookups = new String[LOOKUPS];
+    private final int[] classIds = new int[CLASS_NAMES.length];
+    private final int[] subroutineIds = new int[SUBROUTINE_NAMES.length];
+    private final int[] lookupIds = new int[LOOKUPS];
+
+    public SymbolTableBenchmark() {
+        Map<String, String> identifiers = new HashMap<>();
+        Map<String, Integer> ids = new HashMap<>();
+        for (int i = 0; i < CLASS_NAMES.length; i++) {
+            classDeclarations[i] = new Declaration(1, 1, "int", canonical(identifiers, CLASS_NAMES[i]), CLASS_SCOPES[i]);
+            classIds[i] = id(ids, CLASS_NAMES[i]);
+        }
+        for (int i = 0; i < SUBROUTINE_NAMES.length; i++) {
+            subroutineDeclarations[i] = new Declaration(1, 1, "int", canonical(identifiers, SUBROUTINE_NAMES[i]), SUBROUTINE_SCOPES[i]);
+            subroutineIds[i] = id(ids, SUBROUTINE_NAMES[i]);
+        }
+        for (int i = 0; i < LOOKUPS; i++) {
+            String name = i % 2 == 0 ? SUBROUTINE_NAMES[i % SUBROUTINE_NAMES.length] : CLASS_NAMES[i % CLASS_NAMES.length];
+            lookups[i] = canonical(identifiers, new String(name.toCharArray())); // a distinct instance, as scanned
+            lookupIds[i] = id(ids, name);
+        }
+    }
+
+    private static String canonical(Map<String, String> identifiers, String s) {
+        String ret = identifiers.get(s);
+        if (ret == null) {
+            identifiers.put(s, s);
+            ret = s;
+        }
+        return ret;
+    }
+
+    private static int id(Map<String, Integer> ids, String s) {
+        Integer ret = ids.get(s);
+        if (ret == null) {
+            ret = ids.size();
+            ids.put(s, ret);
+        }
+        return ret;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        SymbolTableBenchmark benchmark = new SymbolTableBenchmark();
+        long[] old = benchmark.measure(0, iterations, rounds);
+        long[] current = benchmark.measure(1, iterations, rounds);
+        long[] intIds = benchmark.measure(2, iterations, rounds);
+        System.out.println(String.format("HashMapSymbolTable: %6.1f ns/op %6d bytes/op", old[0] / (double) iterations, old[1] / iterations));
+        System.out.println(String.format("SymbolTable:        %6.1f ns/op %6d bytes/op", current[0] / (double) iterations, current[1] / iterations));
+        System.out.println(String.format("IntIdSymbolTable:   %6.1f ns/op %6d bytes/op", intIds[0] / (double) iterations, intIds[1] / iterations));
+    }
+
+    /**
+     * @param variant 0 for {@link HashMapSymbolTable}, 1 for
+     * {@link SymbolTable} and 2 for {@link IntIdSymbolTable}
+     * @return the best time of the rounds, and the bytes allocated in it, in
+     * nanoseconds and bytes for all the iterations
+     */
+    private long[] measure(int variant, int iterations, int rounds) throws Exception {
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        int sink = 0;
+        SymbolTable classTable = new SymbolTable();
+        SymbolTable subroutineTable = new SymbolTable(classTable);
+        HashMapSymbolTable oldClassTable = new HashMapSymbolTable();
+        IntIdSymbolTable intIdClassTable = new IntIdSymbolTable(null);
+        IntIdSymbolTable intIdSubroutineTable = new IntIdSymbolTable(intIdClassTable);
+        for (int i = 0; i < classDeclarations.length; i++) {
+            classTable.add(classDeclarations[i]);
+            oldClassTable.add(classDeclarations[i]);
+            intIdClassTable.add(classIds[i], classDeclarations[i]);
+        }
+        for (int r = 0; r < rounds; r++) {
+            long bytes = getAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (variant == 0) {
+                    sink += runOld(oldClassTable);
+                } else if (variant == 1) {
+                    sink += runCurrent(subroutineTable);
+                } else {
+                    sink += runIntIds(intIdSubroutineTable);
+                }
+            }
+            long time = System.nanoTime() - start;
+            bytes = getAllocatedBytes() - bytes;
+            if (time < best) {
+                best = time;
+                allocated = bytes;
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+        return new long[]{best, allocated};
+    }
+
+    private int runCurrent(SymbolTable subroutineTable) throws SymbolTable.AlreadyRegisteredException {
+        subroutineTable.clear();
+        for (Declaration declaration : subroutineDeclarations) {
+            subroutineTable.add(declaration);
+        }
+        int ret = 0;
+        for (String name : lookups) {
+            ret += subroutineTable.getEntry(name).getIndex();
+        }
+        return ret;
+    }
+
+    private int runOld(HashMapSymbolTable classTable) throws SymbolTable.AlreadyRegisteredException {
+        HashMapSymbolTable subroutineTable = new HashMapSymbolTable();
+        for (Declaration declaration : subroutineDeclarations) {
+            subroutineTable.add(declaration);
+        }
+        int ret = 0;
+        for (String name : lookups) {
+            int index = subroutineTable.getIndex(name);
+            ret += index >= 0 ? index : classTable.getIndex(name);
+        }
+        return ret;
+    }
+
+    private int runIntIds(IntIdSymbolTable subroutineTable) throws SymbolTable.AlreadyRegisteredException {
+        subroutineTable.clear();
+        for (int i = 0; i < subroutineDeclarations.length; i++) {
+            subroutineTable.add(subroutineIds[i], subroutineDeclarations[i]);
+        }
+        int ret = 0;
+        for (int id : lookupIds) {
+            ret += subroutineTable.getIndex(id);
+        }
+        return ret;
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The symbol table this benchmark compares with.
+     */
+    private static class HashMapSymbolTable {
+
+        private final Map<String, Entry> entryMap = new HashMap<>();
+        private final Map<Declaration.Scope, Integer> counters = new HashMap<>();
+
+        public void add(Declaration declaration) throws SymbolTable.AlreadyRegisteredException {
+            if (entryMap.containsKey(declaration.getName())) {
+                throw new SymbolTable.AlreadyRegisteredException(declaration.getName());
+            }
+            Integer index = counters.get(declaration.getScope());
+            if (index == null) {
+                index = 0;
+            } else {
+                index++;
+            }
+            counters.put(declaration.getScope(), index);
+            Entry entry = new Entry();
+            entry.declaration = declaration;
+            entry.index = index;
+            entryMap.put(declaration.getName(), entry);
+        }
+
+        /**
+         * @return the index of the name, or -1 if it is not in the table
+         */
+        public int getIndex(String name) {
+            Entry entry = entryMap.get(name);
+            return entry == null ? -1 : entry.index;
+        }
+    }
+
+    private static class Entry {
+
+        private Declaration declaration;
+        private int index;
+    }
+
+    /**
+     * {@link SymbolTable} keyed by identifier ids instead of identifier
+     * strings, with a fixed capacity.
+     */
+    private static class IntIdSymbolTable {
+
+        private static final int CAPACITY = 16;
+
+        private final IntIdSymbolTable parent;
+        private final int[] counters = new int[Declaration.Scope.values().length];
+        private final int[] keys = new int[CAPACITY]; // id + 1, 0 when empty
+        private final Entry[] slots = new Entry[CAPACITY];
+        private final Entry[] entries = new Entry[CAPACITY / 2];
+        private int size;
+
+        private IntIdSymbolTable(IntIdSymbolTable parent) {
+            this.parent = parent;
+        }
+
+        public void add(int id, Declaration declaration) throws SymbolTable.AlreadyRegisteredException {
+            int i = slot(id);
+            while (keys[i] != 0) {
+                if (keys[i] == id + 1) {
+                    throw new SymbolTable.AlreadyRegisteredException(declaration.getName());
+                }
+                i = (i + 1) & (CAPACITY - 1);
+            }
+            Entry entry = entries[size];
+            if (entry == null) {
+                entry = new Entry();
+                entries[size] = entry;
+            }
+            entry.declaration = declaration;
+            entry.index = counters[declaration.getScope().ordinal()]++;
+            keys[i] = id + 1;
+            slots[i] = entry;
+            size++;
+        }
+
+        public void clear() {
+            Arrays.fill(keys, 0);
+            Arrays.fill(slots, null);
+            Arrays.fill(counters, 0);
+            size = 0;
+        }
+
+        /**
+         * @return the index of the id in this table or the enclosing ones, or
+         * -1 if it is not found
+         */
+        public int getIndex(int id) {
+            IntIdSymbolTable table = this;
+            do {
+                int i = slot(id);
+                int key;
+                while ((key = table.keys[i]) != 0) {
+                    if (key == id + 1) {
+                        return table.slots[i].index;
+                    }
+                    i = (i + 1) & (CAPACITY - 1);
+                }
+                table = table.parent;
+            } while (table != null);
+            return -1;
+        }
+
+        private static int slot(int id) {
+            return (id * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(CAPACITY));
+        }
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2017 Ignacio del Valle Alles idelvall@brutusin.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.brutusin.nand2tetris.jack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interpreter of Hack VM code, running <code>Main.main</code> with the Jack OS
+ * routines needed by the tests implemented natively: <code>Math</code>,
+ * <code>Memory</code>, <code>Array</code>, <code>String</code>,
+ * <code>Output</code> (printing to a string) and <code>Sys.halt</code>.
+ * Classes of the program shadow the native routines of the same name.
+ * <p>
+ * Values are 16-bit as in the Hack platform. The memory map is the Hack one
+ * (statics from 16, heap from 2048) except for the stack, that lives above the
+ * Hack address space and is limited only by the given depth, so that
+ * unoptimized deep recursions can run.
+ *
+ * @author Ignacio del Valle Alles idelvall@brutusin.org
+ */
+final class VmInterpreter {
+
+    private static final int SP = 0;
+    private static final int LCL = 1;
+    private static final int ARG = 2;
+    private static final int THIS = 3;
+    private static final int THAT = 4;
+    private static final int TEMP = 5;
+    private static final int STATIC_BASE = 16;
+    private static final int HEAP_BASE = 2048;
+    private static final int HEAP_END = 16384;
+    private static final int STACK_BASE = 32768;
+
+    private static final int PUSH = 0;
+    private static final int POP = 1;
+    private static final int ADD = 2;
+    private static final int SUB = 3;
+    private static final int NEG = 4;
+    private static final int EQ = 5;
+    private static final int GT = 6;
+    private static final int LT = 7;
+    private static final int AND = 8;
+    private static final int OR = 9;
+    private static final int NOT = 10;
+    private static final int GOTO = 11;
+    private static final int IF_GOTO = 12;
+    private static final int FUNCTION = 13;
+    private static final int CALL = 14;
+    private static final int RETURN = 15;
+
+    private static final int CONSTANT = 0;
+    private static final int LOCAL = 1;
+    private static final int ARGUMENT = 2;
+    private static final int THIS_SEGMENT = 3;
+    private static final int THAT_SEGMENT = 4;
+    private static final int POINTER = 5;
+    private static final int TEMP_SEGMENT = 6;
+    private static final int STATIC = 7;
+
+    private final List<int[]> instructions = new ArrayList<>();
+    private final List<String> calledNames = new ArrayList<>();
+    private final Map<String, Integer> functions = new HashMap<>();
+    private final int[] ram;
+    private final StringBuilder output = new StringBuilder();
+    private int heapPointer = HEAP_BASE;
+    private long executed;
+    private int maxStackDepth;
+
+    /**
+     * @param vmCode VM code by class name
+     * @param maxStackDepth maximum number of words of the stack
+     */
+    VmInterpreter(Map<String, String> vmCode, int maxStackDepth) {
+        this.ram = new int[STACK_BASE + maxStackDepth];
+        int staticBase = STATIC_BASE;
+        List<String[]> jumps = new ArrayList<>();
+        for (Map.Entry<String, String> entry : vmCode.entrySet()) {
+            Map<String, Integer> labels = new HashMap<>();
+            int first = instructions.size();
+            String function = null;
+            int staticCount = 0;
+            for (String line : entry.getValue().split("\n")) {
+                int comment = line.indexOf("//");
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                switch (parts[0]) {
+                    case "label":
+                        labels.put(function + "$" + parts[1], instructions.size());
+                        break;
+                    case "goto":
+                    case "if-goto":
+                        jumps.add(new String[]{function + "$" + parts[1]});
+                        instructions.add(new int[]{parts[0].equals("goto") ? GOTO : IF_GOTO, jumps.size() - 1});
+                        break;
+                    case "function":
+                        function = parts[1];
+                        functions.put(function, instructions.size());
+                        instructions.add(new int[]{FUNCTION, Integer.parseInt(parts[2])});
+                        break;
+                    case "call":
+                        calledNames.add(parts[1]);
+                        instructions.add(new int[]{CALL, calledNames.size() - 1, Integer.parseInt(parts[2])});
+                        break;
+                    case "push":
+                    case "pop":
+                        int segment = getSegment(parts[1]);
+                        int index = Integer.parseInt(parts[2]);
+                        if (segment == STATIC) {
+                            staticCount = Math.max(staticCount, index + 1);
+                            index += staticBase;
+                        }
+                        instructions.add(new int[]{parts[0].equals("push") ? PUSH : POP, segment, index});
+                        break;
+                    default:
+                        instructions.add(new int[]{getOperation(parts[0])});
+                }
+            }
+            staticBase += staticCount;
+            for (int i = first; i < instructions.size(); i++) {
+                int[] instruction = instructions.get(i);
+                if (instruction[0] == GOTO || instruction[0] == IF_GOTO) {
+                    String label = jumps.get(instruction[1])[0];
+                    Integer target = labels.get(label);
+                    if (target == null) {
+                        throw new IllegalArgumentException("Label not found: " + label);
+                    }
+                    instruction[1] = target;
+                }
+            }
+        }
+    }
+
+    private static int getSegment(String name) {
+        switch (name) {
+            case "constant":
+                return CONSTANT;
+            case "local":
+                return LOCAL;
+            case "argument":
+                return ARGUMENT;
+            case "this":
+                return THIS_SEGMENT;
+            case "that":
+                return THAT_SEGMENT;
+            case "pointer":
+                return POINTER;
+            case "temp":
+                return TEMP_SEGMENT;
+            case "static":
+                return STATIC;
+            default:
+                throw new IllegalArgumentException("Unknown segment: " + name);
+        }
+    }
+
+    private static int getOperation(String name) {
+        switch (name) {
+            case "add":
+                return ADD;
+            case "sub":
+                return SUB;
+            case "neg":
+                return NEG;
+            case "eq":
+                return EQ;
+            case "gt":
+                return GT;
+            case "lt":
+                return LT;
+            case "and":
+                return AND;
+            case "or":
+                return OR;
+            case "not":
+                return NOT;
+            case "return":
+                return RETURN;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + name);
+        }
+    }
+
+    /**
+     * Runs <code>Main.main</code> until it returns or calls
+     * <code>Sys.halt</code>.
+     *
+     * @param maxInstructions maximum number of VM instructions to execute
+     * @return the output printed
+     */
+    String run(long maxInstructions) {
+        Integer main = functions.get("Main.main");
+        if (main == null) {
+            throw new IllegalArgumentException("Main.main not found");
+        }
+        ram[SP] = STACK_BASE;
+        int pc = call(main, 0, -1);
+        try {
+            while (pc >= 0) {
+                if (++executed > maxInstructions) {
+                    throw new IllegalStateException("Instruction limit exceeded");
+                }
+                int[] instruction = instructions.get(pc++);
+                switch (instruction[0]) {
+                    case PUSH:
+                        push(instruction[1] == CONSTANT ? instruction[2] : ram[getAddress(instruction[1], instruction[2])]);
+                        break;
+                    case POP:
+                        int value = pop();
+                        ram[getAddress(instruction[1], instruction[2])] = value;
+                        break;
+                    case ADD:
+                        push((short) (pop() + pop()));
+                        break;
+                    case SUB:
+                        int subtrahend = pop();
+                        push((short) (pop() - subtrahend));
+                        break;
+                    case NEG:
+                        push((short) -pop());
+                        break;
+                    case EQ:
+                        push(pop() == pop() ? -1 : 0);
+                        break;
+                    case GT:
+                        push(pop() < pop() ? -1 : 0);
+                        break;
+                    case LT:
+                        push(pop() > pop() ? -1 : 0);
+                        break;
+                    case AND:
+                        push(pop() & pop());
+                        break;
+                    case OR:
+                        push(pop() | pop());
+                        break;
+                    case NOT:
+                        push(~pop());
+                        break;
+                    case GOTO:
+                        pc = instruction[1];
+                        break;
+                    case IF_GOTO:
+                        if (pop() != 0) {
+                            pc = instruction[1];
+                        }
+                        break;
+                    case FUNCTION:
+                        for (int i = 0; i < instruction[1]; i++) {
+                            push(0);
+                        }
+                        break;
+                    case CALL:
+                        String name = calledNames.get(instruction[1]);
+                        Integer target = functions.get(name);
+                        if (target == null) {
+                            int[] arguments = new int[instruction[2]];
+                            for (int i = arguments.length - 1; i >= 0; i--) {
+                                arguments[i] = pop();
+                            }
+                            push((short) callNative(name, arguments));
+                        } else {
+                            pc = call(target, instruction[2], pc);
+                        }
+                        break;
+                    case RETURN:
+                        int frame = ram[LCL];
+                        int returnAddress = ram[frame - 5];
+                        ram[ram[ARG]] = pop();
+                        ram[SP] = ram[ARG] + 1;
+                        ram[THAT] = ram[frame - 1];
+                        ram[THIS] = ram[frame - 2];
+                        ram[ARG] = ram[frame - 3];
+                        ram[LCL] = ram[frame - 4];
+                        pc = returnAddress;
+                        break;
+                    default:
+                        throw new AssertionError();
+                }
+            }
+        } catch (Halt halt) {
+            // Sys.halt
+        }
+        return output.toString();
+    }
+
+    /**
+     * @return the number of VM instructions executed, native routines counting
+     * as their call only
+     */
+    long getExecuted() {
+        return executed;
+    }
+
+    /**
+     * @return the maximum number of words the stack has held
+     */
+    int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    private int call(int target, int argumentCount, int returnAddress) {
+        push(returnAddress);
+        push(ram[LCL]);
+        push(ram[ARG]);
+        push(ram[THIS]);
+        push(ram[THAT]);
+        ram[ARG] = ram[SP] - 5 - argumentCount;
+        ram[LCL] = ram[SP];
+        return target;
+    }
+
+    private int getAddress(int segment, int index) {
+        switch (segment) {
+            case LOCAL:
+                return ram[LCL] + index;
+            case ARGUMENT:
+                return ram[ARG] + index;
+            case THIS_SEGMENT:
+                return checkHeapAddress(ram[THIS] + index);
+            case THAT_SEGMENT:
+                return checkHeapAddress(ram[THAT] + index);
+            case POINTER:
+                return THIS + index;
+            case TEMP_SEGMENT:
+                return TEMP + index;
+            case STATIC:
+                return index;
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    private static int checkHeapAddress(int address) {
+        if (address < 0 || address >= STACK_BASE) {
+            throw new IllegalStateException("Invalid address: " + address);
+        }
+        return address;
+    }
+
+    private void push(int value) {
+        int sp = ram[SP];
+        if (sp >= ram.length) {
+            throw new IllegalStateException("Stack overflow");
+        }
+        ram[sp] = value;
+        ram[SP] = sp + 1;
+        maxStackDepth = Math.max(maxStackDepth, sp + 1 - STACK_BASE);
+    }
+
+    private int pop() {
+        return ram[--ram[SP]];
+    }
+
+    private int alloc(int size) {
+        int ret = heapPointer;
+        heapPointer += Math.max(size, 1);
+        if (heapPointer > HEAP_END) {
+            throw new IllegalStateException("Heap overflow");
+        }
+        return ret;
+    }
+
+    private int callNative(String name, int[] arguments) {
+        switch (name) {
+            case "Math.multiply":
+                return arguments[0] * arguments[1];
+            case "Math.divide":
+                return arguments[0] / arguments[1];
+            case "Math.min":
+                return Math.min(arguments[0], arguments[1]);
+            case "Math.max":
+                return Math.max(arguments[0], arguments[1]);
+            case "Math.abs":
+                return Math.abs(arguments[0]);
+            case "Math.sqrt":
+                return (int) Math.sqrt(arguments[0]);
+            case "Memory.alloc":
+            case "Array.new":
+                return alloc(arguments[0]);
+            case "Memory.deAlloc":
+            case "Array.dispose":
+            case "String.dispose":
+                return 0;
+            case "Memory.peek":
+                return ram[checkHeapAddress(arguments[0])];
+            case "Memory.poke":
+                ram[checkHeapAddress(arguments[0])] = arguments[1];
+                return 0;
+            case "String.new":
+                int string = alloc(arguments[0] + 2);
+                ram[string] = arguments[0];
+                ram[string + 1] = 0;
+                return string;
+            case "String.appendChar":
+                ram[arguments[0] + 2 + ram[arguments[0] + 1]++] = arguments[1];
+                return arguments[0];
+            case "String.length":
+                return ram[arguments[0] + 1];
+            case "String.charAt":
+                return ram[arguments[0] + 2 + arguments[1]];
+            case "Output.printString":
+                for (int i = 0; i < ram[arguments[0] + 1]; i++) {
+                    output.append((char) ram[arguments[0] + 2 + i]);
+                }
+                return 0;
+            case "Output.printInt":
+                output.append(arguments[0]);
+                return 0;
+            case "Output.printChar":
+                output.append((char) arguments[0]);
+                return 0;
+            case "Output.println":
+                output.append('\n');
+                return 0;
+            case "Sys.halt":
+                throw new Halt();
+            default:
+                throw new IllegalStateException("Function not found: " + name);
+        }
+    }
+
+    private static class Halt extends RuntimeException {
+    }
+}